@@ -89,6 +89,11 @@ case "$1" in
                 java -cp "$OUT_DIR${CP_SEP}$JDBC_JAR" Utils.WorkloadParser "$2"
             fi
             ;;
+
+    -t)
+            # Waterfall of one request by its trace id, or of the slowest request
+            java -cp "$OUT_DIR" Utils.TraceView traces $2
+            ;;
     *)
             echo "used a wrong command"
             exit  1;
@@ -1,11 +1,16 @@
 package ISCS;
 
+import Utils.AdmissionController;
 import Utils.ConfigReader;
-import com.sun.net.httpserver.HttpServer;
+import Utils.HttpEngine;
+import Utils.Log;
+import Utils.Metrics;
+import Utils.ResponseCompression;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
+import Utils.RpcServer;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
 
 /**
  *  ISCS acts as the central middleware of the architecture. It facilitates communication between
@@ -28,12 +33,26 @@ public class ISCS {
         int port = ConfigReader.getPort(configFile,"InterServiceCommunication");
         // Uses a server to listen to the order service
         // It waits for an incoming connection, parses the request, and sends back a response
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        HttpEngine server = HttpEngine.fromConfig(configFile, "InterServiceCommunication", port);
+        Log.configure(configFile, "InterServiceCommunication");
+        Tracing.configure(configFile, "ISCS");
+        ResponseCompression.configure(configFile, "InterServiceCommunication");
 
+        AdmissionController admission = AdmissionController.fromConfig(configFile, "InterServiceCommunication");
         // This line tells the server which path prefix should trigger handler
-        server.createContext("/", new ISCSHandler(configFile));
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        ISCSHandler handler = new ISCSHandler(configFile);
+        Tracing.instrument(Metrics.instrument(server.createContext("/", handler))).getFilters().add(admission.filter());
+        // Not behind the admission filter, so it can be read while the service sheds load
+        server.createContext("/metrics", Metrics.handler());
+        server.setExecutor(admission);
         System.out.println("ISCS Service started on port "+ port);
         server.start();
+        ServiceLifecycle.register(configFile, server, admission);
+        // Optional binary transport; lookups from the order service are relayed to the backends frame by frame
+        if(ConfigReader.getBoolean(configFile, "InternalRpc", "enabled", false)){
+            int rpcPort = ConfigReader.getInt(configFile, "InterServiceCommunication", "rpcPort", port + 100);
+            RpcServer rpcServer = RpcServer.start("ISCS", rpcPort, handler::handleRpc, 10);
+            ServiceLifecycle.addFlushHook(rpcServer::close);
+        }
     }
 }
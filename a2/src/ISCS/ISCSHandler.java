@@ -1,15 +1,29 @@
 package ISCS;
 
 import Utils.ConfigReader;
+import Utils.ControlPlane;
+import Utils.ETags;
+import Utils.Log;
+import Utils.RpcClient;
+import Utils.RpcFrame;
+import Utils.ResponseCompression;
+import Utils.Router;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ISCSHandler implements the routing logic for the Inter-service Communication Service.
@@ -17,6 +31,27 @@ import java.net.http.HttpResponse;
  * microservice (user or product) based on the URL path
  */
 public class ISCSHandler implements HttpHandler {
+    private enum Service { USER, PRODUCT, USER_ITEM, PRODUCT_ITEM }
+
+    private static final Router<Service> ROUTES = new Router<Service>()
+            .add(Router.ANY, "/user/{*}", Service.USER)
+            .add(Router.ANY, "/product/{*}", Service.PRODUCT)
+            // Single users and products carry ETags, so their bodies can be cached and revalidated
+            .add("GET", "/user/{id}", Service.USER_ITEM)
+            .add("GET", "/product/{id}", Service.PRODUCT_ITEM);
+
+    /**
+     * A backend response kept for revalidation
+     */
+    private static final class CachedResponse {
+        private final String etag;
+        private final byte[] body;
+
+        CachedResponse(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
     /**
      * The user service url
      */
@@ -29,6 +64,24 @@ public class ISCSHandler implements HttpHandler {
      * The HTTP client used to forward intercepted requests to backend services.
      */
     private  final HttpClient client;
+    /**
+     * When true, request and response bodies are piped through in chunks instead of being buffered
+     */
+    private final boolean streaming;
+    /**
+     * Binary transport clients for the backends; null when the internal RPC is disabled
+     */
+    private final RpcClient userRpc;
+    private final RpcClient productRpc;
+    /**
+     * Broadcasts shutdown/restart/clear to the backends in parallel
+     */
+    private final ControlPlane controlPlane;
+    /**
+     * The last user and product bodies by path, least recently used first; null when disabled.
+     * An entry is never served without asking the backend whether its ETag is still current.
+     */
+    private final Map<String, CachedResponse> cache;
 
     /**
      * The constructor of ISCSHandler. It constructs an ISCSHandler by reading backend service information from a
@@ -48,8 +101,27 @@ public class ISCSHandler implements HttpHandler {
         // A thread-safe; Allows the client to manage a pool of connections and handle the threads
         // When the service needs to talk to another service
         this.client = HttpClient.newHttpClient();
+        this.streaming = ConfigReader.getBoolean(configFile, "InterServiceCommunication", "streaming", true);
+
+        if(ConfigReader.getBoolean(configFile, "InternalRpc", "enabled", false)){
+            this.userRpc = new RpcClient(userIP, ConfigReader.getInt(configFile, "UserService", "rpcPort", userPort + 100));
+            this.productRpc = new RpcClient(productIp, ConfigReader.getInt(configFile, "ProductService", "rpcPort", productPort + 100));
+        }else{
+            this.userRpc = null;
+            this.productRpc = null;
+        }
 
+        this.controlPlane = new ControlPlane(client, ConfigReader.getInt(configFile, "ControlPlane", "ackTimeoutMs", 2000));
+        controlPlane.register("UserService", userServiceUrl + "/user/internal/");
+        controlPlane.register("ProductService", productServiceUrl + "/product/internal/");
 
+        int cacheEntries = ConfigReader.getInt(configFile, "InterServiceCommunication", "cacheEntries", 10000);
+        this.cache = cacheEntries <= 0 ? null : new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > cacheEntries;
+            }
+        };
     }
 
     /**
@@ -74,29 +146,37 @@ public class ISCSHandler implements HttpHandler {
         String path = exchange.getRequestURI().getPath();
         String targetBaseUrl;
         if(path.endsWith("/shutdown") || path.endsWith("/restart") || path.endsWith("/clear")){
-            System.out.println("Enter the check block");
+            Log.debug("Enter the check block");
             handleInternalSignal(exchange,path);
             return;
         }
 
 
-        if(path.startsWith("/user")){
-            targetBaseUrl = userServiceUrl;
-        }else if (path.startsWith("/product")){
-            targetBaseUrl = productServiceUrl;
-        } else if (path.contains("/user/internal/")) {
-            targetBaseUrl = userServiceUrl;
-        }else if (path.contains("/product/internal/")) {
-            targetBaseUrl = productServiceUrl;
-        } else {
-                sendResponse(exchange, 404, "Unknown Service Path".getBytes());
-                return;
-           }
+        Router.Match<Service> route = ROUTES.match(method, path);
+        if (route == null) {
+            sendResponse(exchange, 404, "Unknown Service Path".getBytes());
+            return;
+        }
+        Service service = route.target();
+        boolean user = service == Service.USER || service == Service.USER_ITEM;
+        targetBaseUrl = user ? userServiceUrl : productServiceUrl;
+        String target = user ? "UserService" : "ProductService";
         URI targetUri = URI.create(targetBaseUrl + path);
 
-        System.out.println("[ISCS] Routing to: " + targetUri);
+        if(Log.debugEnabled()){
+            Log.debug("[ISCS] Routing to: " + targetUri);
+        }
+        if(cache != null && (service == Service.USER_ITEM || service == Service.PRODUCT_ITEM)){
+            forwardRevalidating(exchange, path, targetUri, target);
+            return;
+        }
+        if(streaming){
+            forwardStreaming(exchange, method, targetUri, target);
+            return;
+        }
         try {
             HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(targetUri);
+            passRequestHeaders(exchange, requestBuilder);
 
             if(method.equalsIgnoreCase("POST")){
                 byte[] body = exchange.getRequestBody().readAllBytes();
@@ -105,9 +185,12 @@ public class ISCSHandler implements HttpHandler {
             }else{
                 requestBuilder.GET();
             }
-            HttpRequest request = requestBuilder.build();
-            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
-            sendResponse(exchange, response.statusCode(), response.body());
+            HttpResponse<byte[]> response = Tracing.send(client, target, requestBuilder, HttpResponse.BodyHandlers.ofByteArray());
+            // A body the backend compressed is relayed without inflating it
+            exchange.getResponseHeaders().set("Content-Type","application/json");
+            response.headers().firstValue("ETag").ifPresent(etag -> exchange.getResponseHeaders().set("ETag", etag));
+            ResponseCompression.sendEncoded(exchange, response.statusCode(), response.body(),
+                    response.headers().firstValue("Content-Encoding").orElse(null));
         } catch (Exception e) {
 
             byte[] error = "{}".getBytes();
@@ -116,6 +199,141 @@ public class ISCSHandler implements HttpHandler {
         }
     }
 
+    /**
+     * Forwards the request without holding either body in memory.
+     * The client's request body is handed to the backend as a publisher that reads from the exchange,
+     * and the backend's response is copied into the exchange as its chunks arrive. Memory per request
+     * stays at one copy buffer no matter how large the payload is.
+     * @param exchange The current HTTP exchange
+     * @param method The HTTP verb of the original request
+     * @param targetUri The backend URI to forward to
+     * @param target The name of the backend service, for the metrics
+     * @throws IOException If the response cannot be written to the stream
+     */
+    private void forwardStreaming(HttpExchange exchange, String method, URI targetUri, String target) throws IOException {
+        try {
+            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(targetUri);
+            passRequestHeaders(exchange, requestBuilder);
+            if(method.equalsIgnoreCase("POST")){
+                HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.ofInputStream(exchange::getRequestBody);
+                // Keep the original length when the client sent one, otherwise the backend receives it chunked
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                if(length != null){
+                    long contentLength = Long.parseLong(length.trim());
+                    // fromPublisher rejects a length of 0, and an empty body has nothing to stream anyway
+                    body = contentLength == 0 ? HttpRequest.BodyPublishers.noBody()
+                            : HttpRequest.BodyPublishers.fromPublisher(body, contentLength);
+                }
+                requestBuilder.POST(body);
+                requestBuilder.header("Content-Type", "application/json");
+            }else{
+                requestBuilder.GET();
+            }
+            HttpResponse<InputStream> response = Tracing.send(client, target, requestBuilder, HttpResponse.BodyHandlers.ofInputStream());
+
+            // A known length is passed on as is; 0 tells the server to use chunked encoding, -1 means no body
+            OptionalLong declared = response.headers().firstValueAsLong("Content-Length");
+            long length = declared.isEmpty() ? 0 : (declared.getAsLong() == 0 ? -1 : declared.getAsLong());
+            if(response.statusCode() == 304){
+                length = -1;
+            }
+            exchange.getResponseHeaders().set("Content-Type","application/json");
+            // The backend negotiated the encoding with the client's Accept-Encoding; its bytes are copied as they are
+            response.headers().firstValue("Content-Encoding").ifPresent(coding -> exchange.getResponseHeaders().set("Content-Encoding", coding));
+            response.headers().firstValue("Vary").ifPresent(vary -> exchange.getResponseHeaders().set("Vary", vary));
+            response.headers().firstValue("ETag").ifPresent(etag -> exchange.getResponseHeaders().set("ETag", etag));
+            exchange.sendResponseHeaders(response.statusCode(), length);
+            try (InputStream in = response.body(); OutputStream os = exchange.getResponseBody()){
+                in.transferTo(os);
+            }
+        } catch (Exception e) {
+            if(exchange.getResponseCode() == -1){
+                sendResponse(exchange, 400, "{}".getBytes());
+            }else{
+                // Headers are already on the wire, so the only thing left is to cut the response short
+                exchange.close();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forwards a GET for a single user or product through the cache. The backend is always asked, but
+     * with the cached entry's ETag, so while the entry is current it answers 304 without serializing
+     * or sending the body, and the cached body is used. The requester's own If-None-Match is then
+     * checked against the ETag, so it can get a 304 as well.
+     * @param exchange The current HTTP exchange
+     * @param path The request path, which is the cache key
+     * @param targetUri The backend URI to forward to
+     * @param target The name of the backend service, for the metrics
+     * @throws IOException If the response cannot be written to the stream
+     */
+    private void forwardRevalidating(HttpExchange exchange, String path, URI targetUri, String target) throws IOException {
+        CachedResponse cached;
+        synchronized (cache) {
+            cached = cache.get(path);
+        }
+        try {
+            // No Accept-Encoding: the cache keeps the plain body and compresses it for each requester
+            HttpRequest.Builder requestBuilder = HttpRequest.newBuilder().uri(targetUri).GET();
+            if(cached != null){
+                requestBuilder.header("If-None-Match", cached.etag);
+            }
+            HttpResponse<byte[]> response = Tracing.send(client, target, requestBuilder, HttpResponse.BodyHandlers.ofByteArray());
+            int status = response.statusCode();
+            String etag = response.headers().firstValue("ETag").orElse(null);
+            byte[] body = response.body();
+            if(status == 304 && cached != null){
+                status = 200;
+                etag = cached.etag;
+                body = cached.body;
+            }else if(status == 200 && etag != null){
+                synchronized (cache) {
+                    cache.put(path, new CachedResponse(etag, body));
+                }
+            }else{
+                synchronized (cache) {
+                    cache.remove(path);
+                }
+            }
+            if(status == 200 && etag != null && ETags.notModified(exchange, etag)){
+                return;
+            }
+            sendResponse(exchange, status, body);
+        } catch (Exception e) {
+            if(e instanceof InterruptedException){
+                Thread.currentThread().interrupt();
+            }
+            Log.warn("Revalidating " + path + " with " + target + " failed: " + e);
+            if(exchange.getResponseCode() == -1){
+                sendResponse(exchange, 400, "{}".getBytes());
+            }else{
+                // Headers are already on the wire, so the only thing left is to cut the response short
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Relays a lookup that arrived over the internal binary transport to the backend that owns it.
+     * The frame payload is passed through untouched, so ISCS never decodes the user or product.
+     * @param request the request frame from the order service
+     * @return the backend's reply, re-tagged with the caller's request id
+     * @throws Exception If the backend cannot be reached or does not answer in time
+     */
+    public RpcFrame handleRpc(RpcFrame request) throws Exception {
+        RpcClient target;
+        if(request.getOp() == RpcFrame.OP_GET_USER){
+            target = userRpc;
+        }else if(request.getOp() == RpcFrame.OP_GET_PRODUCT){
+            target = productRpc;
+        }else{
+            return request.reply(RpcFrame.STATUS_BAD_REQUEST, null);
+        }
+        RpcFrame reply = target.call(request.getOp(), request.getPayload()).get(5, TimeUnit.SECONDS);
+        return request.reply(reply.getStatus(), reply.getPayload());
+    }
+
     /**
      * Send an HTTP response back to the requester.
      * Sets the Content-Type to application/json and writes the provided byte array to the response body
@@ -129,46 +347,46 @@ public class ISCSHandler implements HttpHandler {
         // what kind of package it is about to receive
         // By setting the Content-Type to application/json ensure that the receiver knows to
         exchange.getResponseHeaders().set("Content-Type","application/json");
-        // set the status (like 200) and how much is coming
-        exchange.sendResponseHeaders(statusCode, response.length);
-        // This opens the pipe that connect the service back to the requester (the order service or the workload generator)
-        try (OutputStream os = exchange.getResponseBody()){
-            // This pushes the byte array (the actual JSON data) through that pipe
-            os.write(response);
-            // Becuase it is inside the try block, os.close() is auto called
+        // Sets the status and length, compressing the body if the requester accepts it, and writes it
+        ResponseCompression.send(exchange, statusCode, response);
+    }
+
+    /**
+     * Forwards the requester's Accept-Encoding, so the backend can compress the response and ISCS
+     * only has to relay it, and its If-None-Match, so the backend can answer 304.
+     */
+    private static void passRequestHeaders(HttpExchange exchange, HttpRequest.Builder requestBuilder) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if(acceptEncoding != null){
+            requestBuilder.header("Accept-Encoding", acceptEncoding);
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if(ifNoneMatch != null){
+            requestBuilder.header("If-None-Match", ifNoneMatch);
         }
     }
 
     // Only for shutdown, restart and clear
     private void handleInternalSignal(HttpExchange exchange, String path) throws IOException {
-        System.out.println("Run the handleInternalSignal method");
         String command = "";
         if (path.contains("shutdown")) command = "shutdown";
         else if (path.contains("restart")) command = "restart";
         else if (path.contains("clear")) command = "clear";
-        System.out.println("[ISCS] Propagating " + command + " to all backends...");
-        forwardShutdown(userServiceUrl + "/user/internal/" + command);
-        forwardShutdown(productServiceUrl + "/product/internal/" + command);
-        sendResponse(exchange, 200, ("{\"status\": \"" + command + " processed\"}").getBytes());
-        if (command.equals("shutdown")) {
-            System.out.println("Enter the if statement; Shutdown the ISCS");
-            new Thread(() -> {
-                try {
-                    Thread.sleep(1000); // Give enough time for the forward calls to finish
-                    System.out.println("[ISCS] Final Shutdown.");
-                    System.exit(0);
-                } catch (Exception ignored) {}
-            }).start();
+        Log.info("[ISCS] Propagating " + command + " to all backends...");
+        // All backends at once; returns when the slowest one acknowledges or the caller's deadline is near
+        ControlPlane.Result result = controlPlane.broadcast(command, controlPlane.forwardDeadline(exchange));
+        if (command.equals("clear") && cache != null) {
+            synchronized (cache) {
+                cache.clear();
+            }
         }
-    }
-
-
-    private void forwardShutdown(String url){
-        try{
-            HttpRequest req = HttpRequest.newBuilder().uri(URI.create(url)).GET().build();
-            client.send(req, HttpResponse.BodyHandlers.discarding());
-        }catch (Exception e){
-
+        String json = String.format("{\"status\": \"%s processed\", \"acked\": %d, \"failed\": %d}",
+                command, result.getAcked().size(), result.getFailed().size());
+        sendResponse(exchange, result.allAcked() ? 200 : 504, json.getBytes());
+        if (command.equals("shutdown")) {
+            Log.info("[ISCS] Final Shutdown.");
+            ServiceLifecycle.shutdownAsync();
         }
     }
 }
+
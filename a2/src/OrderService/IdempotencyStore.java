@@ -0,0 +1,297 @@
+package OrderService;
+
+import Utils.DatabaseManager;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * IdempotencyStore remembers the response of every POST /order that carried an Idempotency-Key,
+ * so a retried or hedged request gets the original response instead of placing a second order.
+ *
+ * <p>Recent responses are kept in memory, bounded in size and evicted after the TTL. A committed order
+ * also has its response stored in the idempotency_keys table in the same transaction as the order
+ * (see DatabaseManager), so the key survives a restart and is shared by every OrderService instance.
+ * Two requests with the same key that arrive at the same time are handled once: the second waits for
+ * the first and replays its response.</p>
+ *
+ * <p>Every key is stored with a fingerprint of the request body. A key sent again with a different body
+ * is rejected with 422 instead of replaying a response that belongs to another request. A key past its
+ * TTL counts as unused, whether or not the purge has deleted it yet.</p>
+ */
+public class IdempotencyStore {
+    /**
+     * The longest time a duplicate waits for the original request to finish
+     */
+    private static final long IN_FLIGHT_WAIT_SECONDS = 10;
+
+    private final long ttlMs;
+    private final Map<String, Entry> completed;
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * An Idempotency-Key together with the fingerprint of the request that carried it.
+     */
+    public static class Key {
+        private final String value;
+        private final String fingerprint;
+        private final long notBefore;
+
+        private Key(String value, String fingerprint, long notBefore) {
+            this.value = value;
+            this.fingerprint = fingerprint;
+            this.notBefore = notBefore;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return the time (in epoch milliseconds) before which a stored key has expired
+         */
+        public long getNotBefore() {
+            return notBefore;
+        }
+
+        /**
+         * @return true if the stored response was produced by a request with the same body. Keys stored
+         *         before fingerprints were recorded match any body.
+         */
+        public boolean matches(Response stored) {
+            return stored.fingerprint == null || stored.fingerprint.equals(fingerprint);
+        }
+    }
+
+    /**
+     * A response that can be sent again.
+     */
+    public static class Response {
+        private final int status;
+        private final byte[] body;
+        private final String fingerprint;
+        private final boolean replay;
+
+        public Response(int status, byte[] body) {
+            this(status, body, null, true);
+        }
+
+        /**
+         * @param fingerprint the fingerprint of the request that produced the response, or null if unknown
+         */
+        public Response(int status, byte[] body, String fingerprint) {
+            this(status, body, fingerprint, true);
+        }
+
+        private Response(int status, byte[] body, String fingerprint, boolean replay) {
+            this.status = status;
+            this.body = body;
+            this.fingerprint = fingerprint;
+            this.replay = replay;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return true for the response of an earlier request, false for a conflict reported by the store
+         */
+        public boolean isReplay() {
+            return replay;
+        }
+    }
+
+    private static class Entry {
+        private final Response response;
+        private final String fingerprint;
+        private final long expiresAt;
+
+        Entry(Response response, String fingerprint, long expiresAt) {
+            this.response = response;
+            this.fingerprint = fingerprint;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class InFlight {
+        private final String fingerprint;
+        private final CompletableFuture<Response> response = new CompletableFuture<>();
+
+        InFlight(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Creates the store and starts purging expired keys from the database once a minute.
+     * @param maxEntries the most responses kept in memory
+     * @param ttlSeconds how long a key is remembered
+     */
+    public IdempotencyStore(int maxEntries, int ttlSeconds) {
+        this.ttlMs = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.completed = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        ScheduledExecutorService purger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "idempotency-purger");
+            t.setDaemon(true);
+            return t;
+        });
+        purger.scheduleAtFixedRate(() -> DatabaseManager.purgeIdempotencyKeys(System.currentTimeMillis() - ttlMs),
+                1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Builds the key of a request.
+     *
+     * @param value the Idempotency-Key header
+     * @param requestBody the raw request body, fingerprinted so the key cannot be reused for another request
+     * @return the key
+     */
+    public Key key(String value, byte[] requestBody) {
+        return new Key(value, fingerprint(requestBody), System.currentTimeMillis() - ttlMs);
+    }
+
+    /**
+     * Starts handling a request with the given key.
+     *
+     * @param key the Idempotency-Key of the request
+     * @return the response to send instead of handling the request: the earlier response to replay, or a
+     *         conflict. Null if the caller must handle the request and then call {@link #complete(Key, Response)}
+     * @throws InterruptedException if interrupted while waiting for a concurrent request with the same key
+     */
+    public Response begin(Key key) throws InterruptedException {
+        Response response = cached(key);
+        if (response != null) {
+            return response;
+        }
+        InFlight mine = new InFlight(key.getFingerprint());
+        InFlight original = inFlight.putIfAbsent(key.getValue(), mine);
+        if (original != null) {
+            if (!original.fingerprint.equals(key.getFingerprint())) {
+                return mismatch();
+            }
+            try {
+                Response replay = original.response.get(IN_FLIGHT_WAIT_SECONDS, TimeUnit.SECONDS);
+                if (replay != null) {
+                    return replay;
+                }
+            } catch (TimeoutException e) {
+                return conflict(409, "Request with this Idempotency-Key is still in progress");
+            } catch (ExecutionException e) {
+                // Never completed exceptionally; treated like a missing response
+            }
+            // The original finished without a response worth replaying, so this request is handled afresh
+            return begin(key);
+        }
+        // Another instance, or this one before a restart, may have committed the key
+        Response stored = DatabaseManager.getIdempotentResponse(key.getValue(), key.getNotBefore());
+        if (stored != null) {
+            if (!key.matches(stored)) {
+                complete(key, null);
+                return mismatch();
+            }
+            complete(key, stored);
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Returns what to answer for a key that a committed order already holds.
+     *
+     * @param key the key of the request
+     * @param stored the response stored for the key, or null if there is none (any more)
+     * @return the stored response if it belongs to the same request, otherwise a conflict
+     */
+    public static Response replayFor(Key key, Response stored) {
+        if (stored == null) {
+            return conflict(409, "Idempotency-Key already used");
+        }
+        return key.matches(stored) ? stored : mismatch();
+    }
+
+    /**
+     * Records the response of a request started with {@link #begin(Key)} and releases any duplicates
+     * waiting for it. Server errors are not remembered, so a retry is handled again.
+     *
+     * @param key the Idempotency-Key of the request
+     * @param response the response that was sent, or null if none was
+     */
+    public void complete(Key key, Response response) {
+        boolean remembered = response != null && response.isReplay() && response.getStatus() < 500;
+        if (remembered) {
+            synchronized (completed) {
+                completed.put(key.getValue(), new Entry(response, key.getFingerprint(), System.currentTimeMillis() + ttlMs));
+            }
+        }
+        InFlight waiting = inFlight.remove(key.getValue());
+        if (waiting != null) {
+            waiting.response.complete(remembered ? response : null);
+        }
+    }
+
+    /**
+     * Forgets every key held in memory. Called when the database is cleared.
+     */
+    public void clear() {
+        synchronized (completed) {
+            completed.clear();
+        }
+    }
+
+    private Response cached(Key key) {
+        synchronized (completed) {
+            Entry entry = completed.get(key.getValue());
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiresAt < System.currentTimeMillis()) {
+                completed.remove(key.getValue());
+                return null;
+            }
+            return entry.fingerprint.equals(key.getFingerprint()) ? entry.response : mismatch();
+        }
+    }
+
+    private static Response mismatch() {
+        return conflict(422, "Idempotency-Key was already used with a different request");
+    }
+
+    private static Response conflict(int status, String message) {
+        return new Response(status, ("{\"status\": \"" + message + "\"}\n").getBytes(StandardCharsets.UTF_8), null, false);
+    }
+
+    private static String fingerprint(byte[] requestBody) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(requestBody);
+            return Base64.getEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package OrderService;
 
+import Utils.BinaryCodec;
+import Utils.JsonWriter;
 
 /**
  * Represents an order with a unique id.
@@ -35,6 +37,10 @@ public class Order implements java.io.Serializable {
      * The unique ID assigned to this specific order instance
      */
     private int id;
+    /**
+     * The version of the order's row; it changes when the status does
+     */
+    private long version;
 
     /**
      * Initializes a new Order.
@@ -76,6 +82,24 @@ public class Order implements java.io.Serializable {
         return id;
     }
 
+    /**
+     * Returns the version of the row this order was read from, which changes with every write
+     *
+     * @return the version, or 0 if the order was not read from the database
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the row this order was read from
+     *
+     * @param version the version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     public void setId(int id) {
         this.id = id;
     }
@@ -122,15 +146,54 @@ public class Order implements java.io.Serializable {
      * @return a JSON string containing the order's id, product id, user id, quantity and status
      */
     public String toJson(){
-        String result = String.format("{\n" +
-                        "    \"id\": %d,\n" +
-                        "    \"product_id\": %d,\n" +
-                        "    \"user_id\": %d,\n" +
-                        "    \"quantity\": %d,\n" +
-                        "    \"status\": \"%s\"\n" +
-                        "}",
-                id, this.product_id, this.user_id, this.quantity, status);
-        return result;
+        return writeJson(new JsonWriter()).toString();
+    }
+
+    /**
+     * Writes the order information in json format, as {@link #toJson()} returns it.
+     *
+     * @param json the writer to append to
+     * @return the writer
+     */
+    public JsonWriter writeJson(JsonWriter json){
+        return json.raw("{\n    \"id\": ").value(id)
+                .raw(",\n    \"product_id\": ").value(this.product_id)
+                .raw(",\n    \"user_id\": ").value(this.user_id)
+                .raw(",\n    \"quantity\": ").value(this.quantity)
+                .raw(",\n    \"status\": ").string(status)
+                .raw("\n}");
+    }
+
+    /**
+     * Encodes the order for the internal binary transport.
+     *
+     * @return the encoded order, as {@link #fromBinary(byte[])} reads it
+     */
+    public byte[] toBinary() {
+        return BinaryCodec.encode(32, out -> {
+            out.writeInt(this.id);
+            out.writeInt(this.product_id);
+            out.writeInt(this.user_id);
+            out.writeInt(this.quantity);
+            BinaryCodec.writeString(out, this.status);
+        });
+    }
+
+    /**
+     * Decodes an order written by {@link #toBinary()}.
+     *
+     * @param payload the payload
+     * @return the order
+     */
+    public static Order fromBinary(byte[] payload) {
+        return BinaryCodec.decode(payload, in -> {
+            int id = in.readInt();
+            int productId = in.readInt();
+            int userId = in.readInt();
+            int quantity = in.readInt();
+            String status = BinaryCodec.readString(in);
+            return new Order(id, productId, userId, quantity, status);
+        });
     }
 
     /**
@@ -1,22 +1,44 @@
 package OrderService;
 
+import ProductService.Product;
+import Utils.BinaryCodec;
 import Utils.ConfigReader;
+import Utils.ControlPlane;
 import Utils.DatabaseManager;
+import Utils.ETags;
+import Utils.IdAllocator;
 import Utils.PersistenceManager;
+import Utils.RpcClient;
+import Utils.RpcFrame;
+import Utils.JsonReader;
+import Utils.JsonWriter;
+import Utils.Log;
+import Utils.ResponseCompression;
+import Utils.Router;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Handles the given order request and generates an appropriate response.
@@ -32,9 +54,84 @@ public class OrderHandler implements HttpHandler {
      * The HTTP client used for backend.
      */
     private final HttpClient client;
+    /**
+     * Binary transport client for internal lookups through ISCS; null when the internal RPC is disabled
+     */
+    private final RpcClient iscsRpc;
+    /**
+     * Sends shutdown/restart/clear to the rest of the cluster and collects the acknowledgements
+     */
+    private final ControlPlane controlPlane;
+    /**
+     * True when this service shares storage with the user and product services, so orders are
+     * validated and committed in one local transaction instead of through ISCS
+     */
+    private final boolean colocated;
+    /**
+     * Queues orders and commits them in the background; null unless asyncOrders is enabled
+     */
+    private final OrderIngestion ingestion;
+    /**
+     * Serializes the stock changes of each product, so orders for one hot product wait here
+     * instead of contending for the same row in SQLite
+     */
+    private final ProductLocks productLocks;
+    /**
+     * Responses of orders placed with an Idempotency-Key, so retries are answered without ordering twice
+     */
+    private final IdempotencyStore idempotency;
+    /**
+     * Set while an order with an Idempotency-Key is handled, so sendResponse can record what was sent
+     */
+    private static final ThreadLocal<IdempotencyStore.Response[]> recordedResponse = new ThreadLocal<>();
+    /**
+     * The longest Idempotency-Key accepted
+     */
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    /**
+     * The most lines accepted in one cart
+     */
+    private static final int MAX_CART_LINES = 100;
+    /**
+     * Page size of the order history when the request does not give one, and the largest allowed
+     */
+    private static final int DEFAULT_HISTORY_LIMIT = 50;
+    private static final int MAX_HISTORY_LIMIT = 500;
+    /**
+     * Units sold per product per minute, for GET /product/top
+     */
+    private final SalesCounters salesCounters = new SalesCounters();
+    /**
+     * Window and size of the top sellers when the request does not give them, and the largest size allowed
+     */
+    private static final int DEFAULT_TOP_WINDOW_MINUTES = 60;
+    private static final int DEFAULT_TOP_K = 10;
+    private static final int MAX_TOP_K = 100;
 
     private static boolean isFirstRequest = true;
 
+    /**
+     * What the OrderService answers itself; every other request is forwarded to ISCS
+     */
+    private enum Route {
+        RESTART, CLEAR, SHUTDOWN, USER_PURCHASED, GET_ORDER, USER_ORDERS, TOP_PRODUCTS, CANCEL_ORDER, POST_ORDER
+    }
+
+    private static final Router<Route> ROUTES = new Router<Route>(true)
+            .add(Router.ANY, "/restart", Route.RESTART)
+            .add(Router.ANY, "/clear", Route.CLEAR)
+            .add(Router.ANY, "/shutdown", Route.SHUTDOWN)
+            .add("GET", "/user/purchased", Route.USER_PURCHASED)
+            .add("GET", "/user/purchased/{id}", Route.USER_PURCHASED)
+            .add("GET", "/user/{id}/orders", Route.USER_ORDERS)
+            .add("GET", "/order", Route.GET_ORDER)
+            .add("GET", "/order/{id}", Route.GET_ORDER)
+            .add("GET", "/product/top", Route.TOP_PRODUCTS)
+            .add("DELETE", "/order", Route.CANCEL_ORDER)
+            .add("DELETE", "/order/{id}", Route.CANCEL_ORDER)
+            .add("POST", "/order", Route.POST_ORDER)
+            .add("POST", "/order/{*}", Route.POST_ORDER);
+
 
     /**
      * The constructor of OrderHandler. It constructs an Orderhandler by resolving the
@@ -52,6 +149,34 @@ public class OrderHandler implements HttpHandler {
 
         this.iscsUrl = "http://" + cleanIp + ":" + port;
         this.client = HttpClient.newHttpClient();
+        if(ConfigReader.getBoolean(configFile, "InternalRpc", "enabled", false)){
+            int rpcPort = ConfigReader.getInt(configFile, "InterServiceCommunication", "rpcPort", port + 100);
+            this.iscsRpc = new RpcClient(cleanIp, rpcPort);
+        }else{
+            this.iscsRpc = null;
+        }
+        // ISCS fans the command out to the backends and acknowledges once they have
+        this.controlPlane = new ControlPlane(client, ConfigReader.getInt(configFile, "ControlPlane", "ackTimeoutMs", 2000));
+        controlPlane.register("ISCS", iscsUrl + "/internal/");
+        this.colocated = ConfigReader.getBoolean(configFile, "OrderService", "colocated", false);
+        this.productLocks = new ProductLocks(ConfigReader.getInt(configFile, "OrderService", "lockStripes", 64));
+        DatabaseManager.addOrderListener(salesCounters::onOrderEvent);
+        this.idempotency = new IdempotencyStore(
+                ConfigReader.getInt(configFile, "OrderService", "idempotencyMaxKeys", 100000),
+                ConfigReader.getInt(configFile, "OrderService", "idempotencyTtlSeconds", 86400));
+        if(ConfigReader.getBoolean(configFile, "OrderService", "asyncOrders", false)){
+            // Co-located workers check the user inside the commit transaction instead of through ISCS
+            OrderIngestion.UserCheck userCheck = colocated ? null
+                    : userId -> lookupUserAsync(String.valueOf(userId)).thenApply(status -> status == 200);
+            this.ingestion = new OrderIngestion(
+                    ConfigReader.getString(configFile, "OrderService", "ingestLog", "order_ingest.log"),
+                    ConfigReader.getInt(configFile, "OrderService", "ingestWorkers", 2),
+                    ConfigReader.getInt(configFile, "OrderService", "ingestBatchSize", 100),
+                    userCheck, productLocks);
+            ServiceLifecycle.addFlushHook(ingestion::close);
+        }else{
+            this.ingestion = null;
+        }
     }
 
     /**
@@ -68,24 +193,24 @@ public class OrderHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
         String method = exchange.getRequestMethod();
         byte[] requestBody = exchange.getRequestBody().readAllBytes();
-        String bodyString = new String(requestBody, StandardCharsets.UTF_8);
         String path = exchange.getRequestURI().getPath();
-        String temp_path = path.toLowerCase();
-        System.out.println("The Order handle method: " );
-        System.out.println("method "+ method);
-        System.out.println("The bodyString: "+ bodyString);
+        Router.Match<Route> route = ROUTES.match(method, path);
+        Route target = route == null ? null : route.target();
+        if(Log.debugEnabled()){
+            Log.debug("[Order] " + method + " " + path + ", body: " + requestBody.length + " bytes");
+        }
         try {
             if (isFirstRequest){
                 isFirstRequest = false;
-                if (temp_path.equals("/restart")){
+                if (target == Route.RESTART){
                     // Keep the database
-                    System.out.println("OrderService: First is Restart. Persisting data.");
+                    Log.info("OrderService: First is Restart. Persisting data.");
                     signalInternalServices("restart");
                     sendResponse(exchange, 200, "{\"status\": \"Restarted\"}".getBytes());
                     return;
-                }else if(temp_path.equals("/clear")){
-                    System.out.println("OrderService: First request is " + path + ". Wiping DB.");
-                    DatabaseManager.clearAllData();
+                }else if(target == Route.CLEAR){
+                    Log.info("OrderService: First request is " + path + ". Wiping DB.");
+                    clearOrders();
                     signalInternalServices("clear");
                     sendResponse(exchange, 200, "{\"status\": \"Database cleared\"}".getBytes());
                     return;
@@ -99,54 +224,53 @@ public class OrderHandler implements HttpHandler {
 
             // if it is not the first request, we still signal others
             // do nothing to the database
-            if(temp_path.equals("/restart")){
-                signalInternalServices("restart");
-                sendResponse(exchange, 200, "{\"status\": \"Restarted\"}".getBytes());
-                return;
-
-            }
-
-            if (temp_path.equals("/clear")) {
-                DatabaseManager.clearAllData();
-                signalInternalServices("clear");
-                sendResponse(exchange, 200, "{\"status\": \"Database cleared\"}".getBytes());
-                return;
-            }
-
-            if (temp_path.equals("/shutdown")){
-                System.out.println("OrderService: Shutting down all services");
-                signalInternalServices("shutdown");
-                sendResponse(exchange, 200, "{\"status\": \"Shutting down\"}".getBytes());
-                new Thread(() -> {
-                    try { Thread.sleep(500); System.exit(0); }
-                    catch (Exception ignored) {}
-                }).start();
+            if(target == null){
+                // Users and products are served by their own services
+                forwardToISCS(exchange,method,path,requestBody);
                 return;
             }
-
-
-
-            if(method.equalsIgnoreCase("GET") ){
-                if(path.startsWith("/user/purchased/")){
-                    handleUserPurchased(exchange,path);
+            switch (target){
+                case RESTART:
+                    signalInternalServices("restart");
+                    sendResponse(exchange, 200, "{\"status\": \"Restarted\"}".getBytes());
                     return;
-                }else if(path.startsWith("/order/")){
-                    handleGetOrder(exchange, path);
+                case CLEAR:
+                    clearOrders();
+                    signalInternalServices("clear");
+                    sendResponse(exchange, 200, "{\"status\": \"Database cleared\"}".getBytes());
                     return;
-                }else if(path.startsWith("/user/")){
-                    handleGetUser(exchange, method, path, requestBody);
+                case SHUTDOWN:
+                    Log.info("OrderService: Shutting down all services");
+                    signalInternalServices("shutdown");
+                    sendResponse(exchange, 200, "{\"status\": \"Shutting down\"}".getBytes());
+                    ServiceLifecycle.shutdownAsync();
                     return;
-                }
-                else if(path.startsWith("/product/")){
-                    handleGetProduct(exchange, method, path, requestBody);
+                case USER_PURCHASED:
+                    handleUserPurchased(exchange, route);
+                    return;
+                case GET_ORDER:
+                    handleGetOrder(exchange, route);
+                    return;
+                case USER_ORDERS:
+                    handleUserOrders(exchange, route);
+                    return;
+                case TOP_PRODUCTS:
+                    handleTopProducts(exchange);
+                    return;
+                case CANCEL_ORDER:
+                    handleCancelOrder(exchange, route);
+                    return;
+                case POST_ORDER:
+                    JsonReader body = JsonReader.forThread();
+                    body.parse(requestBody);
+                    if(body.isString("command", "place order")){
+                        handlePlaceOrderOnce(exchange, body, requestBody, this::handlePlaceOrder);
+                    }else if(body.isString("command", "place cart")){
+                        handlePlaceOrderOnce(exchange, body, requestBody, this::handlePlaceCart);
+                    }else{
+                        forwardToISCS(exchange,method,path,requestBody);
+                    }
                     return;
-                }
-            }else if(method.equalsIgnoreCase("DELETE")&& path.startsWith("/order/")){
-                handleCancelOrder(exchange, path);
-            } else if(method.equalsIgnoreCase("POST") && path.startsWith("/order")  && bodyString.contains("place order")){
-                handlePlaceOrder(exchange, bodyString);
-            }else{
-                forwardToISCS(exchange,method,path,requestBody);
             }
         }catch (Exception e){
             try {
@@ -156,47 +280,52 @@ public class OrderHandler implements HttpHandler {
         }
     }
 
-    private void handleGetUser(HttpExchange exchange, String method, String path, byte[] requestBody) throws IOException {
-        try {
-            // The assignment says OrderService handles user functionality by forwarding.
-            forwardToISCS(exchange, method, path, requestBody);
-        } catch (InterruptedException e) {
-            sendError(exchange, 500, "Internal Server Error");
+    private void clearOrders() throws SQLException, IOException {
+        if(ingestion != null){
+            // The ingestion workers are held while the database is cleared
+            ingestion.clear(DatabaseManager::clearAllData);
+        }else{
+            DatabaseManager.clearAllData();
         }
+        idempotency.clear();
+        salesCounters.clear();
     }
 
-    private void handleGetProduct(HttpExchange exchange, String method, String path, byte[] requestBody) throws IOException {
-        try {
-            forwardToISCS(exchange, method, path, requestBody);
-        } catch (InterruptedException e) {
-            sendError(exchange, 500, "Internal Server Error");
-        }
-    }
+
     /**
      * Get order information based on order id
      *
      * <p><b>Responses:</b>
      * <ul>
-     *   <li>{@code 200}: order information found success; response body is {@code order.toJson().getBytes()}</li>
+     *   <li>{@code 200}: order information found success; response body is {@code order.toJson().getBytes()}.
+     *   The status is Pending or Failed for an order accepted with asyncOrders that is not committed.
+     *   A committed order has an ETag</li>
+     *   <li>{@code 304}: the request's If-None-Match holds the order's current ETag; no body</li>
      *   <li>{@code 400}: missing fields or invalid field type/value; response body is {@code {}}</li>
      *   <li>{@code 404}: order not found; response body is {@code {}}</li>
      * </ul>
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
-     * @param path the request URI path; must be non-null
+     * @param route the matched route; its parameter, if any, is the order id
      * @throws IOException if an I/O error occurs while sending the response
      */
-    private void handleGetOrder(HttpExchange exchange, String path) throws IOException {
-        String[] parts = path.split("/");
-        if (parts.length < 3){
+    private void handleGetOrder(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        if (route.paramCount() < 1){
             sendError(exchange,400, "{}");
             return;
         }
         try {
-            int orderId = Integer.parseInt(parts[2]);
-            Order order = DatabaseManager.getOrderById(orderId);
+            int orderId = route.intParam(0);
+            Order order = ingestion != null ? ingestion.getOrder(orderId) : null;
+            if(order == null){
+                order = DatabaseManager.getOrderById(orderId);
+                // Only a committed order has a version; a pending one is not tagged
+                if(order != null && ETags.notModified(exchange, ETags.of("o", order.getId(), order.getVersion()))){
+                    return;
+                }
+            }
             if(order != null){
-                sendResponse(exchange, 200, order.toJson().getBytes());
+                sendResponse(exchange, 200, order.writeJson(JsonWriter.forThread()));
             }else{
                 sendError(exchange, 404, "{}");
             }
@@ -217,18 +346,22 @@ public class OrderHandler implements HttpHandler {
      * </ul>
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
-     * @param path the request URI path; must be non-null
+     * @param route the matched route; its parameter, if any, is the order id
      * @throws IOException if an I/O error occurs while sending the response
      */
-    private void handleCancelOrder(HttpExchange exchange, String path) throws IOException {
-        String[] parts = path.split("/");
-        if(parts.length < 3){
+    private void handleCancelOrder(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        if(route.paramCount() < 1){
             sendError(exchange, 400, "Invalid Order ID");
+            return;
         }
 
         try {
-            int orderId = Integer.parseInt(parts[2]);
+            int orderId = route.intParam(0);
             Order order = DatabaseManager.getOrderById(orderId);
+            if(order==null && ingestion != null && ingestion.getOrder(orderId) != null){
+                sendError(exchange, 400, "Order is " + ingestion.getOrder(orderId).getStatus());
+                return;
+            }
             if(order==null){
                 sendError(exchange, 404, "Order not found");
                 return;
@@ -238,30 +371,93 @@ public class OrderHandler implements HttpHandler {
                 sendError(exchange, 400, "Order already cancelled");
                 return;
             }
-            HttpResponse<String> prodRes = client.send(
-                    HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/product/" + order.getProduct_id())).GET().build(),
-                    HttpResponse.BodyHandlers.ofString()
-            );
-
-            if(prodRes.statusCode() == 200){
-                int currentStock = Integer.parseInt(getJsonValue(prodRes.body(), "quantity"));
-                int restoredStock = currentStock + order.getQuantity();
-
-                boolean success = DatabaseManager.cancelOrder(orderId, order.getProduct_id(), restoredStock);
-                if(success){
-                    sendResponse(exchange, 200, "{\"status\": \"Order cancelled and stock restored\"}".getBytes());
-                    return;
-                }else {
-                    sendError(exchange, 500, "Database Transaction Failed");
-                }
-            } else {
+            // Checked through ISCS before the product lock, so a slow backend does not hold the stripe
+            if(lookupProductQuantity(String.valueOf(order.getProduct_id())) == null){
                 sendError(exchange, 404, "Product associated with order no longer exists");
+                return;
+            }
+            // Stock changes of one product go to the database one at a time
+            Boolean cancelled;
+            productLocks.lock(order.getProduct_id());
+            try {
+                cancelled = cancelLocked(orderId, order);
+            } finally {
+                productLocks.unlock(order.getProduct_id());
+            }
+            if(cancelled == null){
+                sendError(exchange, 400, "Order already cancelled");
+            }else if(cancelled){
+                sendResponse(exchange, 200, "{\"status\": \"Order cancelled and stock restored\"}".getBytes());
+            }else {
+                sendError(exchange, 500, "Database Transaction Failed");
             }
         }catch (Exception e){
             sendError(exchange, 400, "{}");
         }
     }
 
+    /**
+     * Cancels an order and gives its stock back. Must be called while holding the product lock.
+     *
+     * @return true if cancelled, false if the transaction failed, or null if the order was
+     *         cancelled by a concurrent request while this one waited for the lock
+     */
+    private Boolean cancelLocked(int orderId, Order order) {
+        Order current = DatabaseManager.getOrderById(orderId);
+        if(current == null || "Cancelled".equalsIgnoreCase(current.getStatus())){
+            return null;
+        }
+        return DatabaseManager.cancelOrder(orderId, order.getProduct_id(), order.getUser_id(), order.getQuantity());
+    }
+
+    /**
+     * A place order or place cart handler that takes the request's Idempotency-Key.
+     */
+    private interface KeyedOrderHandler {
+        void handle(HttpExchange exchange, JsonReader body, IdempotencyStore.Key idempotencyKey) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Places an order at most once per Idempotency-Key. Without the header the order is placed as usual.
+     * With it, a key seen before gets the original response again (marked with Idempotent-Replayed),
+     * and the response of a new key is remembered. A committed order stores its response in the same
+     * transaction as the order, so the key also holds across restarts and instances. A key sent again
+     * with a different body gets 422.
+     *
+     * @param exchange the HTTP exchange used to read and write the response; must be non-null
+     * @param body the parsed request body
+     * @param requestBody the raw request body, fingerprinted with the key
+     * @param handler places the order (or cart) described by the body
+     * @throws IOException if an I/O error occurs while sending the response
+     * @throws InterruptedException if interrupted while waiting for a concurrent request with the same key
+     */
+    private void handlePlaceOrderOnce(HttpExchange exchange, JsonReader body, byte[] requestBody,
+                                      KeyedOrderHandler handler) throws IOException, InterruptedException {
+        String header = exchange.getRequestHeaders().getFirst("Idempotency-Key");
+        if(header == null || header.isBlank()){
+            handler.handle(exchange, body, null);
+            return;
+        }
+        if(header.length() > MAX_IDEMPOTENCY_KEY_LENGTH){
+            sendError(exchange, 400, "Invalid Idempotency-Key");
+            return;
+        }
+        IdempotencyStore.Key key = idempotency.key(header, requestBody);
+        IdempotencyStore.Response earlier = idempotency.begin(key);
+        if(earlier != null){
+            sendEarlierResponse(exchange, earlier);
+            return;
+        }
+        IdempotencyStore.Response[] sent = new IdempotencyStore.Response[1];
+        recordedResponse.set(sent);
+        try {
+            handler.handle(exchange, body, key);
+        } finally {
+            recordedResponse.remove();
+            idempotency.complete(key, sent[0]);
+        }
+    }
+
     /**
      * Place an order based on user id and product id if corresponding product has sufficient quantity
      * in stock
@@ -269,24 +465,26 @@ public class OrderHandler implements HttpHandler {
      * <p><b>Responses:</b>
      * <ul>
      *   <li>{@code 200}: order place success; response body is {@code successJson.toJson()}</li>
+     *   <li>{@code 202}: with asyncOrders, the order was queued; response body holds its id and status Pending</li>
      *   <li>{@code 400}: missing fields or invalid field type/value; response body is {@code {}}</li>
      *   <li>{@code 404}: invalid order request; response body is {@code {}}</li>
      * </ul>
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
-     * @param body a JSON string containing the product id, user id, and quantity
+     * @param body the parsed request, containing the product id, user id, and quantity
+     * @param idempotencyKey the request's Idempotency-Key, or null
      * @throws IOException if an I/O error occurs while sending the response
      */
-    private  void  handlePlaceOrder(HttpExchange exchange, String body) throws IOException, InterruptedException {
+    private  void  handlePlaceOrder(HttpExchange exchange, JsonReader body, IdempotencyStore.Key idempotencyKey) throws IOException, InterruptedException {
         try {
-            String userId = getJsonValue(body, "user_id");
-            String productId = getJsonValue(body, "product_id");
+            String userId = body.getString("user_id");
+            String productId = body.getString("product_id");
             // the quantity the order want
-            String quantityStr = getJsonValue(body, "quantity");
+            String quantityStr = body.getString("quantity");
 
             if(userId==null || productId == null || quantityStr == null ||
                     userId.equals("invalid-info") || productId.equals("invalid-info") || quantityStr.equals("invalid-info")){
-                System.out.println("Enter the if statement; something is null");
+                Log.debug("Enter the if statement; something is null");
                 sendError(exchange,400, "Invalid Request");
                 return;
             }
@@ -297,56 +495,367 @@ public class OrderHandler implements HttpHandler {
                 return;
             }
 
-            HttpResponse<String> userRes = client.send(HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/user/" + userId)).GET().build(),
-                    HttpResponse.BodyHandlers.ofString());
-
-            if(userRes.statusCode() == 404){
-                sendError(exchange, 404, "Invalid Request");
+            if(ingestion != null){
+                queueOrder(exchange, productId, userId, quantity, idempotencyKey);
                 return;
             }
 
-            HttpResponse<String> prodRes = client.send(
-                    HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/product/" + productId)).GET().build(),
-                    HttpResponse.BodyHandlers.ofString()
+            if(colocated){
+                placeOrderLocally(exchange, productId, userId, quantity, idempotencyKey);
+            }else{
+                placeOrderRemotely(exchange, productId, userId, quantity, idempotencyKey);
+            }
+        }catch (Exception e){
+            sendError(exchange, 400, "Invalid Request");
+        }
+
+
+    }
+
+    /**
+     * Places an order after validating it through ISCS. The lookups run without the product lock; it
+     * is only held around the commit, whose guarded decrement re-checks the stock anyway, so a slow
+     * backend never holds up other orders for products on the same stripe.
+     *
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param productId the product id from the request
+     * @param userId the user id from the request
+     * @param quantity the quantity ordered; must be positive
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     * @throws IOException if an I/O error occurs while sending the response
+     * @throws InterruptedException if a lookup is interrupted
+     */
+    private void placeOrderRemotely(HttpExchange exchange, String productId, String userId, int quantity,
+                                    IdempotencyStore.Key idempotencyKey) throws IOException, InterruptedException {
+        // Both validations go out at once, so the wait is the slower lookup instead of the sum of the two
+        int availableQuantity;
+        try {
+            availableQuantity = awaitOrderDependencies(lookupUserAsync(userId), lookupProductQuantityAsync(productId));
+        }catch (LookupFailedException e){
+            sendError(exchange, e.status, "Invalid Request");
+            return;
+        }
+        if(quantity > availableQuantity){
+            sendError(exchange, 400, "Exceeded quantity limit");
+            return;
+        }
+
+        // Insead of sending a POST request to /product via ISCS, update the stock directly in the database inside the same
+        // transaction as the order creation. This is faster and safer
+        JsonWriter successJson = orderSuccessJson(Integer.parseInt(productId), Integer.parseInt(userId), quantity);
+        int lockedProduct = Integer.parseInt(productId);
+        DatabaseManager.OrderResult result;
+        // Orders for the same product reach the database one at a time
+        productLocks.lock(lockedProduct);
+        try {
+            result = DatabaseManager.placeOrder(
+                    lockedProduct,
+                    Integer.parseInt(userId),
+                    quantity,
+                    idempotencyKey,
+                    // Only stored when there is a key
+                    idempotencyKey == null ? null : successJson.toString()
             );
+        } finally {
+            productLocks.unlock(lockedProduct);
+        }
+        if(result == DatabaseManager.OrderResult.SUCCESS){
+            sendResponse(exchange, 200, successJson);
+        }else if(result == DatabaseManager.OrderResult.DUPLICATE){
+            sendStoredResponse(exchange, idempotencyKey);
+        }else if(result == DatabaseManager.OrderResult.INSUFFICIENT_STOCK){
+            sendError(exchange, 400, "Exceeded quantity limit");
+        }else {
+            sendError(exchange, 500, "Database Transaction Failed");
+        }
+    }
 
-            if(prodRes.statusCode() == 404){
+    /**
+     * Places an order without any network hop. Used when the order service shares storage with the
+     * user and product services: every check and the commit run in one local transaction.
+     *
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param productId the product id from the request
+     * @param userId the user id from the request
+     * @param quantity the quantity ordered; must be positive
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     * @throws IOException if an I/O error occurs while sending the response
+     */
+    private void placeOrderLocally(HttpExchange exchange, String productId, String userId, int quantity,
+                                   IdempotencyStore.Key idempotencyKey) throws IOException {
+        JsonWriter successJson = orderSuccessJson(Integer.parseInt(productId), Integer.parseInt(userId), quantity);
+        int lockedProduct = Integer.parseInt(productId);
+        DatabaseManager.OrderResult result;
+        productLocks.lock(lockedProduct);
+        try {
+            result = DatabaseManager.placeOrderLocal(lockedProduct, Integer.parseInt(userId), quantity,
+                    idempotencyKey, idempotencyKey == null ? null : successJson.toString());
+        } finally {
+            productLocks.unlock(lockedProduct);
+        }
+        switch (result){
+            case SUCCESS:
+                sendResponse(exchange, 200, successJson);
+                break;
+            case DUPLICATE:
+                sendStoredResponse(exchange, idempotencyKey);
+                break;
+            case USER_NOT_FOUND:
+            case PRODUCT_NOT_FOUND:
                 sendError(exchange, 404, "Invalid Request");
+                break;
+            case INSUFFICIENT_STOCK:
+                sendError(exchange, 400, "Exceeded quantity limit");
+                break;
+            default:
+                sendError(exchange, 500, "Database Transaction Failed");
+        }
+    }
+
+    /**
+     * Accepts an order for background commit. The response only waits for the order to reach the
+     * ingestion log; its outcome is reported later by GET /order/{id}. An Idempotency-Key is stored in
+     * the database with the 202 response before the order is logged, so it holds across restarts.
+     *
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param productId the product id from the request
+     * @param userId the user id from the request
+     * @param quantity the quantity ordered; must be positive
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     * @throws IOException if an I/O error occurs while sending the response
+     */
+    private void queueOrder(HttpExchange exchange, String productId, String userId, int quantity,
+                            IdempotencyStore.Key idempotencyKey) throws IOException {
+        int orderId;
+        try {
+            orderId = IdAllocator.orders().next();
+        }catch (SQLException e){
+            Log.error("Order could not be queued: " + e.getMessage());
+            sendError(exchange, 500, "Order could not be queued");
+            return;
+        }
+        String accepted = "{\"id\": " + orderId + ", \"status\": \"Pending\"}";
+        if(idempotencyKey != null){
+            try {
+                if(!DatabaseManager.claimIdempotencyKey(idempotencyKey, 202, accepted)){
+                    sendStoredResponse(exchange, idempotencyKey);
+                    return;
+                }
+            }catch (SQLException e){
+                Log.error("Idempotency-Key could not be stored: " + e.getMessage());
+                sendError(exchange, 500, "Order could not be queued");
                 return;
             }
-            int availableQuantity = Integer.parseInt(getJsonValue(prodRes.body(), "quantity"));
-            if(quantity > availableQuantity){
-                sendError(exchange, 400, "Exceeded quantity limit");
+        }
+        try {
+            ingestion.accept(orderId, Integer.parseInt(productId), Integer.parseInt(userId), quantity);
+        }catch (IOException e){
+            Log.error("Order could not be queued: " + e.getMessage());
+            if(idempotencyKey != null){
+                DatabaseManager.releaseIdempotencyKey(idempotencyKey.getValue());
+            }
+            sendError(exchange, 500, "Order could not be queued");
+            return;
+        }
+        sendResponse(exchange, 202, accepted.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Places all lines of a cart for one user in a single transaction: either every line is ordered
+     * or none is. The user is validated once and all products are looked up at the same time.
+     * The body looks like
+     * {@code {"command": "place cart", "user_id": 1, "items": [{"product_id": 2, "quantity": 3}, ...]}}.
+     * Carts are always committed synchronously, also when asyncOrders is on.
+     *
+     * <p><b>Responses:</b>
+     * <ul>
+     *   <li>{@code 200}: every line was ordered; response body lists the order created for each line</li>
+     *   <li>{@code 400}: missing fields, invalid values, or not enough stock for a line; nothing is ordered</li>
+     *   <li>{@code 404}: the user or one of the products does not exist; nothing is ordered</li>
+     *   <li>{@code 500}: the cart could not be committed; nothing is ordered</li>
+     *   <li>{@code 502}: a lookup through ISCS failed; nothing is ordered</li>
+     *   <li>{@code 503}: the request was interrupted; nothing is ordered</li>
+     * </ul>
+     *
+     * @param exchange the HTTP exchange used to read and write the response; must be non-null
+     * @param body the parsed request, containing the user id and the cart lines
+     * @param idempotencyKey the request's Idempotency-Key, or null
+     * @throws IOException if an I/O error occurs while sending the response
+     */
+    private void handlePlaceCart(HttpExchange exchange, JsonReader body, IdempotencyStore.Key idempotencyKey) throws IOException {
+        try {
+            String userId = body.getString("user_id");
+            if(userId == null || userId.equals("invalid-info")){
+                sendError(exchange, 400, "Invalid Request");
+                return;
+            }
+            int uid = Integer.parseInt(userId);
+            List<Order> lines = parseCartLines(body, uid);
+            if(lines == null || lines.isEmpty() || lines.size() > MAX_CART_LINES){
+                sendError(exchange, 400, "Invalid Request");
                 return;
             }
 
-            int newStock = availableQuantity-quantity;
-            // Insead of sending a POST request to /product via ISCS, update the stock directly in the database inside the same
-//          // transaction as the order creation. This is faster and safer
-            boolean transactionSuccess = DatabaseManager.placeOrder(
-                    Integer.parseInt(productId),
-                    Integer.parseInt(userId),
-                    quantity,
-                    newStock
-            );
-            if(transactionSuccess){
-                String successJson = String.format(
-                        "{\n" +
-                                "        \"product_id\": %s,\n" +
-                                "        \"user_id\": %s,\n" +
-                                "        \"quantity\": %d,\n" +
-                                "        \"status\": \"Success\"\n" +
-                                "    }",
-                        productId, userId, quantity);
-                sendResponse(exchange,200,successJson.getBytes());
-            }else {
-                sendError(exchange, 500, "Database Transaction Failed");
+            if(!colocated){
+                int failed = validateCartRemotely(userId, lines);
+                if(failed == 502){
+                    sendError(exchange, 502, "Lookup through ISCS failed");
+                    return;
+                }
+                if(failed != 0){
+                    sendError(exchange, failed, failed == 404 ? "Invalid Request" : "Exceeded quantity limit");
+                    return;
+                }
             }
-        }catch (Exception e){
+
+            List<Integer> products = new ArrayList<>();
+            for(Order line : lines){
+                products.add(line.getProduct_id());
+            }
+            DatabaseManager.OrderResult result;
+            int[] locked = productLocks.lockAll(products);
+            try {
+                result = DatabaseManager.placeCart(uid, lines, colocated, idempotencyKey, this::cartSuccessJson);
+            } finally {
+                productLocks.unlockAll(locked);
+            }
+            switch (result){
+                case SUCCESS:
+                    sendResponse(exchange, 200, writeCartJson(JsonWriter.forThread(), lines));
+                    break;
+                case DUPLICATE:
+                    sendStoredResponse(exchange, idempotencyKey);
+                    break;
+                case USER_NOT_FOUND:
+                case PRODUCT_NOT_FOUND:
+                    sendError(exchange, 404, "Invalid Request");
+                    break;
+                case INSUFFICIENT_STOCK:
+                    sendError(exchange, 400, "Exceeded quantity limit");
+                    break;
+                default:
+                    sendError(exchange, 500, "Database Transaction Failed");
+            }
+        }catch (NumberFormatException e){
             sendError(exchange, 400, "Invalid Request");
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "Request interrupted");
+        }catch (RuntimeException e){
+            Log.error("Cart could not be placed: " + e);
+            sendError(exchange, 500, "Internal Server Error");
         }
+    }
 
+    /**
+     * Looks up the user and every distinct product of a cart through ISCS, all at the same time.
+     * Whatever lookup is still running when this returns is cancelled.
+     *
+     * @return 0 if the cart can be placed, 404 if the user or a product is missing, 400 if a product
+     *         has less stock than the cart asks for, or 502 if a lookup failed
+     */
+    private int validateCartRemotely(String userId, List<Order> lines) throws InterruptedException {
+        CompletableFuture<Integer> userStatus = lookupUserAsync(userId);
+        Map<Integer, Integer> wanted = new LinkedHashMap<>();
+        for(Order line : lines){
+            wanted.merge(line.getProduct_id(), line.getQuantity(), Integer::sum);
+        }
+        Map<Integer, CompletableFuture<Integer>> stock = new HashMap<>();
+        for(Integer productId : wanted.keySet()){
+            stock.put(productId, lookupProductQuantityAsync(String.valueOf(productId)));
+        }
+        try {
+            int status = await(userStatus);
+            if(status == 404 || status == 400){
+                return status;
+            }
+            if(status != 200){
+                return 502;
+            }
+            for(Map.Entry<Integer, Integer> product : wanted.entrySet()){
+                Integer available = await(stock.get(product.getKey()));
+                if(available == null){
+                    return 404;
+                }
+                // Checked again by the guarded decrement; this only fails early
+                if(product.getValue() > available){
+                    return 400;
+                }
+            }
+            return 0;
+        }catch (IOException | RuntimeException e){
+            Log.warn("Cart lookup through ISCS failed: " + e);
+            return 502;
+        }finally {
+            userStatus.cancel(true);
+            for(CompletableFuture<Integer> lookup : stock.values()){
+                lookup.cancel(true);
+            }
+        }
+    }
 
+    /**
+     * Reads the "items" array of a cart.
+     *
+     * @return one order per line, or null if the array is missing or a line is invalid
+     */
+    private List<Order> parseCartLines(JsonReader body, int userId){
+        int items = body.find(JsonReader.ROOT, "items");
+        if(items == -1){
+            return null;
+        }
+        List<Order> lines = new ArrayList<>();
+        for(int line = body.firstElement(items); line != -1; line = body.next(line)){
+            int qty = body.getInt(line, "quantity");
+            if(qty <= 0){
+                return null;
+            }
+            lines.add(new Order(body.getInt(line, "product_id"), userId, qty, "Success"));
+        }
+        return lines;
+    }
+
+    private String cartSuccessJson(List<Order> lines) {
+        return writeCartJson(new JsonWriter(), lines).toString();
+    }
+
+    private JsonWriter writeCartJson(JsonWriter json, List<Order> lines) {
+        json.raw("{\n    \"user_id\": ").value(lines.get(0).getUser_id())
+                .raw(",\n    \"status\": \"Success\",\n    \"orders\": [\n");
+        for(int i = 0; i < lines.size(); i++){
+            Order line = lines.get(i);
+            json.raw(i == 0 ? "        {\"id\": " : ",\n        {\"id\": ").value(line.getId())
+                    .raw(", \"product_id\": ").value(line.getProduct_id())
+                    .raw(", \"quantity\": ").value(line.getQuantity()).raw("}");
+        }
+        return json.raw("\n    ]\n}");
+    }
+
+    /**
+     * Answers a request whose Idempotency-Key was committed by another instance while this one was
+     * handling it, with the response stored for that key.
+     */
+    private void sendStoredResponse(HttpExchange exchange, IdempotencyStore.Key idempotencyKey) throws IOException {
+        IdempotencyStore.Response stored = DatabaseManager.getIdempotentResponse(idempotencyKey.getValue(),
+                idempotencyKey.getNotBefore());
+        sendEarlierResponse(exchange, IdempotencyStore.replayFor(idempotencyKey, stored));
+    }
+
+    /**
+     * Sends a response the idempotency store answered for a request, marking replays with Idempotent-Replayed.
+     */
+    private void sendEarlierResponse(HttpExchange exchange, IdempotencyStore.Response earlier) throws IOException {
+        if(earlier.isReplay()){
+            exchange.getResponseHeaders().set("Idempotent-Replayed", "true");
+        }
+        sendResponse(exchange, earlier.getStatus(), earlier.getBody());
+    }
+
+    private JsonWriter orderSuccessJson(int productId, int userId, int quantity) {
+        return JsonWriter.forThread().raw("{\n        \"product_id\": ").value(productId)
+                .raw(",\n        \"user_id\": ").value(userId)
+                .raw(",\n        \"quantity\": ").value(quantity)
+                .raw(",\n        \"status\": \"Success\"\n    }");
     }
 
 
@@ -365,16 +874,28 @@ public class OrderHandler implements HttpHandler {
      */
     private void forwardToISCS(HttpExchange exchange, String method, String path, byte[] requestBody) throws IOException, InterruptedException {
         HttpRequest.Builder builder = HttpRequest.newBuilder().uri(URI.create(iscsUrl+path));
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if(acceptEncoding != null){
+            builder.header("Accept-Encoding", acceptEncoding);
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if(ifNoneMatch != null){
+            builder.header("If-None-Match", ifNoneMatch);
+        }
         if(method.equalsIgnoreCase("POST")){
             builder.header("Content-Type", "application/json");
             builder.POST(HttpRequest.BodyPublishers.ofByteArray(requestBody));
         }else{
             builder.GET();
         }
-        System.out.println("Forward the information to the ISCS");
-        HttpResponse<byte[]> res = client.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
-        sendResponse(exchange, res.statusCode(), res.body());
-        System.out.println("Receive the response from the ISCS");
+        Log.debug("Forward the information to the ISCS");
+        HttpResponse<byte[]> res = Tracing.send(client, "ISCS", builder, HttpResponse.BodyHandlers.ofByteArray());
+        // A compressed body is relayed as it is
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        res.headers().firstValue("ETag").ifPresent(etag -> exchange.getResponseHeaders().set("ETag", etag));
+        ResponseCompression.sendEncoded(exchange, res.statusCode(), res.body(),
+                res.headers().firstValue("Content-Encoding").orElse(null));
+        Log.debug("Receive the response from the ISCS");
     }
 
     /**
@@ -388,10 +909,35 @@ public class OrderHandler implements HttpHandler {
      * @throws IOException if an I/O error occurs while sending headers or writing the body
      */
     private void sendResponse(HttpExchange exchange, int statusCode, byte[] response) throws IOException {
+        IdempotencyStore.Response[] recording = recordedResponse.get();
+        if(recording != null){
+            recording[0] = new IdempotencyStore.Response(statusCode, response);
+        }
         exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(statusCode, response.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response);
+        try {
+            ResponseCompression.send(exchange, statusCode, response);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sends an HTTP response with the JSON body held by a writer. The body is written from the
+     * writer's buffer; it is only copied when the response must be remembered for an Idempotency-Key.
+     *
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param statusCode the HTTP status code to send
+     * @param json the writer holding the response body
+     * @throws IOException if an I/O error occurs while sending headers or writing the body
+     */
+    private void sendResponse(HttpExchange exchange, int statusCode, JsonWriter json) throws IOException {
+        IdempotencyStore.Response[] recording = recordedResponse.get();
+        if(recording != null){
+            recording[0] = new IdempotencyStore.Response(statusCode, json.toByteArray());
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        try {
+            ResponseCompression.send(exchange, statusCode, json);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -408,126 +954,408 @@ public class OrderHandler implements HttpHandler {
      * @throws IOException if an I/O error occurs while sending headers or writing the body
      */
     private void sendError(HttpExchange exchange, int code, String message) throws IOException {
-        String json = String.format("{\"status\": \"%s\"}\n", message);
-        sendResponse(exchange, code, json.getBytes());
+        sendResponse(exchange, code, JsonWriter.forThread().raw("{\"status\": ").string(message).raw("}\n"));
+    }
+
+
+    private void handleUserPurchased(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        if(route.paramCount() < 1){
+            sendError(exchange, 400, "Invalid User ID");
+            return;
+        }
+
+        try {
+            int userId = route.intParam(0);
+
+            if(!userExists(String.valueOf(userId))){
+                sendError(exchange, 404, "User Not Found");
+                return;
+            }
+            // Aggregate purchases
+            Map<Integer, Integer> purchases = DatabaseManager.getUserPurchases(userId);
+            sendResponse(exchange, 200, writeMapJson(JsonWriter.forThread(), purchases));
+        }catch (NumberFormatException e){
+            sendError(exchange, 400, "Invalid ID format");
+        }catch (Exception e){
+            sendError(exchange, 500, "Internal Server Error");
+        }
     }
 
     /**
-     * Gets the value from the JSON string with corresponding key.
+     * Lists a user's orders, newest first, one page at a time: {@code GET /user/{id}/orders?cursor=&limit=}.
+     * The rows are encoded as they are read from the database and the page is sent once the connection
+     * is closed, so a slow client never holds a connection (or its permit); a page is at most
+     * MAX_HISTORY_LIMIT rows. The response carries {@code next_cursor}, the value to pass as cursor for
+     * the next page, or null on the last page.
      *
-     * @param json a JSON string
-     * @param key the key of the value searching for
-     * @return the value found or null if key not found
+     * <p><b>Responses:</b>
+     * <ul>
+     *   <li>{@code 200}: the page; response body is {@code {"user_id": .., "orders": [..], "next_cursor": ..}}</li>
+     *   <li>{@code 400}: invalid user id, cursor or limit</li>
+     *   <li>{@code 404}: user not found</li>
+     * </ul>
+     *
+     * @param exchange the HTTP exchange used to read and write the response; must be non-null
+     * @param route the matched route; its parameter is the user id
+     * @throws IOException if an I/O error occurs while sending the response
      */
-    private String getJsonValue(String json, String key){
-        String pattern = "\"" + key + "\":";
-        int start = json.indexOf(pattern);
-        if(start==-1){
-            return null;
+    private void handleUserOrders(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        int userId;
+        Integer cursor = null;
+        int limit = DEFAULT_HISTORY_LIMIT;
+        try {
+            userId = route.intParam(0);
+            String query = exchange.getRequestURI().getRawQuery();
+            for(String param : query == null ? new String[0] : query.split("&")){
+                int eq = param.indexOf('=');
+                String name = eq == -1 ? param : param.substring(0, eq);
+                String value = eq == -1 ? "" : param.substring(eq + 1);
+                if(name.equals("cursor") && !value.isEmpty()){
+                    cursor = Integer.parseInt(value);
+                }else if(name.equals("limit") && !value.isEmpty()){
+                    limit = Integer.parseInt(value);
+                }
+            }
+        }catch (NumberFormatException e){
+            sendError(exchange, 400, "Invalid Request");
+            return;
+        }
+        if(limit < 1 || limit > MAX_HISTORY_LIMIT){
+            sendError(exchange, 400, "Invalid Request");
+            return;
+        }
+        if(!userExists(String.valueOf(userId))){
+            sendError(exchange, 404, "User Not Found");
+            return;
         }
 
-        start += pattern.length();
-        // Trim potential spaces between : and value
-        while (start < json.length() && Character.isWhitespace(json.charAt(start))) {
-            start++;
+        OrderPageWriter page = new OrderPageWriter(userId, limit);
+        try {
+            // One row more than the page, to know whether there is a next page
+            DatabaseManager.streamUserOrders(userId, cursor, limit + 1, page);
+        }catch (SQLException e){
+            Log.error("Error reading orders of user " + userId + ": " + e.getMessage());
+            sendError(exchange, 500, "Internal Server Error");
+            return;
         }
+        sendResponse(exchange, 200, page.finish());
+    }
 
-        String value;
-        if (json.charAt(start) == '\"') {
-            // Handle String values: find the closing quote
-            start++; // skip opening quote
-            int end = json.indexOf("\"", start);
-            if (end == -1) return null;
-            value = json.substring(start, end);
-        } else {
-            // Handle number/boolean values: find comma or brace
-            int end = json.indexOf(",", start);
-            if (end == -1) {
-                end = json.indexOf("}", start);
+    /**
+     * Lists the products that sold the most units recently: {@code GET /product/top?window=&k=}.
+     * The window is a number of minutes, optionally written with a unit ({@code 15m}, {@code 1h});
+     * it defaults to one hour and can be at most 24 hours. k defaults to 10. The answer comes from
+     * the in-memory sales counters and never touches the database.
+     *
+     * <p><b>Responses:</b>
+     * <ul>
+     *   <li>{@code 200}: response body is {@code {"window_minutes": .., "products": [{"product_id": .., "units": ..}, ..]}}</li>
+     *   <li>{@code 400}: invalid window or k</li>
+     * </ul>
+     *
+     * @param exchange the HTTP exchange used to read and write the response; must be non-null
+     * @throws IOException if an I/O error occurs while sending the response
+     */
+    private void handleTopProducts(HttpExchange exchange) throws IOException {
+        int windowMinutes = DEFAULT_TOP_WINDOW_MINUTES;
+        int k = DEFAULT_TOP_K;
+        try {
+            String query = exchange.getRequestURI().getRawQuery();
+            for(String param : query == null ? new String[0] : query.split("&")){
+                int eq = param.indexOf('=');
+                String name = eq == -1 ? param : param.substring(0, eq);
+                String value = eq == -1 ? "" : param.substring(eq + 1).toLowerCase();
+                if(name.equals("window") && !value.isEmpty()){
+                    if(value.endsWith("h")){
+                        windowMinutes = Math.multiplyExact(Integer.parseInt(value.substring(0, value.length() - 1)), 60);
+                    }else{
+                        windowMinutes = Integer.parseInt(value.endsWith("m") ? value.substring(0, value.length() - 1) : value);
+                    }
+                }else if(name.equals("k") && !value.isEmpty()){
+                    k = Integer.parseInt(value);
+                }
             }
-            if (end == -1) return null;
-            value = json.substring(start, end).trim();
+        }catch (NumberFormatException | ArithmeticException e){
+            sendError(exchange, 400, "Invalid Request");
+            return;
+        }
+        if(windowMinutes < 1 || windowMinutes > SalesCounters.MAX_WINDOW_MINUTES || k < 1 || k > MAX_TOP_K){
+            sendError(exchange, 400, "Invalid Request");
+            return;
         }
 
-        return value;
+        JsonWriter json = JsonWriter.forThread().raw("{\n    \"window_minutes\": ").value(windowMinutes).raw(",\n    \"products\": [");
+        List<SalesCounters.Entry> top = salesCounters.top(windowMinutes, k);
+        for(int i = 0; i < top.size(); i++){
+            json.raw(i == 0 ? "\n        " : ",\n        ")
+                    .raw("{\"product_id\": ").value(top.get(i).getProductId())
+                    .raw(", \"units\": ").value(top.get(i).getUnits()).raw("}");
+        }
+        json.raw(top.isEmpty() ? "" : "\n    ").raw("]\n}\n");
+        sendResponse(exchange, 200, json);
     }
 
+    /**
+     * Encodes a page of the order history as the rows arrive, into this thread's JsonWriter. Nothing is
+     * sent until the query is done, so the database connection is never held while writing to the client.
+     */
+    private static class OrderPageWriter implements DatabaseManager.RowConsumer<Order> {
+        private final int limit;
+        private final JsonWriter json;
+        private int written = 0;
+        private int lastId;
+        private boolean more = false;
 
-    private void handleUserPurchased(HttpExchange exchange, String path) throws IOException {
-        String[] parts = path.split("/");
-        if(parts.length < 4){
-            sendError(exchange, 400, "Invalid User ID");
-            return;
+        OrderPageWriter(int userId, int limit) {
+            this.limit = limit;
+            this.json = JsonWriter.forThread().raw("{\n    \"user_id\": ").value(userId).raw(",\n    \"orders\": [");
         }
 
-        try {
-            String userIdStr = parts[3];
-            int userId = Integer.parseInt(userIdStr);
-
-            if(!userExists(userIdStr)){
-                sendError(exchange, 404, "User Not Found");
+        @Override
+        public void accept(Order order) {
+            if(written == limit){
+                more = true;
                 return;
             }
-            // Aggregate purchases
-            Map<Integer, Integer> purchases = DatabaseManager.getUserPurchases(userId);
-            String jsonResponse = mapToJson(purchases);
-            sendResponse(exchange, 200, jsonResponse.getBytes(StandardCharsets.UTF_8));
-        }catch (NumberFormatException e){
-            sendError(exchange, 400, "Invalid ID format");
-        }catch (Exception e){
-            sendError(exchange, 500, "Internal Server Error");
+            json.raw(written == 0 ? "\n        {\"id\": " : ",\n        {\"id\": ").value(order.getId())
+                    .raw(", \"product_id\": ").value(order.getProduct_id())
+                    .raw(", \"quantity\": ").value(order.getQuantity())
+                    .raw(", \"status\": ").string(order.getStatus()).raw("}");
+            written++;
+            lastId = order.getId();
+        }
+
+        JsonWriter finish() {
+            json.raw(written == 0 ? "" : "\n    ").raw("],\n    \"next_cursor\": ");
+            if(more){
+                json.value(lastId);
+            }else{
+                json.raw("null");
+            }
+            return json.raw("\n}\n");
         }
     }
 
     private boolean userExists(String userId){
         try {
-            HttpRequest request = HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/user/" + userId)).GET().build();
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-            return response.statusCode() == 200;
+            return lookupUser(userId) == 200;
         } catch (IOException | InterruptedException e) {
             return false;
         }
     }
 
-    private void signalInternalServices(String command){
-        String final_command = command;
-        if(command.equalsIgnoreCase("restart")|| command.equalsIgnoreCase("shutdown")){
-            final_command = command.toLowerCase();
+    /**
+     * Looks up a user through ISCS and waits for the answer.
+     *
+     * @param userId the user id taken from the request
+     * @return the HTTP status of the lookup (200, 404 or 400)
+     * @throws IOException if ISCS cannot be reached
+     * @throws InterruptedException if the lookup is interrupted
+     */
+    private int lookupUser(String userId) throws IOException, InterruptedException {
+        return await(lookupUserAsync(userId));
+    }
+
+    /**
+     * Looks up the stock of a product through ISCS and waits for the answer.
+     *
+     * @param productId the product id taken from the request
+     * @return the quantity in stock, or null if the product does not exist
+     * @throws IOException if ISCS cannot be reached or the lookup fails
+     * @throws InterruptedException if the lookup is interrupted
+     */
+    private Integer lookupProductQuantity(String productId) throws IOException, InterruptedException {
+        return await(lookupProductQuantityAsync(productId));
+    }
+
+    /**
+     * Starts a user lookup through ISCS, over the binary transport when it is enabled and over HTTP otherwise.
+     *
+     * @param userId the user id taken from the request
+     * @return a future holding the HTTP status of the lookup (200, 404 or 400)
+     */
+    private CompletableFuture<Integer> lookupUserAsync(String userId) {
+        if(iscsRpc != null){
+            int id;
+            try {
+                id = Integer.parseInt(userId);
+            }catch (NumberFormatException e){
+                return CompletableFuture.completedFuture(400);
+            }
+            return cancellable(rpcCall(RpcFrame.OP_GET_USER, id), RpcFrame::httpStatus);
         }
-        String[] internalRoutes = {"/user/internal/" + final_command, "/product/internal/"+ final_command};
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/user/" + userId)).GET();
+        return cancellable(Tracing.sendAsync(client, "ISCS", request, HttpResponse.BodyHandlers.discarding()), HttpResponse::statusCode);
+    }
 
-        for(String route: internalRoutes){
+    /**
+     * Starts a product stock lookup through ISCS, over the binary transport when it is enabled
+     * and over HTTP otherwise.
+     *
+     * @param productId the product id taken from the request
+     * @return a future holding the quantity in stock, or null if the product does not exist
+     */
+    private CompletableFuture<Integer> lookupProductQuantityAsync(String productId) {
+        if(iscsRpc != null){
+            int id;
             try {
-                // Don't necessarily need to wait for a complex response, just ensure the message is sent
-                HttpRequest request = HttpRequest.newBuilder().
-                        uri(URI.create(iscsUrl + route)).
-                        POST(HttpRequest.BodyPublishers.noBody()).build();
-                client.send(request, HttpResponse.BodyHandlers.discarding());
-                System.out.println("Signaled " + route + " with command: " + command );
-            } catch (Exception e) {
-                System.err.println("Failed to signal " + route + ": " + e.getMessage());
+                id = Integer.parseInt(productId);
+            }catch (NumberFormatException e){
+                return CompletableFuture.failedFuture(e);
             }
+            return cancellable(rpcCall(RpcFrame.OP_GET_PRODUCT, id), reply -> {
+                if(reply.getStatus() == RpcFrame.STATUS_NOT_FOUND){
+                    return null;
+                }
+                if(reply.getStatus() != RpcFrame.STATUS_OK){
+                    throw new CompletionException(new IOException("Product lookup failed with status " + reply.httpStatus()));
+                }
+                Product product = Product.fromBinary(reply.getPayload());
+                return product.getQuantity();
+            });
         }
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(iscsUrl + "/product/" + productId)).GET();
+        return cancellable(Tracing.sendAsync(client, "ISCS", request, HttpResponse.BodyHandlers.ofByteArray()), prodRes -> {
+            if(prodRes.statusCode() == 404){
+                return null;
+            }
+            // Not this thread's reader: the callback can run on a thread that is handling a request
+            JsonReader product = new JsonReader();
+            product.parse(prodRes.body());
+            return product.getInt("quantity");
+        });
     }
 
+    private CompletableFuture<RpcFrame> rpcCall(byte op, int id) {
+        return iscsRpc.call(op, BinaryCodec.encodeId(id)).orTimeout(5, TimeUnit.SECONDS);
+    }
 
+    /**
+     * Maps the result of a call, keeping hold of the call itself. Cancelling a thenApply stage does
+     * not reach the stage it depends on, so the returned future passes its cancellation on: an HTTP
+     * exchange is aborted, and an RPC call is dropped from the client's pending calls so its reply
+     * is discarded (the request frame is already on the wire by then).
+     *
+     * @param call the future returned by the HttpClient or the RpcClient
+     * @param mapping what to make of the result
+     * @return the mapped result
+     */
+    private static <T, R> CompletableFuture<R> cancellable(CompletableFuture<T> call, Function<? super T, ? extends R> mapping) {
+        CompletableFuture<R> result = call.thenApply(mapping);
+        result.whenComplete((value, e) -> {
+            if(result.isCancelled()) call.cancel(true);
+        });
+        return result;
+    }
 
-    public String mapToJson(Map<Integer, Integer> map){
-        if(map.isEmpty()){
-            return "{}";
+    /**
+     * Waits for both validations of an order. Returns as soon as either lookup fails, without waiting
+     * for the other one, and cancels whichever lookup is still running.
+     *
+     * @param userStatus the pending user lookup
+     * @param stock the pending product lookup
+     * @return the quantity of the product in stock
+     * @throws LookupFailedException if the user or the product does not exist, or a lookup failed
+     * @throws InterruptedException if the wait is interrupted
+     */
+    private int awaitOrderDependencies(CompletableFuture<Integer> userStatus, CompletableFuture<Integer> stock)
+            throws LookupFailedException, InterruptedException {
+        // Completed by whichever lookup fails first; only used to wake this thread up early
+        CompletableFuture<Void> firstFailure = new CompletableFuture<>();
+        userStatus.whenComplete((status, e) -> {
+            if(e != null || status == 404) firstFailure.complete(null);
+        });
+        stock.whenComplete((quantity, e) -> {
+            if(e != null || quantity == null) firstFailure.complete(null);
+        });
+        try {
+            CompletableFuture.anyOf(firstFailure, CompletableFuture.allOf(userStatus, stock)).get();
+        } catch (ExecutionException ignored) {
+            // Inspected below
+        }
+
+        int failedStatus = failedStatus(userStatus, stock);
+        if(failedStatus != 0){
+            userStatus.cancel(true);
+            stock.cancel(true);
+            throw new LookupFailedException(failedStatus);
+        }
+        return stock.join();
+    }
+
+    /**
+     * Checks the lookups that have finished for a failure. The user is checked first so that the
+     * response is the same as when the lookups ran one after the other.
+     *
+     * @return the status to answer with, or 0 if nothing has failed
+     */
+    private int failedStatus(CompletableFuture<Integer> userStatus, CompletableFuture<Integer> stock) {
+        if(userStatus.isDone()){
+            if(userStatus.isCompletedExceptionally()) return 400;
+            if(userStatus.join() == 404) return 404;
+        }
+        if(stock.isDone()){
+            if(stock.isCompletedExceptionally()) return 400;
+            if(stock.join() == null) return 404;
+        }
+        return 0;
+    }
+
+    /**
+     * Waits for a lookup and unwraps its failure.
+     */
+    private <T> T await(CompletableFuture<T> lookup) throws IOException, InterruptedException {
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException) throw (IOException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Lookup through ISCS failed", cause);
         }
-        StringBuilder builder = new StringBuilder("{");
+    }
+
+    /**
+     * Thrown when an order cannot be placed because one of its lookups failed.
+     */
+    private static class LookupFailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        LookupFailedException(int status) {
+            super("Lookup failed with status " + status);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Sends a cluster command to every registered instance in parallel and waits for their acknowledgements.
+     * Instances that do not acknowledge before the deadline are logged by the control plane.
+     *
+     * @param command the command (shutdown, restart or clear)
+     */
+    private void signalInternalServices(String command){
+        ControlPlane.Result result = controlPlane.broadcast(command.toLowerCase());
+        Log.info("Signaled " + command + ": acknowledged by " + result.getAcked());
+    }
+
+
+
+    public String mapToJson(Map<Integer, Integer> map){
+        return writeMapJson(new JsonWriter(), map).toString();
+    }
+
+    private JsonWriter writeMapJson(JsonWriter json, Map<Integer, Integer> map){
+        json.raw("{");
         boolean first = true;
         for(Map.Entry<Integer, Integer> entry: map.entrySet()){
             if(!first){
-                builder.append(", ");
+                json.raw(", ");
             }
-            builder.append(String.format("\"%d\": %d", entry.getKey(), entry.getValue()));
+            json.raw("\"").value(entry.getKey()).raw("\": ").value(entry.getValue());
             first = false;
         }
-        builder.append("}");
-        return builder.toString();
-
+        return json.raw("}");
     }
 
 
@@ -0,0 +1,532 @@
+package OrderService;
+
+import Utils.DatabaseManager;
+import Utils.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * OrderIngestion is the asynchronous path for placing orders.
+ *
+ * <p>An accepted order is given its id, appended to a log file and fsynced, and only then acknowledged;
+ * the database commit happens later on a background worker. Appends from concurrent requests are
+ * written and fsynced together by one writer thread, so a burst pays for one fsync instead of one
+ * per order. Workers take the queued orders in batches and commit each batch in a single transaction.</p>
+ *
+ * <p>The log holds one line per event:
+ * <ul>
+ *   <li>{@code A id product_id user_id quantity}: the order was accepted</li>
+ *   <li>{@code S id}: the order was committed</li>
+ *   <li>{@code F id product_id user_id quantity}: the order was rejected</li>
+ * </ul>
+ * On startup the log is replayed: accepted orders without an outcome go back on the queue, and the
+ * log is rewritten with only those and the failures.</p>
+ *
+ * <p>An order is only marked failed for a reason that will not change if it is tried again (no such
+ * user or product, not enough stock, a constraint violation). When the database was locked, no
+ * connection was free or a user lookup could not be made, the order goes back on the queue after a
+ * backoff that doubles with each attempt, up to {@value #RETRY_MAX_MS} ms.</p>
+ */
+public class OrderIngestion {
+    /**
+     * Failed orders kept so that GET /order/{id} can still report them
+     */
+    private static final int MAX_FAILED = 10000;
+    private static final long RETRY_BASE_MS = 50;
+    private static final long RETRY_MAX_MS = 5000;
+    /**
+     * How long a batch waits for its user lookups; a lookup still running then is retried later
+     */
+    private static final long USER_CHECK_TIMEOUT_MS = 5000;
+
+    private final Path logPath;
+    private final int batchSize;
+    /**
+     * Checks that a user exists; null when the check is done inside the commit transaction
+     */
+    private final UserCheck userCheck;
+    private final ProductLocks productLocks;
+
+    /**
+     * Written and truncated only by the writer thread
+     */
+    private final FileChannel log;
+    /**
+     * Held shared by accept and by a worker committing a batch, and exclusively by clear, so nothing
+     * accepted or committed before a clear reaches the database or the log after it
+     */
+    private final ReadWriteLock clearLock = new ReentrantReadWriteLock();
+    private final BlockingQueue<LogWrite> logWrites = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Order> pending = new LinkedBlockingQueue<>();
+    /**
+     * Orders accepted but not yet committed, by id
+     */
+    private final Map<Integer, Order> inProgress = new ConcurrentHashMap<>();
+    private final Map<Integer, Order> failed = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Order> eldest) {
+            return size() > MAX_FAILED;
+        }
+    });
+    /**
+     * How many times each order waiting for a retry has failed for a transient reason, by id
+     */
+    private final Map<Integer, Integer> attempts = new ConcurrentHashMap<>();
+    /**
+     * Puts orders back on the queue once their backoff has passed
+     */
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-ingest-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final List<Thread> workers = new ArrayList<>();
+    private Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * Checks whether a user exists. Used when orders are validated through ISCS.
+     */
+    public interface UserCheck {
+        /**
+         * @param userId the user id
+         * @return a future holding true if the user exists
+         */
+        CompletableFuture<Boolean> exists(int userId);
+    }
+
+    /**
+     * Clears the database. Run by {@link #clear(DatabaseClear)} while the workers are held.
+     */
+    public interface DatabaseClear {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Opens the log, replays it and starts the writer and the workers.
+     *
+     * @param logFile the path of the ingestion log
+     * @param workerCount the number of worker threads committing batches
+     * @param batchSize the most orders committed in one transaction
+     * @param userCheck the remote user check, or null to check users inside the commit transaction
+     * @param productLocks the locks shared with the synchronous order paths
+     * @throws IOException if the log cannot be read or opened
+     */
+    public OrderIngestion(String logFile, int workerCount, int batchSize, UserCheck userCheck,
+                          ProductLocks productLocks) throws IOException {
+        this.logPath = Paths.get(logFile);
+        this.batchSize = Math.max(1, batchSize);
+        this.userCheck = userCheck;
+        this.productLocks = productLocks;
+        recover();
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        this.writer = startThread("order-ingest-log", this::writeLoop);
+        for (int i = 0; i < workerCount; i++) {
+            this.workers.add(startThread("order-ingest-" + i, this::workLoop));
+        }
+        Log.info("[Ingestion] Started with " + workerCount + " workers, " + pending.size() + " orders recovered");
+    }
+
+    private static Thread startThread(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Accepts an order and returns once it is durably in the log.
+     *
+     * @param orderId the id of the order, taken from IdAllocator by the caller
+     * @param productId the product id
+     * @param userId the user id
+     * @param quantity the quantity ordered; must be positive
+     * @throws IOException if the order could not be written to the log
+     */
+    public void accept(int orderId, int productId, int userId, int quantity) throws IOException {
+        Order order = new Order(orderId, productId, userId, quantity, "Pending");
+        clearLock.readLock().lock();
+        try {
+            inProgress.put(order.getId(), order);
+            append(record("A", order)).get();
+            pending.add(order);
+        } catch (ExecutionException e) {
+            inProgress.remove(order.getId());
+            throw new IOException("Order could not be written to the ingestion log", e.getCause());
+        } catch (InterruptedException e) {
+            inProgress.remove(order.getId());
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the ingestion log", e);
+        } finally {
+            clearLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the order if it is still pending or has failed. Committed orders are in the database.
+     *
+     * @param orderId the order id
+     * @return the pending or failed order, or null
+     */
+    public Order getOrder(int orderId) {
+        Order order = inProgress.get(orderId);
+        return order != null ? order : failed.get(orderId);
+    }
+
+    /**
+     * Clears the database, drops every queued order and truncates the log. Accepts and batch commits
+     * in progress finish first, and none start until the clear is done. The truncate goes through the
+     * writer behind everything already queued, so no record from before the clear is written after it.
+     *
+     * @param clearDatabase clears the database while the workers are held
+     * @throws SQLException if the database could not be cleared; the orders are then kept
+     * @throws IOException if the log could not be truncated
+     */
+    public void clear(DatabaseClear clearDatabase) throws SQLException, IOException {
+        clearLock.writeLock().lock();
+        try {
+            clearDatabase.run();
+            pending.clear();
+            inProgress.clear();
+            failed.clear();
+            attempts.clear();
+            LogWrite truncate = new LogWrite(null);
+            logWrites.add(truncate);
+            truncate.done.get();
+        } catch (ExecutionException e) {
+            throw new IOException("The ingestion log could not be truncated", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while truncating the ingestion log", e);
+        } finally {
+            clearLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops the workers and flushes the log. Orders still queued stay in the log and are
+     * committed after the next start.
+     */
+    public void close() {
+        running = false;
+        // Orders waiting for a retry are still accepted in the log, so the next start commits them
+        retries.shutdownNow();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join(1000);
+            }
+            // The writer is never interrupted: an interrupt during a write would close the channel
+            writer.join(1000);
+            log.force(false);
+            log.close();
+        } catch (IOException e) {
+            Log.error("[Ingestion] Error closing log: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String record(String type, Order order) {
+        if (type.equals("S")) {
+            return "S " + order.getId();
+        }
+        return type + " " + order.getId() + " " + order.getProduct_id() + " " + order.getUser_id() + " " + order.getQuantity();
+    }
+
+    private CompletableFuture<Void> append(String line) {
+        LogWrite write = new LogWrite(line);
+        logWrites.add(write);
+        return write.done;
+    }
+
+    /**
+     * Writes everything queued so far, fsyncs once, and then releases all of those writers. A
+     * truncate queued by clear drops the lines queued before it.
+     */
+    private void writeLoop() {
+        List<LogWrite> batch = new ArrayList<>();
+        while (running || !logWrites.isEmpty()) {
+            try {
+                LogWrite first = logWrites.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                break;
+            }
+            logWrites.drainTo(batch);
+            StringBuilder lines = new StringBuilder();
+            boolean truncate = false;
+            for (LogWrite write : batch) {
+                if (write.line == null) {
+                    truncate = true;
+                    lines.setLength(0);
+                } else {
+                    lines.append(write.line).append('\n');
+                }
+            }
+            try {
+                if (truncate) {
+                    log.truncate(0);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                log.force(false);
+                for (LogWrite write : batch) {
+                    write.done.complete(null);
+                }
+            } catch (IOException e) {
+                Log.error("[Ingestion] Error writing log: " + e.getMessage());
+                for (LogWrite write : batch) {
+                    write.done.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void workLoop() {
+        List<Order> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            pending.drainTo(batch, batchSize - 1);
+            clearLock.readLock().lock();
+            try {
+                // Orders taken just before a clear were dropped by it
+                batch.removeIf(order -> inProgress.get(order.getId()) != order);
+                if (!batch.isEmpty()) {
+                    commit(batch);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                Log.error("[Ingestion] Batch failed: " + e.getMessage());
+            } finally {
+                clearLock.readLock().unlock();
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Order> batch) throws InterruptedException {
+        List<Order> toCommit = batch;
+        if (userCheck != null) {
+            toCommit = new ArrayList<>();
+            Boolean[] usersExist = checkUsers(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                if (usersExist[i] == null) {
+                    retryLater(batch.get(i), "user lookup failed");
+                } else if (usersExist[i]) {
+                    toCommit.add(batch.get(i));
+                } else {
+                    finish(batch.get(i), DatabaseManager.OrderResult.USER_NOT_FOUND);
+                }
+            }
+        }
+        if (toCommit.isEmpty()) {
+            return;
+        }
+        List<Integer> products = new ArrayList<>();
+        for (Order order : toCommit) {
+            products.add(order.getProduct_id());
+        }
+        int[] locked = productLocks.lockAll(products);
+        try {
+            commitLocked(toCommit);
+        } finally {
+            productLocks.unlockAll(locked);
+        }
+    }
+
+    private void commitLocked(List<Order> toCommit) {
+        try {
+            DatabaseManager.OrderResult[] results = DatabaseManager.commitOrderBatch(toCommit, userCheck == null);
+            for (int i = 0; i < results.length; i++) {
+                finish(toCommit.get(i), results[i]);
+            }
+        } catch (SQLException e) {
+            if (DatabaseManager.isTransient(e)) {
+                // Nothing is wrong with the orders; the whole batch is tried again later
+                for (Order order : toCommit) {
+                    retryLater(order, e.getMessage());
+                }
+                return;
+            }
+            // One bad order must not fail the whole batch, so retry them one at a time
+            for (Order order : toCommit) {
+                try {
+                    finish(order, DatabaseManager.commitOrderBatch(List.of(order), userCheck == null)[0]);
+                } catch (SQLException single) {
+                    if (DatabaseManager.isTransient(single)) {
+                        retryLater(order, single.getMessage());
+                    } else {
+                        finish(order, DatabaseManager.OrderResult.FAILED);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts an order back on the queue after a backoff. The order stays pending meanwhile; if the
+     * database is cleared before the backoff ends, the order is dropped with everything else.
+     */
+    private void retryLater(Order order, String reason) {
+        int attempt = attempts.merge(order.getId(), 1, Integer::sum);
+        long backoff = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << Math.min(attempt - 1, 16));
+        // Jitter, so orders that failed together do not all come back together
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        Log.warn("[Ingestion] Order " + order.getId() + " will be retried in " + delay + " ms (attempt " + attempt
+                + "): " + reason);
+        try {
+            retries.schedule(() -> {
+                // Still the same accepted order, and not one that reuses its id after a clear
+                if (inProgress.get(order.getId()) == order) {
+                    pending.add(order);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // Shutting down; the order is still accepted in the log
+        }
+    }
+
+    /**
+     * Looks up every distinct user of the batch at once.
+     *
+     * @return for each order, whether its user exists, or null if the lookup itself failed
+     */
+    private Boolean[] checkUsers(List<Order> batch) throws InterruptedException {
+        Map<Integer, CompletableFuture<Boolean>> lookups = new HashMap<>();
+        for (Order order : batch) {
+            lookups.computeIfAbsent(order.getUser_id(), userCheck::exists);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(USER_CHECK_TIMEOUT_MS);
+        Boolean[] exists = new Boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            CompletableFuture<Boolean> lookup = lookups.get(batch.get(i).getUser_id());
+            try {
+                exists[i] = lookup.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                exists[i] = null;
+            } catch (TimeoutException e) {
+                // A backend that never answers must not hold the worker
+                lookup.cancel(true);
+                exists[i] = null;
+            }
+        }
+        return exists;
+    }
+
+    private void finish(Order order, DatabaseManager.OrderResult result) {
+        attempts.remove(order.getId());
+        if (result == DatabaseManager.OrderResult.SUCCESS) {
+            inProgress.remove(order.getId());
+            append(record("S", order));
+            return;
+        }
+        Log.info("[Ingestion] Order " + order.getId() + " failed: " + result);
+        order.setStatus("Failed");
+        failed.put(order.getId(), order);
+        inProgress.remove(order.getId());
+        append(record("F", order));
+    }
+
+    /**
+     * Replays the log and rewrites it with only the orders that still matter.
+     */
+    private void recover() throws IOException {
+        if (!Files.exists(logPath)) {
+            return;
+        }
+        Map<Integer, Order> accepted = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                try {
+                    int id = Integer.parseInt(fields[1]);
+                    if (fields[0].equals("A")) {
+                        accepted.put(id, parse(fields, "Pending"));
+                    } else if (fields[0].equals("S")) {
+                        accepted.remove(id);
+                    } else if (fields[0].equals("F")) {
+                        accepted.remove(id);
+                        failed.put(id, parse(fields, "Failed"));
+                    }
+                } catch (RuntimeException e) {
+                    // A line torn by a crash; everything before it was fsynced
+                }
+            }
+        }
+
+        Path compacted = Paths.get(logPath + ".tmp");
+        List<String> lines = new ArrayList<>();
+        for (Order order : failed.values()) {
+            lines.add(record("F", order));
+        }
+        for (Order order : accepted.values()) {
+            lines.add(record("A", order));
+            inProgress.put(order.getId(), order);
+            pending.add(order);
+        }
+        Files.write(compacted, lines, StandardCharsets.UTF_8);
+        Files.move(compacted, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Order parse(String[] fields, String status) {
+        return new Order(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+                Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), status);
+    }
+
+    private static class LogWrite {
+        /**
+         * The line to append, or null to truncate the log
+         */
+        private final String line;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        LogWrite(String line) {
+            this.line = line;
+        }
+    }
+}
@@ -1,18 +1,24 @@
 package OrderService;
 
+import Utils.AdmissionController;
 import Utils.ConfigReader;
+import Utils.HttpEngine;
+import Utils.Log;
+import Utils.Metrics;
+import Utils.ResponseCompression;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
 import Utils.DatabaseManager;
-import com.sun.net.httpserver.HttpServer;
+import Utils.IdAllocator;
+import Utils.OrderJournal;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.http.HttpRequest;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
 
 /**
  * The OrderService class initializes and manages the HTTP server response for
@@ -55,6 +61,7 @@ public class OrderService {
             throw new RuntimeException(e);
         }
         try {
+            DatabaseManager.configureConcurrency(configFile);
             DatabaseManager.initializeTables();
             System.out.println("System ready and database initialized");
         }catch (SQLException e){
@@ -63,12 +70,33 @@ public class OrderService {
         }
 
         int port = ConfigReader.getPort(configFile, "OrderService");
+        // Orders are where stock is decremented, so this is where contention on a product shows up
+        DatabaseManager.configureInventory(configFile);
+        IdAllocator.configure(configFile);
+        OrderJournal journal = OrderJournal.fromConfig(configFile);
+        if (journal != null) {
+            DatabaseManager.addOrderListener(journal::appendQuietly);
+            ServiceLifecycle.addFlushHook(() -> {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    System.err.println("[OrderJournal] Close failed: " + e.getMessage());
+                }
+            });
+        }
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/", new OrderHandler(configFile));
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        HttpEngine server = HttpEngine.fromConfig(configFile, "OrderService", port);
+        Log.configure(configFile, "OrderService");
+        Tracing.configure(configFile, "OrderService");
+        ResponseCompression.configure(configFile, "OrderService");
+        AdmissionController admission = AdmissionController.fromConfig(configFile, "OrderService");
+        Tracing.instrument(Metrics.instrument(server.createContext("/", new OrderHandler(configFile)))).getFilters().add(admission.filter());
+        // Not behind the admission filter, so it can be read while the service sheds load
+        server.createContext("/metrics", Metrics.handler());
+        server.setExecutor(admission);
         System.out.println("Order Service started on port " + port);
         server.start();
+        ServiceLifecycle.register(configFile, server, admission);
     }
 
 
@@ -0,0 +1,158 @@
+package OrderService;
+
+import Utils.Log;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ProductLocks serializes the stock changes of one product inside the OrderService.
+ *
+ * <p>Every product id maps to one of a fixed number of lock stripes. Two orders for the same product
+ * take the same lock and run one after the other, so they never fight over the products row in
+ * SQLite. Orders for different products almost always land on different stripes and run in parallel.</p>
+ *
+ * <p>The time spent waiting is recorded per stripe. A stripe with a high wait time means one hot product
+ * (or a few products sharing the stripe); the summary is logged every 10 seconds while waits keep growing.</p>
+ */
+public class ProductLocks {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final LongAdder[] acquisitions;
+    private final LongAdder[] contended;
+    private final LongAdder[] waitNanos;
+    private final LongAccumulator[] maxWaitNanos;
+
+    /**
+     * Creates the stripes.
+     * @param stripeCount the number of stripes; rounded up to a power of two
+     */
+    public ProductLocks(int stripeCount) {
+        int size = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        this.mask = size - 1;
+        this.stripes = new ReentrantLock[size];
+        this.acquisitions = new LongAdder[size];
+        this.contended = new LongAdder[size];
+        this.waitNanos = new LongAdder[size];
+        this.maxWaitNanos = new LongAccumulator[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+            acquisitions[i] = new LongAdder();
+            contended[i] = new LongAdder();
+            waitNanos[i] = new LongAdder();
+            maxWaitNanos[i] = new LongAccumulator(Math::max, 0);
+        }
+        startReporter();
+    }
+
+    private int stripe(int productId) {
+        // Spread consecutive ids so they do not share neighbouring stripes' patterns
+        int h = productId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Takes the lock of a product, waiting while another order for a product on the same stripe holds it.
+     * @param productId the product id
+     */
+    public void lock(int productId) {
+        lockStripe(stripe(productId));
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock(int)}.
+     * @param productId the product id
+     */
+    public void unlock(int productId) {
+        stripes[stripe(productId)].unlock();
+    }
+
+    /**
+     * Takes the locks of several products at once, for a batch that changes all of them.
+     * The stripes are always taken in ascending order, so two batches can never deadlock.
+     * @param productIds the product ids; duplicates are fine
+     * @return the stripes that were locked, to be passed to {@link #unlockAll(int[])}
+     */
+    public int[] lockAll(Collection<Integer> productIds) {
+        int[] taken = productIds.stream().mapToInt(this::stripe).distinct().sorted().toArray();
+        for (int index : taken) {
+            lockStripe(index);
+        }
+        return taken;
+    }
+
+    /**
+     * Releases the stripes taken by {@link #lockAll(Collection)}.
+     * @param taken the stripes returned by lockAll
+     */
+    public void unlockAll(int[] taken) {
+        for (int i = taken.length - 1; i >= 0; i--) {
+            stripes[taken[i]].unlock();
+        }
+    }
+
+    private void lockStripe(int index) {
+        acquisitions[index].increment();
+        if (stripes[index].tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        stripes[index].lock();
+        long waited = System.nanoTime() - start;
+        contended[index].increment();
+        waitNanos[index].add(waited);
+        maxWaitNanos[index].accumulate(waited);
+    }
+
+    /**
+     * Returns the total time orders have waited for a product lock
+     * @return the wait time in milliseconds, summed over all stripes
+     */
+    public long getTotalWaitMs() {
+        long total = 0;
+        for (LongAdder wait : waitNanos) {
+            total += wait.sum();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    /**
+     * Returns the wait statistics of every stripe that has had to wait, one line per stripe.
+     * @return the summary, or an empty string if no order ever waited
+     */
+    public String report() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < stripes.length; i++) {
+            long waits = contended[i].sum();
+            if (waits == 0) {
+                continue;
+            }
+            builder.append(String.format("[ProductLocks] stripe %d: acquired=%d waited=%d totalWait=%dms maxWait=%dms%n",
+                    i, acquisitions[i].sum(), waits,
+                    TimeUnit.NANOSECONDS.toMillis(waitNanos[i].sum()),
+                    TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[i].get())));
+        }
+        return builder.toString();
+    }
+
+    private void startReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "product-locks-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastWaitMs = {0};
+        reporter.scheduleAtFixedRate(() -> {
+            long waitMs = getTotalWaitMs();
+            if (waitMs != lastWaitMs[0]) {
+                lastWaitMs[0] = waitMs;
+                Log.info(report().stripTrailing());
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+}
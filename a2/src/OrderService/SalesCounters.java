@@ -0,0 +1,180 @@
+package OrderService;
+
+import Utils.OrderJournal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SalesCounters counts the units sold per product in one-minute buckets, so "what sold most in the
+ * last hour" is answered from memory instead of a GROUP BY over the orders table.
+ *
+ * <p>The buckets form a ring covering the last 24 hours; a bucket is replaced when its minute comes
+ * round again. Inside a bucket each product has a LongAdder, so orders for the same hot product do not
+ * contend on one counter. A cancellation subtracts its quantity from the bucket the order was counted
+ * in, so the counts are net units sold in the window and a window that does not contain the sale is
+ * not changed by its cancellation. Each bucket remembers the orders it counted until it is replaced.</p>
+ *
+ * <p>The counters start empty when the service starts and only see the orders placed through this
+ * instance. Cancelling an order they never counted, or whose bucket has aged out, changes nothing.</p>
+ */
+public class SalesCounters {
+    private static final long BUCKET_MS = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * The longest window that can be asked for, in buckets
+     */
+    public static final int MAX_WINDOW_MINUTES = 24 * 60;
+
+    private final AtomicReferenceArray<Bucket> ring = new AtomicReferenceArray<>(MAX_WINDOW_MINUTES);
+    /**
+     * The bucket each counted order is in, for its cancellation
+     */
+    private final Map<Integer, Bucket> countedIn = new ConcurrentHashMap<>();
+
+    private static class Bucket {
+        private final long minute;
+        private final Map<Integer, LongAdder> units = new ConcurrentHashMap<>();
+        private final Set<Integer> orders = ConcurrentHashMap.newKeySet();
+
+        Bucket(long minute) {
+            this.minute = minute;
+        }
+    }
+
+    /**
+     * A product and the units it sold in the window.
+     */
+    public static class Entry {
+        private final int productId;
+        private final long units;
+
+        Entry(int productId, long units) {
+            this.productId = productId;
+            this.units = units;
+        }
+
+        public int getProductId() {
+            return productId;
+        }
+
+        public long getUnits() {
+            return units;
+        }
+    }
+
+    /**
+     * Counts an order event; registered with DatabaseManager.addOrderListener.
+     *
+     * @param type OrderJournal.ORDER_PLACED or OrderJournal.ORDER_CANCELLED
+     * @param orderId the order id
+     * @param productId the product of the order
+     * @param userId the user of the order
+     * @param quantity the quantity of the order
+     */
+    public void onOrderEvent(byte type, int orderId, int productId, int userId, int quantity) {
+        if (type == OrderJournal.ORDER_CANCELLED) {
+            Bucket sold = countedIn.remove(orderId);
+            // Only while the bucket is still in the ring; once replaced, the sale is out of every window
+            if (sold != null && ring.get(index(sold.minute)) == sold) {
+                add(sold, productId, -quantity);
+            }
+            return;
+        }
+        Bucket bucket = bucket(System.currentTimeMillis() / BUCKET_MS);
+        add(bucket, productId, quantity);
+        bucket.orders.add(orderId);
+        countedIn.put(orderId, bucket);
+    }
+
+    private static void add(Bucket bucket, int productId, long units) {
+        bucket.units.computeIfAbsent(productId, id -> new LongAdder()).add(units);
+    }
+
+    private static int index(long minute) {
+        return (int) (minute % MAX_WINDOW_MINUTES);
+    }
+
+    private Bucket bucket(long minute) {
+        int index = index(minute);
+        while (true) {
+            Bucket current = ring.get(index);
+            if (current != null && current.minute >= minute) {
+                return current;
+            }
+            // The slot still holds the same minute of an earlier day (or nothing); start it afresh
+            Bucket fresh = new Bucket(minute);
+            if (ring.compareAndSet(index, current, fresh)) {
+                if (current != null) {
+                    forget(current);
+                }
+                return fresh;
+            }
+        }
+    }
+
+    /**
+     * Returns the products that sold the most units in the last minutes, best seller first.
+     *
+     * @param windowMinutes the length of the window, from 1 to MAX_WINDOW_MINUTES
+     * @param k how many products to return
+     * @return at most k products with a positive count, sorted by units descending
+     */
+    public List<Entry> top(int windowMinutes, int k) {
+        long now = System.currentTimeMillis() / BUCKET_MS;
+        Map<Integer, Long> totals = new HashMap<>();
+        for (long minute = now - windowMinutes + 1; minute <= now; minute++) {
+            Bucket bucket = ring.get(index(minute));
+            if (bucket == null || bucket.minute != minute) {
+                continue;
+            }
+            for (Map.Entry<Integer, LongAdder> product : bucket.units.entrySet()) {
+                totals.merge(product.getKey(), product.getValue().sum(), Long::sum);
+            }
+        }
+
+        // Min-heap of the best k so far; its head is the product to drop when a better one comes
+        PriorityQueue<Entry> best = new PriorityQueue<>(k + 1,
+                (a, b) -> a.units != b.units ? Long.compare(a.units, b.units) : Integer.compare(b.productId, a.productId));
+        for (Map.Entry<Integer, Long> total : totals.entrySet()) {
+            if (total.getValue() <= 0) {
+                continue;
+            }
+            best.add(new Entry(total.getKey(), total.getValue()));
+            if (best.size() > k) {
+                best.poll();
+            }
+        }
+        List<Entry> ranked = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            ranked.add(0, best.poll());
+        }
+        return ranked;
+    }
+
+    /**
+     * Forgets every count. Called when the database is cleared.
+     */
+    public void clear() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+        countedIn.clear();
+    }
+
+    /**
+     * Drops the orders of a bucket that left the ring, so countedIn only holds the last 24 hours.
+     */
+    private void forget(Bucket old) {
+        for (Integer orderId : old.orders) {
+            countedIn.remove(orderId, old);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package ProductService;
 
+import Utils.BinaryCodec;
+import Utils.JsonWriter;
+
 import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,6 +26,7 @@ public class Product implements Serializable {
     String description;
     float price;
     int quantity_in_stock;
+    long version;
 
     /**
      * Initializes a new Product.
@@ -57,6 +61,24 @@ public class Product implements Serializable {
         return this.pid;
     }
 
+    /**
+     * Returns the version of the row this product was read from, which changes with every write
+     *
+     * @return the version, or 0 if the product was not read from the database
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the row this product was read from
+     *
+     * @param version the version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     /**
      * Returns the product name
      *
@@ -143,16 +165,53 @@ public class Product implements Serializable {
      * @return a JSON string containing the product's id, name, description, price and quantity
      */
     public String toJson() {
-        String escapedDesc = this.description.replace("\"", "\\\"");
-        String escapedName = this.name.replace("\"", "\\\"");
-
-        return String.format("{\n" +
-                        "\"id\": %d, \n" +
-                        "\"name\": \"%s\", \n" +
-                        "\"description\": \"%s\", \n" +
-                        "\"price\": %.2f, \n" +
-                        "\"quantity\": %d\n" +
-                        "}\n",
-                this.pid, escapedName, escapedDesc, this.price, this.quantity_in_stock);
+        return writeJson(new JsonWriter()).toString();
+    }
+
+    /**
+     * Writes the product information in json format, as {@link #toJson()} returns it.
+     *
+     * @param json the writer to append to
+     * @return the writer
+     */
+    public JsonWriter writeJson(JsonWriter json) {
+        return json.raw("{\n\"id\": ").value(this.pid)
+                .raw(", \n\"name\": ").string(this.name)
+                .raw(", \n\"description\": ").string(this.description)
+                .raw(", \n\"price\": ").price(this.price)
+                .raw(", \n\"quantity\": ").value(this.quantity_in_stock)
+                .raw("\n}\n");
+    }
+
+    /**
+     * Encodes the product for the internal binary transport.
+     *
+     * @return the encoded product, as {@link #fromBinary(byte[])} reads it
+     */
+    public byte[] toBinary() {
+        return BinaryCodec.encode(64, out -> {
+            out.writeInt(this.pid);
+            BinaryCodec.writeString(out, this.name);
+            BinaryCodec.writeString(out, this.description);
+            out.writeFloat(this.price);
+            out.writeInt(this.quantity_in_stock);
+        });
+    }
+
+    /**
+     * Decodes a product written by {@link #toBinary()}.
+     *
+     * @param payload the payload
+     * @return the product
+     */
+    public static Product fromBinary(byte[] payload) {
+        return BinaryCodec.decode(payload, in -> {
+            int id = in.readInt();
+            String name = BinaryCodec.readString(in);
+            String description = BinaryCodec.readString(in);
+            float price = in.readFloat();
+            int quantity = in.readInt();
+            return new Product(id, name, description, price, quantity);
+        });
     }
 }
@@ -1,12 +1,20 @@
 package ProductService;
 
+import Utils.BinaryCodec;
 import Utils.DatabaseManager;
+import Utils.ETags;
+import Utils.RpcFrame;
+import Utils.JsonReader;
+import Utils.JsonWriter;
+import Utils.Log;
+import Utils.ResponseCompression;
+import Utils.Router;
+import Utils.ServiceLifecycle;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 
@@ -17,6 +25,15 @@ import java.sql.SQLException;
 public class ProductHandler implements HttpHandler {
     String errorResponse = "{}\n";
 
+    private enum Route { INTERNAL, PRODUCT }
+
+    private static final Router<Route> ROUTES = new Router<Route>()
+            .add(Router.ANY, "/clear", Route.INTERNAL)
+            .add(Router.ANY, "/restart", Route.INTERNAL)
+            .add(Router.ANY, "/shutdown", Route.INTERNAL)
+            .add(Router.ANY, "/product/internal/{*}", Route.INTERNAL)
+            .add("GET", "/product/{id}", Route.PRODUCT);
+
     /**
      * Routes requests based on HTTP method.
      *
@@ -29,16 +46,14 @@ public class ProductHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
         String method = exchange.getRequestMethod();
         String path = exchange.getRequestURI().getPath();
-        if (path.contains("/internal/") ||
-                path.equals("/clear") ||
-                path.equals("/restart") ||
-                path.equals("/shutdown")) {
+        Router.Match<Route> route = ROUTES.match(method, path);
+        if (route != null && route.target() == Route.INTERNAL) {
             handleInternalSignal(exchange, path); // Ensure this method exists and resets DB/Id counters
             return;
         }
         try {
             if(method.equals("GET")){
-                handleGet(exchange,path);
+                handleGet(exchange,route);
             } else if (method.equals("POST")) {
                 handlePost(exchange);
             }
@@ -52,59 +67,72 @@ public class ProductHandler implements HttpHandler {
             try {
                 DatabaseManager.clearAllData();
             } catch (SQLException e) {
-                System.err.println("Failed to clear database: " + e.getMessage());
+                Log.error("Failed to clear database: " + e.getMessage());
             }
         }else if(path.endsWith("/shutdown")){
             sendResponse(exchange, 200, "{}\n");
-            new Thread(() -> {
-                try { Thread.sleep(200); System.exit(0); } catch (Exception ignored) {}
-            }).start();
+            // Let in-flight requests finish before the process exits
+            ServiceLifecycle.shutdownAsync();
             return;
         }
         sendResponse(exchange, 200, "{}\n");
     }
 
+    /**
+     * Answers product lookups that arrive over the internal binary transport instead of HTTP.
+     *
+     * @param request a request frame whose payload is the product id
+     * @return the encoded product, or a not found / bad request reply
+     */
+    public static RpcFrame handleRpc(RpcFrame request) {
+        if (request.getOp() != RpcFrame.OP_GET_PRODUCT) {
+            return request.reply(RpcFrame.STATUS_BAD_REQUEST, null);
+        }
+        Product product = DatabaseManager.getProductById(BinaryCodec.decodeId(request.getPayload()));
+        if (product == null) {
+            return request.reply(RpcFrame.STATUS_NOT_FOUND, null);
+        }
+        return request.reply(RpcFrame.STATUS_OK, product.toBinary());
+    }
+
     /**
      * Handles a GET request to fetch a product by ID from the request path.
      *
      * <p><b>Responses:</b>
      * <ul>
-     *   <li>{@code 200}: product exists; response body is {@code product.toJson()}</li>
+     *   <li>{@code 200}: product exists; response body is {@code product.toJson()}, with the product's ETag</li>
+     *   <li>{@code 304}: the request's If-None-Match holds the product's current ETag; no body</li>
      *   <li>{@code 400}: malformed path or non-integer id; response body is {@code errorResponse}</li>
      *   <li>{@code 404}: no product with the given id; response body is {@code errorResponse}</li>
      * </ul>
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
-     * @param path the request URI path; must be non-null
+     * @param route the matched route, or null if the path is not a product path
      * @throws IOException if an I/O error occurs while sending the response
      */
-    private void handleGet(HttpExchange exchange, String path) throws IOException {
-        String[] parts = path.split("/");
-        if(parts.length < 3){
+    private void handleGet(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        if(route == null){
             // SendResponse
             sendResponse(exchange, 400, errorResponse);
             return;
         }
-        String idStr = parts[parts.length - 1];
-
 
         int id;
-        if (idStr == null) {
-            sendResponse(exchange, 400, errorResponse);
+        try {
+            id = route.intParam(0);
+        } catch (NumberFormatException e) {
+            sendResponse(exchange,400, errorResponse);
             return;
-        } else {
-            try {
-                id = Integer.parseInt(idStr);
-            } catch (NumberFormatException e) {
-                sendResponse(exchange,400, errorResponse);
-                return;
-            }
         }
         // get the product from the real database
         Product product = DatabaseManager.getProductById(id);
 
         if(product != null){
-            sendResponse(exchange, 200, product.toJson());
+            // Stock is in the tag because orders change it without touching the row's version
+            if (ETags.notModified(exchange, ETags.of("p", product.getPid(), product.getVersion(), product.getQuantity()))) {
+                return;
+            }
+            sendResponse(exchange, 200, product.writeJson(JsonWriter.forThread()));
         }
         else{
             sendResponse(exchange,404, errorResponse);
@@ -122,9 +150,11 @@ public class ProductHandler implements HttpHandler {
      */
     private void handlePost(HttpExchange exchange) throws IOException, SQLException {
         InputStream is = exchange.getRequestBody();
-        String body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        // A malformed (or empty) body has no fields, so the command falls back to the path
+        JsonReader body = JsonReader.forThread();
+        body.parse(is.readAllBytes());
         String path = exchange.getRequestURI().getPath();
-        String command = getJsonValue(body, "command");
+        String command = body.getString("command");
         if(command==null ){
 //
             if (path.contains("/restart")) command = "restart";
@@ -148,18 +178,11 @@ public class ProductHandler implements HttpHandler {
                 return;
             case "shutdown":
                 sendResponse(exchange, 200, "{}\n");
-                new Thread(()->{
-                    try {
-                        Thread.sleep(200);
-                        System.exit(0);
-                    } catch (InterruptedException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).start();
+                ServiceLifecycle.shutdownAsync();
                 return;
         }
 
-        String idStr = getJsonValue(body, "id");
+        String idStr = body.getString("id");
         int id;
         if (idStr == null) {
             sendResponse(exchange, 400, errorResponse);
@@ -185,35 +208,25 @@ public class ProductHandler implements HttpHandler {
             case "delete":
                 handleDelete(exchange, id, body);
                 break;
+            case "shard":
+                handleShard(exchange, id, body);
+                break;
             default:
                 sendResponse(exchange, 400, errorResponse);
         }
     }
 
     /**
-     * Gets the value from the JSON string with corresponding key.
+     * Sends an HTTP response with the JSON body held by a writer, without copying it.
      *
-     * @param json a JSON string
-     * @param key the key of the value searching for
-     * @return the value found or null if key not found
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param statusCode the HTTP status code to send
+     * @param json the writer holding the response body
+     * @throws IOException if an I/O error occurs while sending headers or writing the body
      */
-    private String getJsonValue(String json, String key){
-        String pattern = "\"" + key + "\":";
-        int start = json.indexOf(pattern);
-        if(start==-1){
-            return null;
-        }
-
-        start += pattern.length();
-        int end = json.indexOf(",", start);
-        if(end==-1){
-            end = json.indexOf("}", start);
-        }
-        String value = json.substring(start, end).trim();
-        if(value.startsWith("\"")){
-            value = value.substring(1, value.length()-1);
-        }
-        return value;
+    private void sendResponse(HttpExchange exchange, int statusCode, JsonWriter json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type","application/json");
+        ResponseCompression.send(exchange, statusCode, json);
     }
 
     /**
@@ -229,22 +242,19 @@ public class ProductHandler implements HttpHandler {
     private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
         byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type","application/json");
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        try(OutputStream os = exchange.getResponseBody()){
-            os.write(bytes);
-        }
+        ResponseCompression.send(exchange, statusCode, bytes);
     }
 
     /**
      * Check if fields in the JSON string are non-empty and valid
      *
-     * @param body a JSON string containing the product id, name, description, price, and quantity
+     * @param body the parsed request, containing the product id, name, description, price, and quantity
      * @param desc_matter a Boolean of whether description will be checked
      * @return a Boolean determining whether the description should be validated
      */
-    private Boolean inputContentCheck(String body, Boolean desc_matter){
+    private Boolean inputContentCheck(JsonReader body, Boolean desc_matter){
         // Name issues:
-        String name = getJsonValue(body, "name");
+        String name = body.getString("name");
         if (name == null) {
             return false;
         } else {
@@ -255,7 +265,7 @@ public class ProductHandler implements HttpHandler {
 
         // Description issues:
         if (desc_matter) {
-            String description = getJsonValue(body, "description");
+            String description = body.getString("description");
             if (description == null) {
                 return false;
             } else {
@@ -267,7 +277,7 @@ public class ProductHandler implements HttpHandler {
 
 
         // Price issues:
-        String priceStr = getJsonValue(body, "price");
+        String priceStr = body.getString("price");
         float price;
         if (priceStr == null) {
             return false;
@@ -283,7 +293,7 @@ public class ProductHandler implements HttpHandler {
         }
 
         // Quantity issues:
-        String quantityStr = getJsonValue(body, "quantity");
+        String quantityStr = body.getString("quantity");
         int quantity;
         if (quantityStr == null){
             return false;
@@ -313,17 +323,17 @@ public class ProductHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the product id of the product to be created
-     * @param body a JSON string containing the product id, name, description, price, and quantity
+     * @param body the parsed request, containing the product id, name, description, price, and quantity
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public void handleCreate(HttpExchange exchange, int id, String body) throws IOException {
+    public void handleCreate(HttpExchange exchange, int id, JsonReader body) throws IOException {
         // ID issues:
         if(DatabaseManager.getProductById(id)!=null){
             sendResponse(exchange,409,errorResponse);
             return;
         }
         // if the json is an invalid json, some of the necessary parts are missing
-        String nameValue = getJsonValue(body, "name");
+        String nameValue = body.getString("name");
         if (nameValue == null || nameValue.equals("invalid-info")) {
             sendResponse(exchange, 400, errorResponse);
             return;
@@ -331,15 +341,15 @@ public class ProductHandler implements HttpHandler {
 
         try {
             if (inputContentCheck(body, true)) {
-                String name = getJsonValue(body, "name");
-                String description = getJsonValue(body, "description");
-                float price = Float.parseFloat(getJsonValue(body, "price"));
-                int quantity = Integer.parseInt(getJsonValue(body, "quantity"));
+                String name = body.getString("name");
+                String description = body.getString("description");
+                float price = Float.parseFloat(body.getString("price"));
+                int quantity = body.getInt("quantity");
 
                 DatabaseManager.saveProduct(id,name,description,price,quantity);
                 Product newProduct = new Product(id, name, description, price, quantity);
 
-                sendResponse(exchange, 200, newProduct.toJson());
+                sendResponse(exchange, 200, newProduct.writeJson(JsonWriter.forThread()));
             } else {
                 sendResponse(exchange,400, errorResponse);
             }
@@ -361,19 +371,19 @@ public class ProductHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the product id of the product to be updated
-     * @param body a JSON string containing the product id, name, description, price, and quantity
+     * @param body the parsed request, containing the product id, name, description, price, and quantity
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public  void handleUpdate(HttpExchange exchange, int id, String body) throws SQLException, IOException {
+    public  void handleUpdate(HttpExchange exchange, int id, JsonReader body) throws SQLException, IOException {
         Product product = DatabaseManager.getProductById(id);
         if(product == null){
             sendResponse(exchange, 404, errorResponse);
             return;
         }
-        String name = getJsonValue(body, "name");
-        String description = getJsonValue(body, "description");
-        String priceStr = getJsonValue(body, "price");
-        String quantityStr = getJsonValue(body, "quantity");
+        String name = body.getString("name");
+        String description = body.getString("description");
+        String priceStr = body.getString("price");
+        String quantityStr = body.getString("quantity");
 
         if (name == null && description == null && priceStr == null && quantityStr == null) {
             sendResponse(exchange, 400, errorResponse);
@@ -424,10 +434,46 @@ public class ProductHandler implements HttpHandler {
             }
         }
         DatabaseManager.updateProduct(product.getPid(),product.getName(),product.getDescription(),product.getPrice(),product.getQuantity());
-        sendResponse(exchange, 200, product.toJson());
+        sendResponse(exchange, 200, product.writeJson(JsonWriter.forThread()));
         return;
     }
 
+    /**
+     * Handles a shard command. Splits the stock of a hot product into sub-counters so that concurrent
+     * orders decrement different rows. The total quantity is unchanged; "shards": 1 merges it back.
+     *
+     * <p><b>Responses:</b>
+     * <ul>
+     *   <li>{@code 200}: stock split; response body is {@code product.toJson()}</li>
+     *   <li>{@code 400}: missing or out of range shard count; response body is {@code errorResponse}</li>
+     *   <li>{@code 404}: product id does not exist; response body is {@code errorResponse}</li>
+     * </ul>
+     *
+     * @param exchange the HTTP exchange used to read and write the response; must be non-null
+     * @param id the product id of the product to be sharded
+     * @param body the parsed request, containing the product id and the number of shards
+     * @throws IOException if an I/O error occurs while sending the response
+     * @throws SQLException if the change cannot be committed
+     */
+    public void handleShard(HttpExchange exchange, int id, JsonReader body) throws IOException, SQLException {
+        int shards;
+        try {
+            shards = body.getInt("shards");
+        } catch (Exception e) {
+            sendResponse(exchange, 400, errorResponse);
+            return;
+        }
+        if (shards < 1 || shards > DatabaseManager.MAX_STOCK_SHARDS) {
+            sendResponse(exchange, 400, errorResponse);
+            return;
+        }
+        if (!DatabaseManager.shardProductStock(id, shards)) {
+            sendResponse(exchange, 404, errorResponse);
+            return;
+        }
+        sendResponse(exchange, 200, DatabaseManager.getProductById(id).writeJson(JsonWriter.forThread()));
+    }
+
     /**
      * Handles a delete command. Delete an existing product in database if all fields are valid.
      *
@@ -440,10 +486,10 @@ public class ProductHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the product id of the product to be deleted
-     * @param body a JSON string containing the product id, name, description, price, and quantity
+     * @param body the parsed request, containing the product id, name, description, price, and quantity
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public void handleDelete(HttpExchange exchange, int id, String body) throws IOException {
+    public void handleDelete(HttpExchange exchange, int id, JsonReader body) throws IOException {
 
         try {
             Product product = DatabaseManager.getProductById(id);
@@ -452,7 +498,7 @@ public class ProductHandler implements HttpHandler {
                 return;
             }
 
-            String nameValue = getJsonValue(body, "name");
+            String nameValue = body.getString("name");
 
             // Check if name is missing (null) OR the explicit "invalid-info" signal
             if (nameValue == null || nameValue.equals("invalid-info")) {
@@ -461,16 +507,16 @@ public class ProductHandler implements HttpHandler {
             }
 
             // check if this is an invalid json file
-            if(getJsonValue(body, "name").equals("invalid-info")) {
+            if(body.getString("name").equals("invalid-info")) {
                 sendResponse(exchange, 400, errorResponse);
                 return;
             }
 
             if (inputContentCheck(body, false)) {
-                String name = getJsonValue(body, "name");
-//            String description = getJsonValue(body, "description");
-                float price = Float.parseFloat(getJsonValue(body, "price"));
-                int quantity = Integer.parseInt(getJsonValue(body, "quantity"));
+                String name = body.getString("name");
+//            String description = body.getString("description");
+                float price = Float.parseFloat(body.getString("price"));
+                int quantity = body.getInt("quantity");
 
                 if (product.getName().equals(name)  && product.getPrice() == price &&
                         product.getQuantity() == quantity) { // && product.getDescription().equals(description)
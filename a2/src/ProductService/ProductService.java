@@ -1,14 +1,20 @@
 package ProductService;
 
+import Utils.AdmissionController;
 import Utils.DatabaseManager;
-import com.sun.net.httpserver.HttpServer;
+import Utils.RpcServer;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.sql.SQLException;
 
 import Utils.ConfigReader;
+import Utils.HttpEngine;
+import Utils.Log;
+import Utils.Metrics;
+import Utils.ResponseCompression;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
 
 /**
  * The ProductService class serves as the host for the inventory management Product microservice.
@@ -24,7 +30,7 @@ public class ProductService {
      * The method performs the following initialization steps:
      * 1: Validates command-line arguments for configuration files
      * 2: Parses network settings using the ConfigReader
-     * 3: Initializes the HttpServer and binds it to the service port
+     * 3: Initializes the HTTP engine (see HttpEngine) and binds it to the service port
      * 4: Registers a context listener for all URLs starting with /product
      * @param args The command line arguments. Expects a path to a JSON configuration file
      * @throws IOException If the server cannot be started or bound to the network port
@@ -52,6 +58,7 @@ public class ProductService {
             return;
         }
         try {
+            DatabaseManager.configureConcurrency(configPath);
             DatabaseManager.initializeTables();
             System.out.println("System ready and database initialized");
         }catch (SQLException e){
@@ -63,21 +70,34 @@ public class ProductService {
             int port = ConfigReader.getPort(configPath, "ProductService");
             // new InetSocketAddress(port): combine the IP address and the port number
             // Don't really need to specify the ip address
-            HttpServer server = HttpServer.create(new InetSocketAddress(port),0);
+            HttpEngine server = HttpEngine.fromConfig(configPath, "ProductService", port);
+            Log.configure(configPath, "ProductService");
+            Tracing.configure(configPath, "ProductService");
+            ResponseCompression.configure(configPath, "ProductService");
             // Handle everything start with /product.
             // routing logic of the microservice. Acts as a filter;
             // Whenever an Http request comes in with a path that starts with /product, hand
             // it over to the ProductHandler object to deal with it.
-            server.createContext("/product", new ProductHandler());
+            AdmissionController admission = AdmissionController.fromConfig(configPath, "ProductService");
+            Tracing.instrument(Metrics.instrument(server.createContext("/product", new ProductHandler()))).getFilters().add(admission.filter());
             // new features
-            server.createContext("/clear", new ProductHandler());
-            server.createContext("/restart", new ProductHandler());
-            server.createContext("/shutdown", new ProductHandler());
+            Tracing.instrument(Metrics.instrument(server.createContext("/clear", new ProductHandler()))).getFilters().add(admission.filter());
+            Tracing.instrument(Metrics.instrument(server.createContext("/restart", new ProductHandler()))).getFilters().add(admission.filter());
+            Tracing.instrument(Metrics.instrument(server.createContext("/shutdown", new ProductHandler()))).getFilters().add(admission.filter());
+            // Not behind the admission filter, so it can be read while the service sheds load
+            server.createContext("/metrics", Metrics.handler());
             // Determines how the ProductServer handle concurrent requests;
-            // Executor: decide
-            server.setExecutor(java.util.concurrent.Executors.newFixedThreadPool(10));
+            // Executor: the admission controller owns the worker threads and the bounded queue in front of them
+            server.setExecutor(admission);
             server.start();
+            ServiceLifecycle.register(configPath, server, admission);
             System.out.println("ProductService is listening on port " + port);
+            // Optional binary transport for internal lookups coming from ISCS
+            if (ConfigReader.getBoolean(configPath, "InternalRpc", "enabled", false)) {
+                int rpcPort = ConfigReader.getInt(configPath, "ProductService", "rpcPort", port + 100);
+                RpcServer rpcServer = RpcServer.start("ProductService", rpcPort, ProductHandler::handleRpc, 10);
+                ServiceLifecycle.addFlushHook(rpcServer::close);
+            }
         } catch (IOException e){
             System.err.println("Failed to start server: " + e.getMessage());
 
@@ -1,5 +1,8 @@
 package UserService;
 
+import Utils.BinaryCodec;
+import Utils.JsonWriter;
+
 import java.io.Serializable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -25,6 +28,7 @@ public class User implements Serializable {
     String username;
     String email;
     String password;
+    long version;
 
     private Map<Integer, Integer> purchasedItems;
 
@@ -53,16 +57,26 @@ public class User implements Serializable {
     }
 
     public String purchasesToJson(){
-        StringBuilder json = new StringBuilder("{");
-        int count = 0;
+        return writePurchasesJson(new JsonWriter()).toString();
+    }
+
+    /**
+     * Writes the purchased items as a JSON object of product id to quantity.
+     *
+     * @param json the writer to append to
+     * @return the writer
+     */
+    public JsonWriter writePurchasesJson(JsonWriter json){
+        json.raw("{");
+        boolean first = true;
         for (Map.Entry<Integer, Integer> entry : purchasedItems.entrySet()){
-            json.append(String.format("\"%d\":%d", entry.getKey(), entry.getValue()));
-            if(++count < purchasedItems.size()){
-                json.append(",");
+            if(!first){
+                json.raw(",");
             }
+            json.raw("\"").value(entry.getKey()).raw("\":").value(entry.getValue());
+            first = false;
         }
-       json.append("}");
-        return json.toString();
+        return json.raw("}");
     }
 
     /**
@@ -74,6 +88,24 @@ public class User implements Serializable {
         return id;
     }
 
+    /**
+     * Returns the version of the row this user was read from, which changes with every write
+     *
+     * @return the version, or 0 if the user was not read from the database
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Sets the version of the row this user was read from
+     *
+     * @param version the version
+     */
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     /**
      * Returns the username
      *
@@ -143,9 +175,38 @@ public class User implements Serializable {
      * @return a JSON string containing the user's ID, username, and email
      */
     public String toJson() {
-        String escapedUsername = this.username.replace("\"", "\\\"");
-        String escapedEmail = this.email.replace("\"", "\\\"");
-        return String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\"}",
-                this.id, escapedUsername, escapedEmail);
+        return new JsonWriter().raw("{\"id\": ").value(this.id)
+                .raw(", \"username\": ").string(this.username)
+                .raw(", \"email\": ").string(this.email)
+                .raw("}").toString();
+    }
+
+    /**
+     * Encodes the user for the internal binary transport. The password never leaves the user
+     * service, so it is not part of the encoding.
+     *
+     * @return the encoded user, as {@link #fromBinary(byte[])} reads it
+     */
+    public byte[] toBinary() {
+        return BinaryCodec.encode(64, out -> {
+            out.writeInt(this.id);
+            BinaryCodec.writeString(out, this.username);
+            BinaryCodec.writeString(out, this.email);
+        });
+    }
+
+    /**
+     * Decodes a user written by {@link #toBinary()}.
+     *
+     * @param payload the payload
+     * @return the user, with a null password
+     */
+    public static User fromBinary(byte[] payload) {
+        return BinaryCodec.decode(payload, in -> {
+            int id = in.readInt();
+            String username = BinaryCodec.readString(in);
+            String email = BinaryCodec.readString(in);
+            return new User(id, username, email, null);
+        });
     }
 }
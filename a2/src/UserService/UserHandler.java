@@ -1,14 +1,22 @@
 package UserService;
 
+import Utils.BinaryCodec;
 import Utils.DatabaseManager;
+import Utils.ETags;
 import Utils.PersistenceManager;
+import Utils.RpcFrame;
+import Utils.JsonReader;
+import Utils.JsonWriter;
+import Utils.Log;
+import Utils.ResponseCompression;
+import Utils.Router;
+import Utils.ServiceLifecycle;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import jdk.jshell.execution.Util;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -20,6 +28,15 @@ import java.util.HashMap;
  * Handles the given user request and generate an appropriate response.
  */
 public class UserHandler implements HttpHandler {
+    private enum Route { INTERNAL, USER, PURCHASED }
+
+    private static final Router<Route> ROUTES = new Router<Route>()
+            .add(Router.ANY, "/clear", Route.INTERNAL)
+            .add(Router.ANY, "/restart", Route.INTERNAL)
+            .add(Router.ANY, "/shutdown", Route.INTERNAL)
+            .add(Router.ANY, "/user/internal/{*}", Route.INTERNAL)
+            .add("GET", "/user/{id}", Route.USER)
+            .add("GET", "/user/purchased/{id}", Route.PURCHASED);
 
     /**
      * Routes requests based on HTTP method.
@@ -33,24 +50,23 @@ public class UserHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
         String method = exchange.getRequestMethod();
         String path = exchange.getRequestURI().getPath();
-        System.out.println("[User] method: " + method);
-        System.out.println("[User] path: " + path);
-        if (path.contains("/internal/") ||
-                path.equals("/clear") ||
-                path.equals("/restart") ||
-                path.equals("/shutdown")) {
+        if(Log.debugEnabled()){
+            Log.debug("[User] " + method + " " + path);
+        }
+        Router.Match<Route> route = ROUTES.match(method, path);
+        if (route != null && route.target() == Route.INTERNAL) {
             handleInternalSignal(exchange, path);
             return;
         }
         try {
             if(method.equals("GET")){
-                System.out.println("Try to call handle get");
-                handleGet(exchange,path);
+                Log.debug("Try to call handle get");
+                handleGet(exchange,route);
             } else if (method.equals("POST")) {
                 handlePost(exchange);
             }
         }catch (Exception e){
-            System.out.println(e.getMessage());
+            Log.warn("[User] " + e.getMessage());
         }
     }
 
@@ -67,10 +83,27 @@ public class UserHandler implements HttpHandler {
             sendResponse(exchange, 200, "{}");
         } else if (path.endsWith("/shutdown")) {
             sendResponse(exchange, 200, "{}");
-            new Thread(() -> {
-                try { Thread.sleep(200); System.exit(0); } catch (Exception ignored) {}
-            }).start();
+            // Let in-flight requests finish before the process exits
+            ServiceLifecycle.shutdownAsync();
         }}
+    /**
+     * Answers user lookups that arrive over the internal binary transport instead of HTTP.
+     *
+     * @param request a request frame whose payload is the user id
+     * @return the encoded user, or a not found / bad request reply
+     * @throws SQLException if the database lookup fails
+     */
+    public static RpcFrame handleRpc(RpcFrame request) throws SQLException {
+        if (request.getOp() != RpcFrame.OP_GET_USER) {
+            return request.reply(RpcFrame.STATUS_BAD_REQUEST, null);
+        }
+        User user = DatabaseManager.getUserById(BinaryCodec.decodeId(request.getPayload()));
+        if (user == null) {
+            return request.reply(RpcFrame.STATUS_NOT_FOUND, null);
+        }
+        return request.reply(RpcFrame.STATUS_OK, user.toBinary());
+    }
+
     /**
      * Hash the input string using SHA256
      *
@@ -114,25 +147,26 @@ public class UserHandler implements HttpHandler {
      *
      * <p><b>Responses:</b>
      * <ul>
-     *   <li>{@code 200}: user exists; response body is {@code user.toJson()}</li>
+     *   <li>{@code 200}: user exists; response body is {@code user.toJson()}, with the user's ETag</li>
+     *   <li>{@code 304}: the request's If-None-Match holds the user's current ETag; no body</li>
      *   <li>{@code 400}: malformed path or non-integer id; response body is {@code {}}</li>
      *   <li>{@code 404}: no user with the given id; response body is {@code {}}</li>
      * </ul>
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
-     * @param path the request URI path; must be non-null
+     * @param route the matched route, or null if the path is not a user path
      * @throws IOException if an I/O error occurs while sending the response
      */
-    private void handleGet(HttpExchange exchange, String path) throws IOException {
-        String[] parts = path.split("/");
-        if(parts.length < 3){
+    private void handleGet(HttpExchange exchange, Router.Match<Route> route) throws IOException {
+        if(route == null){
             // SendResponse
             sendResponse(exchange, 400, "{}");
             return;
         }
         int id;
+        boolean purchased = route.target() == Route.PURCHASED;
         try {
-            id = Integer.parseInt(parts[parts.length - 1]);
+            id = route.intParam(0);
         } catch (Exception e) {
             sendResponse(exchange, 400, "{}");
             return;
@@ -143,24 +177,23 @@ public class UserHandler implements HttpHandler {
                 sendResponse(exchange, 404, "{}");
                 return; // Stop here! Don't try to get the password.
             }
-            if(path.contains("/user/purchased/") && parts.length >= 4){
+            if(purchased){
 
                 if (user==null){
                     sendResponse(exchange, 404, "{}");
                     return;
                 }
 
-                sendResponse(exchange, 200, user.purchasesToJson());
+                sendResponse(exchange, 200, user.writePurchasesJson(JsonWriter.forThread()));
                 return;
             }
 
+            // The body only changes when the row does, so a client holding this version needs no body
+            if (ETags.notModified(exchange, ETags.of("u", user.getId(), user.getVersion()))) {
+                return;
+            }
             String hashed_password = hash_helper(user.getPassword());
-            String res1 = String.format("{\n" +
-                    "        \"id\": %d,\n" +
-                    "        \"username\": \"%s\",\n" +
-                    "        \"email\": \"%s\",\n" +
-                    "        \"password\": \"%s\"\n" +
-                    "    }", user.getId(), user.getUsername(), user.getEmail(), hashed_password);
+            JsonWriter res1 = userJson(user.getId(), user.getUsername(), user.getEmail(), hashed_password);
 
             if(user!=null){
                 sendResponse(exchange, 200, res1);
@@ -193,15 +226,16 @@ public class UserHandler implements HttpHandler {
      */
     private void handlePost(HttpExchange exchange) throws IOException, NoSuchAlgorithmException, SQLException {
         InputStream is = exchange.getRequestBody();
-        String body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-//        System.out.println("inside the handlePost: "+body);
+        // A malformed body has no fields, so it is answered like a missing command
+        JsonReader body = JsonReader.forThread();
+        body.parse(is.readAllBytes());
         String path = exchange.getRequestURI().getPath();
         if (path.contains("/internal/")) {
             handleInternalSignal(exchange, path);
             return;
         }
-        String command = getJsonValue(body, "command");
-        String idStr = getJsonValue(body, "id");
+        String command = body.getString("command");
+        String idStr = body.getString("id");
         // this part handles create and delete and update
         if(command == null){
             sendResponse(exchange, 400, "{\"error\": \"No command found\"}");
@@ -219,11 +253,7 @@ public class UserHandler implements HttpHandler {
             case  "shutdown":
 
                 sendResponse(exchange, 200, "{}");
-                new Thread(()->{try {Thread.sleep(200); System.exit(0);
-                } catch (Exception e) {
-
-                }
-                }).start();
+                ServiceLifecycle.shutdownAsync();
                 return;
             case "updatePurchase":
                 handleInternalPurchaseUpdate(exchange, body);
@@ -255,11 +285,11 @@ public class UserHandler implements HttpHandler {
 
     }
 
-    private void handleInternalPurchaseUpdate(HttpExchange exchange, String body) throws IOException{
+    private void handleInternalPurchaseUpdate(HttpExchange exchange, JsonReader body) throws IOException{
         try {
-            int userId = Integer.parseInt(getJsonValue(body, "user_id"));
-            int productId = Integer.parseInt(getJsonValue(body, "product_id"));
-            int quantity = Integer.parseInt(getJsonValue(body, "quantity"));
+            int userId = body.getInt("user_id");
+            int productId = body.getInt("product_id");
+            int quantity = body.getInt("quantity");
 
             User user = DatabaseManager.getUserById(userId);
             if(user != null){
@@ -275,44 +305,31 @@ public class UserHandler implements HttpHandler {
     }
 
     /**
-     * Gets the value from the JSON string with corresponding key.
+     * Sends an HTTP response with the JSON body held by a writer, without copying it.
      *
-     * @param json a JSON string
-     * @param key the key of the value searching for
-     * @return the value found or null if key not found
+     * @param exchange the HTTP exchange used to send the response; must be non-null
+     * @param statusCode the HTTP status code to send
+     * @param json the writer holding the response body
+     * @throws IOException if an I/O error occurs while sending headers or writing the body
      */
-    private String getJsonValue(String json, String key) {
-        // Find the key with quotes.
-        // don't include the colon in the pattern to be whitespace-safe.
-        String keyPattern = "\"" + key + "\"";
-        int keyIndex = json.indexOf(keyPattern);
-        if (keyIndex == -1) return null;
-
-        // Find the colon after the key
-        int colonIndex = json.indexOf(":", keyIndex + keyPattern.length());
-        if (colonIndex == -1) return null;
-
-        // Find the end of the value (either a comma or the closing brace)
-        int valueStart = colonIndex + 1;
-        int nextComma = json.indexOf(",", valueStart);
-        int nextBrace = json.indexOf("}", valueStart);
-
-        int end;
-        if (nextComma != -1 && nextBrace != -1) {
-            end = Math.min(nextComma, nextBrace);
-        } else {
-            end = (nextComma != -1) ? nextComma : nextBrace;
-        }
-
-        if (end == -1) return null;
-
-        // Extract, trim, and strip quotes
-        String value = json.substring(valueStart, end).trim();
-        if (value.startsWith("\"") && value.endsWith("\"")) {
-            value = value.substring(1, value.length() - 1);
-        }
+    private void sendResponse(HttpExchange exchange, int statusCode, JsonWriter json) throws IOException {
+        // Add new line character, so the terminal prompt will start a new line
+        json.raw("\n");
+        exchange.getResponseHeaders().set("Content-Type","application/json");
+        ResponseCompression.send(exchange, statusCode, json);
+    }
 
-        return value;
+    /**
+     * Writes a user, with its hashed password, into this thread's writer.
+     *
+     * @return the writer
+     */
+    private JsonWriter userJson(int id, String username, String email, String hashedPassword){
+        return JsonWriter.forThread().raw("{\n        \"id\": ").value(id)
+                .raw(",\n        \"username\": ").string(username)
+                .raw(",\n        \"email\": ").string(email)
+                .raw(",\n        \"password\": ").string(hashedPassword)
+                .raw("\n    }");
     }
 
     /**
@@ -331,10 +348,7 @@ public class UserHandler implements HttpHandler {
         String response1 = response + "\n";
         byte[] bytes = response1.getBytes(StandardCharsets.UTF_8);
         exchange.getResponseHeaders().set("Content-Type","application/json");
-        exchange.sendResponseHeaders(statusCode, bytes.length);
-        try(OutputStream os = exchange.getResponseBody()){
-            os.write(bytes);
-        }
+        ResponseCompression.send(exchange, statusCode, bytes);
     }
 
     /**
@@ -349,33 +363,33 @@ public class UserHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the user ID of the user to be created/updated
-     * @param body a JSON string containing the user id, username, email, password
+     * @param body the parsed request, containing the user id, username, email, password
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public  void  handleCreate(HttpExchange exchange, int id, String body) throws IOException, NoSuchAlgorithmException, SQLException {
-        System.out.println("Start the handle create method");
+    public  void  handleCreate(HttpExchange exchange, int id, JsonReader body) throws IOException, NoSuchAlgorithmException, SQLException {
+        Log.debug("Start the handle create method");
         if(DatabaseManager.getUserById(id)!=null){
-            System.out.println("User already exist");
+            Log.debug("User already exist");
             sendResponse(exchange,409,"{}");
             return;
         }
 
-        String username = getJsonValue(body, "username");
+        String username = body.getString("username");
         if(username == null || username.isEmpty()){
             sendResponse(exchange, 400, "{}");
             return;
         }
-        String email = getJsonValue(body, "email");
-        String password = getJsonValue(body, "password");
+        String email = body.getString("email");
+        String password = body.getString("password");
         if(username==null || username.isEmpty()||
                 email==null || email.isEmpty()||
                 password==null||password.isEmpty()){
-            System.out.println("sth is null");
+            Log.debug("sth is null");
             sendResponse(exchange,400, "{}");
             return;
         }
         if (!checkEmail(email)){
-            System.out.println("The email is invalid");
+            Log.debug("The email is invalid");
             sendResponse(exchange,400, "{}");
             return;
         }
@@ -385,13 +399,8 @@ public class UserHandler implements HttpHandler {
         User newUser = new User(id, username, email, password);
         DatabaseManager.saveUserFull(id, username, email, password);
         String hashed_password = hash_helper(password);
-        String res1 = String.format("{\n" +
-                "        \"id\": %d,\n" +
-                "        \"username\": \"%s\",\n" +
-                "        \"email\": \"%s\",\n" +
-                "        \"password\": \"%s\"\n" +
-                "    }", id, username, email, hashed_password);
-        System.out.println("successfully create the user");
+        JsonWriter res1 = userJson(id, username, email, hashed_password);
+        Log.debug("successfully create the user");
         sendResponse(exchange, 200, res1);
         return;
 
@@ -410,20 +419,20 @@ public class UserHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the product id of the product attempt to create
-     * @param body a JSON string containing the user id, username, email, password
+     * @param body the parsed request, containing the user id, username, email, password
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public  void handleUpdate(HttpExchange exchange, int id, String body) throws IOException, NoSuchAlgorithmException, SQLException {
+    public  void handleUpdate(HttpExchange exchange, int id, JsonReader body) throws IOException, NoSuchAlgorithmException, SQLException {
         User user = DatabaseManager.getUserById(id);
         if(user==null){
             sendResponse(exchange, 404, "{}");
             return;
         }
 
-        String newUsername = getJsonValue(body, "username");
-        String newEmail = getJsonValue(body, "email");
+        String newUsername = body.getString("username");
+        String newEmail = body.getString("email");
         if (newEmail != null) newEmail = newEmail.trim();
-        String newPassword = getJsonValue(body, "password");
+        String newPassword = body.getString("password");
         // 1: if the email has an invalid type (the email does not have exact one @)
         // 2: newEmail if empty
         if (newEmail!=null && (newEmail.isEmpty() || !checkEmail(newEmail))) {
@@ -454,12 +463,7 @@ public class UserHandler implements HttpHandler {
         }
         String hashed_password = hash_helper(user.getPassword());
         DatabaseManager.updateUser(id, user.getUsername(), user.getEmail(), user.getPassword());
-        String res1 = String.format("{\n" +
-                "        \"id\": %d,\n" +
-                "        \"username\": \"%s\",\n" +
-                "        \"email\": \"%s\",\n" +
-                "        \"password\": \"%s\"\n" +
-                "    }", id, user.getUsername(), user.getEmail(), hashed_password);
+        JsonWriter res1 = userJson(id, user.getUsername(), user.getEmail(), hashed_password);
         sendResponse(exchange, 200, res1);
         return;
     }
@@ -476,10 +480,10 @@ public class UserHandler implements HttpHandler {
      *
      * @param exchange the HTTP exchange used to read and write the response; must be non-null
      * @param id the product id of the product attempt to create
-     * @param body a JSON string containing the user id, username, email, password
+     * @param body the parsed request, containing the user id, username, email, password
      * @throws IOException if an I/O error occurs while sending the response
      */
-    public void handleDelete(HttpExchange exchange, int id, String body) throws IOException, NoSuchAlgorithmException, SQLException {
+    public void handleDelete(HttpExchange exchange, int id, JsonReader body) throws IOException, NoSuchAlgorithmException, SQLException {
         User user = DatabaseManager.getUserById(id);
         if(user==null){
             sendResponse(exchange,404, "{}");
@@ -487,9 +491,9 @@ public class UserHandler implements HttpHandler {
         }
 
 
-        String reqUser = getJsonValue(body,"username");
-        String reqEmail = getJsonValue(body, "email");
-        String reqPassword = getJsonValue(body, "password");
+        String reqUser = body.getString("username");
+        String reqEmail = body.getString("email");
+        String reqPassword = body.getString("password");
 
         if(reqUser == null || reqEmail == null || reqPassword == null ||
                 reqUser.equals("invalid-info") || reqEmail.equals("invalid-info") || reqPassword.equals("invalid-info")){
@@ -1,17 +1,22 @@
 package UserService;
 
+import Utils.AdmissionController;
 import Utils.DatabaseManager;
 import Utils.PersistenceManager;
-import com.sun.net.httpserver.HttpServer;
+import Utils.RpcServer;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
 
 import Utils.ConfigReader;
+import Utils.HttpEngine;
+import Utils.Log;
+import Utils.Metrics;
+import Utils.ResponseCompression;
+import Utils.ServiceLifecycle;
+import Utils.Tracing;
 
 /**
  * The UserService class is the entry point for the user management microservice.
@@ -27,7 +32,7 @@ public class UserService {
      * The main execution point that starts the User microservice
      * This method performs the following operations
      * 1: reads network configuration from the provided JSON file path
-     * 2: Binds the HttpServer to the configured port.
+     * 2: Binds the HTTP engine (see HttpEngine) to the configured port.
      * 3: Registers a context listener for all URLs starting with
      * @param args The command line arguments; expects the config file path at index 0.
      * @throws IOException If the server cannot be started or bound to the network port.
@@ -53,28 +58,40 @@ public class UserService {
             System.out.println("301A2.db not found. Create 301A2.db.");
         }
         try{
+            DatabaseManager.configureConcurrency(configPath);
             DatabaseManager.initializeTables();
             System.out.println("[Database] Connection and tables verified.");
             int port = ConfigReader.getPort(configPath, "UserService");
             // new InetSocketAddress(port): combine the IP address and the port number
             // Don't really need to specify the ip address
-            HttpServer server = HttpServer.create(new InetSocketAddress(port),0);
+            HttpEngine server = HttpEngine.fromConfig(configPath, "UserService", port);
+            Log.configure(configPath, "UserService");
+            Tracing.configure(configPath, "UserService");
+            ResponseCompression.configure(configPath, "UserService");
             // Handle everything start with /user.
             // routing logic of the microservice. Acts as a filter;
             // Whenever an Http request comes in with a path that starts with /user, hand
             // it over to the UserHandler object to deal with it.
-            server.createContext("/user", new UserHandler());
+            AdmissionController admission = AdmissionController.fromConfig(configPath, "UserService");
+            Tracing.instrument(Metrics.instrument(server.createContext("/user", new UserHandler()))).getFilters().add(admission.filter());
             // Update for the new features
-            server.createContext("/clear", new UserHandler());
-            server.createContext("/restart", new UserHandler());
-            server.createContext("/shutdown", new UserHandler());
+            Tracing.instrument(Metrics.instrument(server.createContext("/clear", new UserHandler()))).getFilters().add(admission.filter());
+            Tracing.instrument(Metrics.instrument(server.createContext("/restart", new UserHandler()))).getFilters().add(admission.filter());
+            Tracing.instrument(Metrics.instrument(server.createContext("/shutdown", new UserHandler()))).getFilters().add(admission.filter());
+            // Not behind the admission filter, so it can be read while the service sheds load
+            server.createContext("/metrics", Metrics.handler());
             // Determines how the UserServer handle concurrent requests;
-            // pass Executors.newFixedThreadPool(21) to it; it now maintains a pool of 21 dedicated worker threads
-            // it now maintains a pool of 21 dedicated worker thread
-            // Executor:
-            server.setExecutor(Executors.newFixedThreadPool(10));
+            // the admission controller owns the worker threads and the bounded queue in front of them
+            server.setExecutor(admission);
             server.start();
+            ServiceLifecycle.register(configPath, server, admission);
             System.out.println("UserService is listening on port " + port);
+            // Optional binary transport for internal lookups coming from ISCS
+            if (ConfigReader.getBoolean(configPath, "InternalRpc", "enabled", false)) {
+                int rpcPort = ConfigReader.getInt(configPath, "UserService", "rpcPort", port + 100);
+                RpcServer rpcServer = RpcServer.start("UserService", rpcPort, UserHandler::handleRpc, 10);
+                ServiceLifecycle.addFlushHook(rpcServer::close);
+            }
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("Shutting down UserService...");
                 server.stop(0);
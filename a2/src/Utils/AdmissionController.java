@@ -0,0 +1,409 @@
+package Utils;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionController is the executor every service hands to its HTTP engine.
+ * It replaces the old unbounded newFixedThreadPool(10) with:
+ * 1: a fixed number of worker threads, which is the max number of requests in flight
+ * 2: a bounded queue in front of the workers
+ * 3: a deadline on how long a request may sit in that queue
+ *
+ * <p>A request that finds the queue full, or whose deadline passed while it was queued, is shed:
+ * the server still parses it, but the filter answers 503 with a Retry-After header instead of
+ * calling the real handler. Rejected requests cost almost nothing, so the ones that are admitted
+ * keep their latency even when the arrival rate is far above capacity.</p>
+ *
+ * <p>With {@code "executor": "virtual"} every request runs on its own virtual thread instead of a pool
+ * worker. A request that blocks on JDBC or on an HttpClient call then parks its virtual thread and frees
+ * the carrier, so thousands of blocking requests can be in flight at once. The in-flight limit
+ * (virtualMaxInFlight) becomes a semaphore, and the queue is the virtual threads waiting for a permit,
+ * with the same size and deadline rules. The database is protected separately by the connection limit
+ * in DatabaseManager. Virtual threads need Java 21; on older runtimes the platform pool is used.</p>
+ *
+ * <p>Settings come from the "Admission" section of config.json and can be overridden
+ * per service inside the service's own section.</p>
+ */
+public class AdmissionController implements Executor {
+    /**
+     * Set on the worker thread while a shed request runs through the filter chain
+     */
+    private static final ThreadLocal<String> shedReason = new ThreadLocal<>();
+    /**
+     * Set on the worker thread while a request runs: when it was handed to {@link #execute(Runnable)}
+     */
+    private static final ThreadLocal<Long> enqueuedAt = new ThreadLocal<>();
+
+    private final String serviceName;
+    private final int maxInFlight;
+    private final int maxQueue;
+    private final long queueTimeoutNanos;
+    private final int retryAfterSeconds;
+
+    /**
+     * The workers that run admitted requests; null in virtual thread mode
+     */
+    private final ThreadPoolExecutor workers;
+    /**
+     * Starts one virtual thread per request; null in platform thread mode
+     */
+    private final ExecutorService virtualThreads;
+    /**
+     * In virtual thread mode, one permit per request allowed in flight
+     */
+    private final Semaphore permits;
+    /**
+     * In virtual thread mode, the requests waiting for a permit
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+    /**
+     * A single thread that writes the 503 responses, so the dispatcher thread never blocks on a shed request
+     */
+    private final ThreadPoolExecutor shedder;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /**
+     * Set once the service starts shutting down; every new request is shed from then on
+     */
+    private volatile boolean draining = false;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder rejectedDeadline = new LongAdder();
+
+    /**
+     * Creates an admission controller for one service.
+     * @param serviceName the name used when reporting rejections
+     * @param maxInFlight the number of worker threads; must be positive
+     * @param maxQueue the number of requests allowed to wait for a worker; must be positive
+     * @param queueTimeoutMs how long a request may wait in the queue before it is shed
+     * @param retryAfterSeconds the value of the Retry-After header on a 503
+     */
+    public AdmissionController(String serviceName, int maxInFlight, int maxQueue, long queueTimeoutMs, int retryAfterSeconds) {
+        this(serviceName, maxInFlight, maxQueue, queueTimeoutMs, retryAfterSeconds, null);
+    }
+
+    /**
+     * Creates an admission controller that runs each request on the given executor (in practice, one
+     * virtual thread per request) and limits the requests in flight with a semaphore.
+     * @param serviceName the name used when reporting rejections
+     * @param maxInFlight the number of requests handled at once; must be positive
+     * @param maxQueue the number of requests allowed to wait; must be positive
+     * @param queueTimeoutMs how long a request may wait before it is shed
+     * @param retryAfterSeconds the value of the Retry-After header on a 503
+     * @param perRequestExecutor starts a thread per request, or null for a pool of maxInFlight workers
+     */
+    public AdmissionController(String serviceName, int maxInFlight, int maxQueue, long queueTimeoutMs, int retryAfterSeconds,
+                               ExecutorService perRequestExecutor) {
+        this.serviceName = serviceName;
+        this.maxInFlight = maxInFlight;
+        this.maxQueue = maxQueue;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.virtualThreads = perRequestExecutor;
+        if (perRequestExecutor == null) {
+            this.workers = new ThreadPoolExecutor(maxInFlight, maxInFlight, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(maxQueue));
+            this.permits = null;
+        } else {
+            this.workers = null;
+            this.permits = new Semaphore(maxInFlight);
+        }
+        // When even the shedder falls behind, the dispatcher writes the 503 itself
+        this.shedder = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1024), new ThreadPoolExecutor.CallerRunsPolicy());
+        startReporter();
+        Metrics.gauge("admission_queue_depth", "Requests waiting for a worker", this::getQueueDepth);
+        Metrics.gauge("admission_in_flight", "Requests being handled", this::getInFlight);
+        Metrics.observedCounter("admission_admitted_total", "Requests admitted", admitted::sum);
+        Metrics.observedCounter("admission_rejected_queue_full_total", "Requests shed because the queue was full",
+                rejectedQueueFull::sum);
+        Metrics.observedCounter("admission_rejected_deadline_total", "Requests shed after waiting past the queue deadline",
+                rejectedDeadline::sum);
+    }
+
+    /**
+     * Builds the admission controller of a service from config.json. The queue in front of the workers
+     * and the number of requests in flight are both bounded, so load beyond them is answered with 503
+     * instead of queueing forever. Values in the service's own section win over the shared "Admission" section.
+     * @param configFile The path to the JSON configuration file
+     * @param serviceName The name of the service (For example, "UserService")
+     * @return the configured admission controller
+     * @throws IOException If the file cannot be read
+     */
+    public static AdmissionController fromConfig(String configFile, String serviceName) throws IOException {
+        int maxQueue = setting(configFile, serviceName, "maxQueue", 100);
+        int queueTimeoutMs = setting(configFile, serviceName, "queueTimeoutMs", 1000);
+        int retryAfter = setting(configFile, serviceName, "retryAfterSeconds", 1);
+        String shared = ConfigReader.getString(configFile, "Admission", "executor", "platform");
+        if (ConfigReader.getString(configFile, serviceName, "executor", shared).equalsIgnoreCase("virtual")) {
+            ExecutorService virtualThreads = newVirtualThreadExecutor(serviceName);
+            if (virtualThreads != null) {
+                int maxInFlight = setting(configFile, serviceName, "virtualMaxInFlight", 5000);
+                Log.info("[Admission] " + serviceName + ": virtual threads, up to " + maxInFlight + " in flight");
+                return new AdmissionController(serviceName, maxInFlight, maxQueue, queueTimeoutMs, retryAfter, virtualThreads);
+            }
+        }
+        int maxInFlight = setting(configFile, serviceName, "maxInFlight", 10);
+        return new AdmissionController(serviceName, maxInFlight, maxQueue, queueTimeoutMs, retryAfter);
+    }
+
+    /**
+     * Creates a virtual-thread-per-task executor through reflection, since the code is built for Java 17.
+     * @return the executor, or null if this runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor(String serviceName) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = Class.forName("java.lang.Thread$Builder$OfVirtual")
+                    .getMethod("name", String.class, long.class)
+                    .invoke(builder, serviceName + "-vt-", 0L);
+            ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+                    .getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Java 17 has no Thread.ofVirtual; Java 19 and 20 refuse it without --enable-preview
+            Log.warn("[Admission] " + serviceName + ": virtual threads are not available on Java "
+                    + System.getProperty("java.version") + "; using platform threads");
+            return null;
+        }
+    }
+
+    private static int setting(String configFile, String serviceName, String key, int defaultValue) throws IOException {
+        int shared = ConfigReader.getInt(configFile, "Admission", key, defaultValue);
+        return ConfigReader.getInt(configFile, serviceName, key, shared);
+    }
+
+    /**
+     * Called by the HTTP engine once per exchange.
+     * @param exchange the runnable that parses the request and runs the context's filters and handler
+     */
+    @Override
+    public void execute(Runnable exchange) {
+        long enqueued = System.nanoTime();
+        if (draining) {
+            shedder.execute(() -> runShed(exchange, enqueued, "shutting down"));
+            return;
+        }
+        if (virtualThreads != null) {
+            try {
+                virtualThreads.execute(() -> runOnVirtualThread(exchange, enqueued));
+            } catch (RejectedExecutionException e) {
+                shedder.execute(() -> runShed(exchange, enqueued, "shutting down"));
+            }
+            return;
+        }
+        try {
+            workers.execute(() -> runAdmitted(exchange, enqueued));
+        } catch (RejectedExecutionException e) {
+            rejectedQueueFull.increment();
+            shedder.execute(() -> runShed(exchange, enqueued, "queue full"));
+        }
+    }
+
+    /**
+     * Returns when the request this thread is running was handed to the admission controller, so the
+     * time it spent queued can be told apart from the time it was handled (see Tracing.instrument).
+     * @param now the value to return when the thread is not running a request from an AdmissionController
+     * @return the System.nanoTime the request was queued at, or now
+     */
+    public static long enqueuedAt(long now) {
+        Long enqueued = enqueuedAt.get();
+        return enqueued == null ? now : enqueued;
+    }
+
+    private void runAdmitted(Runnable exchange, long enqueued) {
+        if (System.nanoTime() - enqueued > queueTimeoutNanos) {
+            rejectedDeadline.increment();
+            runShed(exchange, enqueued, "queue deadline");
+            return;
+        }
+        run(exchange, enqueued);
+    }
+
+    /**
+     * Waits for a permit like a pool request waits in the queue: at most maxQueue requests wait, and
+     * only until their deadline.
+     */
+    private void runOnVirtualThread(Runnable exchange, long enqueued) {
+        if (!permits.tryAcquire()) {
+            if (waiting.incrementAndGet() > maxQueue) {
+                waiting.decrementAndGet();
+                rejectedQueueFull.increment();
+                runShed(exchange, enqueued, "queue full");
+                return;
+            }
+            boolean acquired = false;
+            try {
+                acquired = permits.tryAcquire(queueTimeoutNanos - (System.nanoTime() - enqueued), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+            if (!acquired) {
+                rejectedDeadline.increment();
+                runShed(exchange, enqueued, "queue deadline");
+                return;
+            }
+        }
+        try {
+            run(exchange, enqueued);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void run(Runnable exchange, long enqueued) {
+        admitted.increment();
+        inFlight.incrementAndGet();
+        enqueuedAt.set(enqueued);
+        try {
+            exchange.run();
+        } finally {
+            enqueuedAt.remove();
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void runShed(Runnable exchange, long enqueued, String reason) {
+        shedReason.set(reason);
+        enqueuedAt.set(enqueued);
+        try {
+            exchange.run();
+        } finally {
+            enqueuedAt.remove();
+            shedReason.remove();
+        }
+    }
+
+    /**
+     * Returns the filter that answers shed requests. It must be added to every context of the server.
+     * @return the admission filter
+     */
+    public Filter filter() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                String reason = shedReason.get();
+                if (reason == null) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                byte[] body = "{\"status\": \"Service Unavailable\"}\n".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                exchange.sendResponseHeaders(503, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Sheds requests rejected by the admission controller";
+            }
+        };
+    }
+
+    /**
+     * Stops admitting new requests and waits until the ones already admitted or queued have finished.
+     * Requests arriving during the drain are answered with 503.
+     * @param timeoutSeconds the longest time to wait
+     * @return true if everything finished in time
+     */
+    public boolean drain(int timeoutSeconds) {
+        draining = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        try {
+            while (inFlight.get() > 0 || getQueueDepth() > 0
+                    || (workers != null && workers.getActiveCount() > 0)) {
+                if (System.nanoTime() > deadline) {
+                    return false;
+                }
+                Thread.sleep(5);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+            } else {
+                virtualThreads.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for a worker
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return workers != null ? workers.getQueue().size() : waiting.get();
+    }
+
+    /**
+     * Returns the number of requests currently being handled
+     * @return the number of requests in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the total number of shed requests
+     * @return the number of requests answered with 503
+     */
+    public long getRejected() {
+        return rejectedQueueFull.sum() + rejectedDeadline.sum();
+    }
+
+    /**
+     * Returns a one line summary of the admission counters.
+     * @return the summary
+     */
+    public String report() {
+        return String.format("[Admission] %s: admitted=%d rejected(queue full)=%d rejected(deadline)=%d "
+                        + "inFlight=%d/%d queued=%d/%d",
+                serviceName, admitted.sum(), rejectedQueueFull.sum(), rejectedDeadline.sum(),
+                inFlight.get(), maxInFlight, getQueueDepth(), maxQueue);
+    }
+
+    /**
+     * Prints the summary every 10 seconds, but only when new requests were rejected.
+     */
+    private void startReporter() {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, serviceName + "-admission-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        long[] lastRejected = {0};
+        reporter.scheduleAtFixedRate(() -> {
+            long rejected = getRejected();
+            if (rejected != lastRejected[0]) {
+                lastRejected[0] = rejected;
+                Log.warn(report());
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+}
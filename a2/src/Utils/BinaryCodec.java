@@ -0,0 +1,114 @@
+package Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encodings for the internal transport.
+ * Numbers are written as fixed-size big-endian values and strings as length-prefixed UTF-8,
+ * so decoding is a straight read with no scanning for keys or quotes. Only the primitives live here;
+ * each model writes and reads its own fields with them (for example {@code Product.toBinary()}).
+ */
+public class BinaryCodec {
+
+    /**
+     * Writes the fields of one value.
+     */
+    @FunctionalInterface
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the fields of one value, in the order its {@link Writer} wrote them.
+     *
+     * @param <T> the type of the value
+     */
+    @FunctionalInterface
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Encodes a single id, the payload of every lookup request.
+     *
+     * @param id the id to encode
+     * @return four bytes holding the id
+     */
+    public static byte[] encodeId(int id) {
+        return ByteBuffer.allocate(4).putInt(id).array();
+    }
+
+    /**
+     * Decodes a payload written by {@link #encodeId(int)}.
+     *
+     * @param payload the payload
+     * @return the id
+     */
+    public static int decodeId(byte[] payload) {
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    /**
+     * Encodes one value.
+     *
+     * @param sizeHint the expected size of the encoding in bytes
+     * @param writer writes the fields of the value
+     * @return the encoded value
+     */
+    public static byte[] encode(int sizeHint, Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(sizeHint);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a payload written by {@link #encode(int, Writer)}.
+     *
+     * @param payload the payload
+     * @param reader reads the fields of the value
+     * @param <T> the type of the value
+     * @return the decoded value
+     */
+    public static <T> T decode(byte[] payload, Reader<T> reader) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            return reader.read(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a string that may be null; a leading flag byte tells the reader which case it is.
+     *
+     * @param out the stream to write to
+     * @param value the string, or null
+     * @throws IOException if the stream fails
+     */
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+     *
+     * @param in the stream to read from
+     * @return the string, or null
+     * @throws IOException if the stream fails or ends early
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
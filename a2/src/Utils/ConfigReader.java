@@ -75,6 +75,93 @@ public class ConfigReader {
         return getValue(dbConfig, "Database", "pass");
     }
 
+    /**
+     * Reads an optional integer setting from a section of the configuration file.
+     * Only the keys inside the section's own braces are looked at, so a key that is missing
+     * from the section never picks up the value of a later section.
+     * @param configFile The path to the JSON configuration file
+     * @param section The name of the section (For example, "Admission")
+     * @param key The key inside the section
+     * @param defaultValue The value returned when the section or the key is missing
+     * @return The configured value, or defaultValue
+     * @throws IOException If the file cannot be read
+     */
+    public static int getInt(String configFile, String section, String key, int defaultValue) throws IOException {
+        String value = getSectionValue(Files.readString(Paths.get(configFile)), section, key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * Reads an optional boolean setting from a section of the configuration file.
+     * @param configFile The path to the JSON configuration file
+     * @param section The name of the section
+     * @param key The key inside the section
+     * @param defaultValue The value returned when the section or the key is missing
+     * @return The configured value, or defaultValue
+     * @throws IOException If the file cannot be read
+     */
+    public static boolean getBoolean(String configFile, String section, String key, boolean defaultValue) throws IOException {
+        String value = getSectionValue(Files.readString(Paths.get(configFile)), section, key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Reads an optional string setting from a section of the configuration file.
+     * @param configFile The path to the JSON configuration file
+     * @param section The name of the section
+     * @param key The key inside the section
+     * @param defaultValue The value returned when the section or the key is missing
+     * @return The configured value, or defaultValue
+     * @throws IOException If the file cannot be read
+     */
+    public static String getString(String configFile, String section, String key, String defaultValue) throws IOException {
+        String value = getSectionValue(Files.readString(Paths.get(configFile)), section, key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * Finds the raw value of a key inside the braces of one section.
+     * @param content the whole configuration file
+     * @param section the section name
+     * @param key the key to look up
+     * @return the value with surrounding quotes removed, or null if the section or key is missing
+     */
+    private static String getSectionValue(String content, String section, String key) {
+        int sectionIndex = content.indexOf("\"" + section + "\"");
+        if (sectionIndex == -1) return null;
+        int open = content.indexOf("{", sectionIndex);
+        if (open == -1) return null;
+
+        // Walk to the matching closing brace, skipping anything inside quotes
+        int depth = 0;
+        int close = -1;
+        boolean inString = false;
+        for (int i = open; i < content.length() && close == -1; i++) {
+            char c = content.charAt(i);
+            if (c == '"' && content.charAt(i - 1) != '\\') {
+                inString = !inString;
+            } else if (!inString && c == '{') {
+                depth++;
+            } else if (!inString && c == '}' && --depth == 0) {
+                close = i;
+            }
+        }
+        if (close == -1) return null;
+
+        int keyIndex = content.indexOf("\"" + key + "\"", open);
+        if (keyIndex == -1 || keyIndex > close) return null;
+        int colonIndex = content.indexOf(":", keyIndex);
+        int end = colonIndex + 1;
+        while (end < close && content.charAt(end) != ',' && content.charAt(end) != '}') {
+            end++;
+        }
+        String value = content.substring(colonIndex + 1, end).trim();
+        if (value.startsWith("\"") && value.endsWith("\"") && value.length() >= 2) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
     private static String getValue(String dbConfig, String section, String key) throws IOException {
         String content = new String(java.nio.file.Files.readAllBytes(java.nio.file.Paths.get(dbConfig)));
         int sectionIndex = content.indexOf("\"" + section + "\"");
@@ -0,0 +1,155 @@
+package Utils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ControlPlane sends the cluster commands (shutdown, restart, clear) to every registered instance.
+ *
+ * <p>All instances are contacted at the same time and the broadcast returns as soon as the last one
+ * acknowledges, or when the deadline passes. Instances that fail or miss the deadline are reported
+ * instead of being silently ignored. The deadline is passed along in a header, so an instance that
+ * forwards the command again (ISCS) waits a little less than its caller does.</p>
+ */
+public class ControlPlane {
+    /**
+     * Header carrying the caller's remaining deadline in milliseconds
+     */
+    public static final String DEADLINE_HEADER = "X-Ack-Deadline-Ms";
+    /**
+     * Time left for the nested broadcast to report back before the caller gives up
+     */
+    private static final long FORWARD_MARGIN_MS = 200;
+
+    private final HttpClient client;
+    private final long ackTimeoutMs;
+    /**
+     * Instance name mapped to the URL prefix the command is appended to
+     */
+    private final Map<String, String> instances = new LinkedHashMap<>();
+
+    /**
+     * Creates a control plane with no registered instances.
+     * @param client the HTTP client used to send the commands
+     * @param ackTimeoutMs how long a broadcast waits for acknowledgements
+     */
+    public ControlPlane(HttpClient client, long ackTimeoutMs) {
+        this.client = client;
+        this.ackTimeoutMs = ackTimeoutMs;
+    }
+
+    /**
+     * Registers an instance. The command is sent as a POST to {@code commandUrlPrefix + command}.
+     * @param name the name used in the results (For example, "UserService")
+     * @param commandUrlPrefix the URL the command name is appended to
+     */
+    public synchronized void register(String name, String commandUrlPrefix) {
+        instances.put(name, commandUrlPrefix);
+    }
+
+    /**
+     * Returns the default deadline of a broadcast
+     * @return the deadline in milliseconds
+     */
+    public long getAckTimeoutMs() {
+        return ackTimeoutMs;
+    }
+
+    /**
+     * Works out the deadline for a command that is forwarded on to other instances: the configured
+     * deadline, shortened so the reply still reaches the caller before the caller's own deadline.
+     * @param exchange the request that carried the command
+     * @return the deadline to use for the nested broadcast, in milliseconds
+     */
+    public long forwardDeadline(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst(DEADLINE_HEADER);
+        if (header == null) {
+            return ackTimeoutMs;
+        }
+        try {
+            return Math.max(1, Math.min(ackTimeoutMs, Long.parseLong(header.trim()) - FORWARD_MARGIN_MS));
+        } catch (NumberFormatException e) {
+            return ackTimeoutMs;
+        }
+    }
+
+    /**
+     * Sends a command to every registered instance in parallel using the default deadline.
+     * @param command the command (shutdown, restart or clear)
+     * @return the acknowledgements collected before the deadline
+     */
+    public Result broadcast(String command) {
+        return broadcast(command, ackTimeoutMs);
+    }
+
+    /**
+     * Sends a command to every registered instance in parallel.
+     * @param command the command (shutdown, restart or clear)
+     * @param deadlineMs how long to wait for the acknowledgements
+     * @return the acknowledgements collected before the deadline
+     */
+    public Result broadcast(String command, long deadlineMs) {
+        Map<String, String> targets;
+        synchronized (this) {
+            targets = new LinkedHashMap<>(instances);
+        }
+        Map<String, CompletableFuture<HttpResponse<Void>>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, String> target : targets.entrySet()) {
+            HttpRequest.Builder request = HttpRequest.newBuilder()
+                    .uri(URI.create(target.getValue() + command))
+                    .timeout(Duration.ofMillis(deadlineMs))
+                    .header(DEADLINE_HEADER, String.valueOf(deadlineMs))
+                    .POST(HttpRequest.BodyPublishers.noBody());
+            calls.put(target.getKey(), Tracing.sendAsync(client, target.getKey(), request, HttpResponse.BodyHandlers.discarding()));
+        }
+
+        Result result = new Result();
+        for (Map.Entry<String, CompletableFuture<HttpResponse<Void>>> call : calls.entrySet()) {
+            try {
+                int status = call.getValue().join().statusCode();
+                if (status == 200) {
+                    result.acked.add(call.getKey());
+                } else {
+                    result.failed.add(call.getKey() + " (status " + status + ")");
+                }
+            } catch (Exception e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                result.failed.add(call.getKey() + " (" + cause.getClass().getSimpleName() + ")");
+            }
+        }
+        for (String failure : result.failed) {
+            Log.warn("[ControlPlane] " + command + " not acknowledged by " + failure);
+        }
+        return result;
+    }
+
+    /**
+     * The outcome of one broadcast.
+     */
+    public static class Result {
+        private final List<String> acked = new ArrayList<>();
+        private final List<String> failed = new ArrayList<>();
+
+        public List<String> getAcked() {
+            return acked;
+        }
+
+        public List<String> getFailed() {
+            return failed;
+        }
+
+        public boolean allAcked() {
+            return failed.isEmpty();
+        }
+    }
+}
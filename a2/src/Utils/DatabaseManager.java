@@ -1,23 +1,222 @@
 package Utils;
+import OrderService.IdempotencyStore;
 import OrderService.Order;
 import ProductService.Product;
 import UserService.User;
 
 import java.sql.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 public class DatabaseManager {
     private static String dbUrl = "jdbc:sqlite:301A2.db?timeout=5000";
+    /**
+     * The total stock of a product inside a query on products: the products row plus all of its shards
+     */
+    private static final String TOTAL_STOCK = "quantity + IFNULL((SELECT SUM(s.quantity) FROM product_stock_shards s " +
+            "WHERE s.product_id = products.id), 0)";
+    /**
+     * The most sub-counters a product's stock can be split into
+     */
+    public static final int MAX_STOCK_SHARDS = 64;
+
+    /**
+     * Number of shards a contended product is split into automatically; 0 turns automatic sharding off
+     */
+    private static volatile int autoShards = 0;
+    private static volatile long slowDecrementNanos = 50_000_000L;
+    private static volatile int slowDecrementsBeforeSharding = 20;
+    private static final Map<Integer, AtomicInteger> slowDecrements = new ConcurrentHashMap<>();
+    /**
+     * Told about every committed order and cancellation (the order journal, the sales counters)
+     */
+    private static final List<OrderListener> orderListeners = new CopyOnWriteArrayList<>();
 //    private static DBConfig config = DBConfig.load1();
 
 
-    private static Connection getConnection() throws SQLException{
-        System.out.println("[DB] Connecting to: " + dbUrl);
-        Connection connection = DriverManager.getConnection(dbUrl);
-        try(Statement statement = connection.createStatement()) {
-            statement.execute("PRAGMA foreign_keys = ON;");        }
-        return connection;
+    /**
+     * Limits how many connections are open at once, so thousands of request threads cannot all hit
+     * SQLite together; null when unlimited
+     */
+    private static volatile Semaphore connectionPermits;
+    private static volatile long connectionWaitMs = 5000;
+    /**
+     * The outermost connection this thread has open. A connection opened while it is open shares its
+     * permit, so a thread never waits for a second permit while holding one.
+     */
+    private static final ThreadLocal<OpenConnection> outermost = new ThreadLocal<>();
+
+    private static final class OpenConnection {
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final List<Runnable> afterClose = new ArrayList<>();
+    }
+
+    private static final Metrics.Histogram operationTimes = Metrics.histogram("db_operation_duration_seconds",
+            "Time a DatabaseManager operation holds its connection, by operation", "operation");
+    private static final Metrics.Histogram.Child connectionWaits = Metrics.histogram("db_connection_wait_seconds",
+            "Time waiting for a connection permit and opening the connection").labels();
+    private static final Metrics.Counter operationFailures = Metrics.counter("db_connection_failures_total",
+            "Operations that could not get a connection, by operation", "operation");
+
+    /**
+     * Opens a connection for one operation. The operation name labels its metrics: the time from
+     * asking for the connection until it is closed is recorded under it, and as a span when the
+     * thread is handling a traced request. Only the outermost connection of a thread takes a permit;
+     * one opened while it is open (IdAllocator leasing ids, a listener reading a row) does not.
+     */
+    private static Connection getConnection(String operation) throws SQLException{
+        long start = System.nanoTime();
+        Tracing.Span request = Tracing.current();
+        Tracing.Span span = request == null ? null : request.child("db " + operation);
+        OpenConnection outer = outermost.get();
+        OpenConnection opened = outer != null && !outer.closed.get() ? null : new OpenConnection();
+        Semaphore permits = opened == null ? null : connectionPermits;
+        if (permits != null) {
+            try {
+                if (!permits.tryAcquire(connectionWaitMs, TimeUnit.MILLISECONDS)) {
+                    operationFailures.labels(operation).increment();
+                    if (span != null) {
+                        span.end(0);
+                    }
+                    throw new SQLTransientConnectionException("Database busy: no connection free after " + connectionWaitMs + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (span != null) {
+                    span.end(0);
+                }
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            }
+        }
+        try {
+            if (Log.debugEnabled()) {
+                Log.debug("[DB] Connecting to: " + dbUrl);
+            }
+            Connection connection = DriverManager.getConnection(dbUrl);
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA foreign_keys = ON;");        }
+            connectionWaits.observeSince(start);
+            Connection tracked = trackedUntilClose(connection, permits, opened, operationTimes.labels(operation), start, span);
+            if (opened != null) {
+                outermost.set(opened);
+            }
+            return tracked;
+        } catch (SQLException | RuntimeException e) {
+            operationFailures.labels(operation).increment();
+            if (span != null) {
+                span.end(0);
+            }
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Tells a failure that may succeed if tried again from one that will not: the database was locked
+     * by another writer (SQLITE_BUSY or SQLITE_LOCKED), or no connection was free in time.
+     * @param e the failure
+     * @return true if the operation is worth retrying
+     */
+    public static boolean isTransient(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                // The driver reports the SQLite result code; the low byte is the primary code
+                int code = ((SQLException) cause).getErrorCode() & 0xff;
+                if (code == 5 || code == 6) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wraps a connection so that closing it records the operation's time, ends its span and gives its
+     * permit back, exactly once. Closing the outermost connection of a thread also starts the work
+     * that was waiting for it (see {@link #afterOutermostClose(Runnable)}).
+     */
+    private static Connection trackedUntilClose(Connection connection, Semaphore permits, OpenConnection opened,
+                                                Metrics.Histogram.Child time, long start, Tracing.Span span) {
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        if (method.getName().equals("close") && released.compareAndSet(false, true)) {
+                            time.observeSince(start);
+                            if (span != null) {
+                                span.end(0);
+                            }
+                            if (permits != null) {
+                                permits.release();
+                            }
+                            if (opened != null) {
+                                closeOutermost(opened);
+                            }
+                        }
+                    }
+                });
+    }
+
+    private static void closeOutermost(OpenConnection opened) {
+        opened.closed.set(true);
+        if (outermost.get() == opened) {
+            outermost.remove();
+        }
+        for (Runnable task : opened.afterClose) {
+            CompletableFuture.runAsync(task);
+        }
+    }
+
+    /**
+     * Runs a task on another thread once this thread's outermost connection is closed (right away if
+     * it has none open), so the task's own connection never waits on the caller's transaction.
+     */
+    private static void afterOutermostClose(Runnable task) {
+        OpenConnection outer = outermost.get();
+        if (outer != null && !outer.closed.get()) {
+            outer.afterClose.add(task);
+        } else {
+            CompletableFuture.runAsync(task);
+        }
+    }
+
+    /**
+     * Reads the connection limit from the "Database" section of config.json. It caps the connections
+     * open at once, whatever the number of request threads. With maxConnections 0 (the default)
+     * connections are not limited; otherwise a caller waits up to acquireTimeoutMs for a free one and
+     * then fails with an SQLException. A connection opened by a thread that already holds one shares
+     * its permit.
+     * @param configFile The path to the JSON configuration file
+     * @throws IOException If the file cannot be read
+     */
+    public static void configureConcurrency(String configFile) throws IOException {
+        int maxConnections = ConfigReader.getInt(configFile, "Database", "maxConnections", 0);
+        connectionWaitMs = ConfigReader.getInt(configFile, "Database", "acquireTimeoutMs", 5000);
+        connectionPermits = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
     }
 //    public static void setUpTables() throws SQLException {
 //        String sqlUsers = "CREATE TABLE IF NOT EXISTS users (" +
@@ -46,13 +245,60 @@ public class DatabaseManager {
         dbUrl = url;
     }
 
+    /**
+     * Reads the automatic inventory sharding settings from the "Inventory" section of config.json.
+     * A product whose stock decrement is slow (waiting on other writers) often enough is split into
+     * autoShards sub-counters.
+     * @param configFile The path to the JSON configuration file
+     * @throws IOException If the file cannot be read
+     */
+    public static void configureInventory(String configFile) throws IOException {
+        autoShards = Math.min(MAX_STOCK_SHARDS, ConfigReader.getInt(configFile, "Inventory", "autoShards", 0));
+        slowDecrementNanos = TimeUnit.MILLISECONDS.toNanos(
+                ConfigReader.getInt(configFile, "Inventory", "slowDecrementMs", 50));
+        slowDecrementsBeforeSharding = ConfigReader.getInt(configFile, "Inventory", "slowDecrementsBeforeSharding", 20);
+    }
+
+    /**
+     * Receives every order and cancellation right after its transaction commits. Called on the
+     * thread that committed, so it must be quick and must not throw.
+     */
+    public interface OrderListener {
+        /**
+         * @param type OrderJournal.ORDER_PLACED or OrderJournal.ORDER_CANCELLED
+         * @param orderId the order id
+         * @param prodId the product of the order
+         * @param userId the user of the order
+         * @param qty the quantity of the order
+         */
+        void onOrderEvent(byte type, int orderId, int prodId, int userId, int qty);
+    }
+
+    /**
+     * Adds a listener that is told about every committed order and cancellation.
+     * @param listener the listener
+     */
+    public static void addOrderListener(OrderListener listener) {
+        orderListeners.add(listener);
+    }
+
+    private static void publish(byte type, int orderId, int prodId, int userId, int qty) {
+        for (OrderListener listener : orderListeners) {
+            listener.onOrderEvent(type, orderId, prodId, userId, qty);
+        }
+    }
+
     public static void clearAllData() throws SQLException{
-        try(Connection connection=getConnection();
+        try(Connection connection=getConnection("clearAllData");
             Statement stat = connection.createStatement();
         ) {
+            stat.executeUpdate("DELETE FROM idempotency_keys;");
             stat.executeUpdate("DELETE FROM orders;");
+            stat.executeUpdate("DELETE FROM product_stock_shards;");
             stat.executeUpdate("DELETE FROM products;");
             stat.executeUpdate("DELETE FROM users;");
+            // id_blocks is kept: other instances still hold blocks leased before the clear, so new
+            // leases must go on from the highest id ever leased rather than start again from 1
 
             try {
                 stat.executeUpdate("DELETE FROM sqlite_sequence WHERE name IN ('orders', 'products', 'users');");
@@ -65,14 +311,17 @@ public class DatabaseManager {
 
 
     public static void saveOrder(int prodId, int userId, int qty, String status) throws SQLException{
-        String sql = "INSERT INTO orders (product_id, user_id, quantity, status) VALUES (?, ?, ?, ?)";
-        try(Connection connection=getConnection();
+        String sql = "INSERT INTO orders (id, product_id, user_id, quantity, status) VALUES (?, ?, ?, ?, ?)";
+        // Before the connection is opened: a lease opens a connection of its own
+        int orderId = IdAllocator.orders().next();
+        try(Connection connection=getConnection("saveOrder");
             PreparedStatement preparedStatement = connection.prepareStatement(sql);
         ){
-            preparedStatement.setInt(1, prodId);
-            preparedStatement.setInt(2, userId);
-            preparedStatement.setInt(3, qty);
-            preparedStatement.setString(4, status);
+            preparedStatement.setInt(1, orderId);
+            preparedStatement.setInt(2, prodId);
+            preparedStatement.setInt(3, userId);
+            preparedStatement.setInt(4, qty);
+            preparedStatement.setString(5, status);
             preparedStatement.executeUpdate();
         }
     }
@@ -81,7 +330,7 @@ public class DatabaseManager {
 
     public static Order getOrderById(int orderId){
         String sql = "SELECT * FROM orders WHERE id = ?";
-        try(Connection conn = getConnection();
+        try(Connection conn = getConnection("getOrderById");
             PreparedStatement preparedStatement = conn.prepareStatement(sql);
         ) {
             preparedStatement.setInt(1, orderId);
@@ -93,11 +342,12 @@ public class DatabaseManager {
                                         rs.getString("status")
                             );
                     order.setId(rs.getInt("id"));
+                    order.setVersion(rs.getLong("version"));
                     return order;
                 }
             }
         } catch (SQLException e) {
-            System.err.println("Error fetching order " + orderId + ": " + e.getMessage());
+            Log.error("Error fetching order " + orderId + ": " + e.getMessage());
         }
         return null;
     }
@@ -105,12 +355,13 @@ public class DatabaseManager {
 
 
     public static int saveUser(String name, String email) throws SQLException{
-        String sql = "INSERT INTO users (username, email, password) VALUES (?, ?, 'default')";
-        try(Connection connection = getConnection();
+        String sql = "INSERT INTO users (username, email, password, version) VALUES (?, ?, 'default', ?)";
+        try(Connection connection = getConnection("saveUser");
             PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
         ){
             preparedStatement.setString(1,name);
             preparedStatement.setString(2,email);
+            preparedStatement.setLong(3, ETags.nextVersion());
             preparedStatement.executeUpdate();
 
             try(ResultSet rs = preparedStatement.getGeneratedKeys()){
@@ -123,8 +374,8 @@ public class DatabaseManager {
     }
 
     public static void saveProduct(int id, String name, String description, float price, int quantity){
-        String sql = "INSERT INTO products (id, name, description, price, quantity) VALUES (?, ?, ?, ?, ?)";
-        try(Connection connection = getConnection();
+        String sql = "INSERT INTO products (id, name, description, price, quantity, version) VALUES (?, ?, ?, ?, ?, ?)";
+        try(Connection connection = getConnection("saveProduct");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ){
             preparedStatement.setInt(1,id);
@@ -132,6 +383,7 @@ public class DatabaseManager {
             preparedStatement.setString(3,description);
             preparedStatement.setFloat(4,price);
             preparedStatement.setInt(5,quantity);
+            preparedStatement.setLong(6, ETags.nextVersion());
             preparedStatement.executeUpdate();
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -139,20 +391,22 @@ public class DatabaseManager {
     }
 
     public static Product  getProductById(int productId){
-        String sql = "SELECT * FROM products WHERE id = ?";
-        try(Connection connection = getConnection();
+        String sql = "SELECT id, name, description, price, version, " + TOTAL_STOCK + " AS quantity FROM products WHERE id = ?";
+        try(Connection connection = getConnection("getProductById");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ) {
             preparedStatement.setInt(1,productId);
             try(ResultSet rs = preparedStatement.executeQuery()) {
                 if(rs.next()){
-                    return new Product(
+                    Product product = new Product(
                             rs.getInt("id"),
                             rs.getString("name"),
                             rs.getString("description"),
                             rs.getFloat("price"),
                             rs.getInt("quantity")
                     );
+                    product.setVersion(rs.getLong("version"));
+                    return product;
                 }
             }
         } catch (SQLException e) {
@@ -162,8 +416,8 @@ public class DatabaseManager {
     }
 
     public  static void deleteProduct(int id, String name, float price, int quantity){
-        String sql = "DELETE FROM products WHERE id = ? AND name = ? AND price = ? AND quantity = ?";
-        try(Connection connection = getConnection();
+        String sql = "DELETE FROM products WHERE id = ? AND name = ? AND price = ? AND " + TOTAL_STOCK + " = ?";
+        try(Connection connection = getConnection("deleteProduct");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ) {
             preparedStatement.setInt(1,id);
@@ -176,55 +430,292 @@ public class DatabaseManager {
         }
     }
     public static void updateProductQuantity(int productId, int newQuantity){
-        String sql = "UPDATE products SET quantity = ? WHERE id = ?";
-        try(Connection connection=getConnection();
-            PreparedStatement preparedStatement = connection.prepareStatement(sql)
-        ) {
-            preparedStatement.setInt(1,newQuantity);
-            preparedStatement.setInt(2,productId);
-            preparedStatement.executeUpdate();
+        try(Connection connection=getConnection("updateProductQuantity")) {
+            connection.setAutoCommit(false);
+            setStock(connection, productId, newQuantity);
+            connection.commit();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
     public static void updateProduct(int id, String name, String description, float price, int quantity){
-        String sql = "UPDATE products SET name = ?, description = ?, price = ?, quantity = ? WHERE id = ?";
-        try(Connection connection = getConnection();
+        String sql = "UPDATE products SET name = ?, description = ?, price = ?, version = ? WHERE id = ?";
+        try(Connection connection = getConnection("updateProduct");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ) {
+           connection.setAutoCommit(false);
            preparedStatement.setString(1, name);
            preparedStatement.setString(2, description);
            preparedStatement.setFloat(3, price);
-           preparedStatement.setInt(4, quantity);
+           preparedStatement.setLong(4, ETags.nextVersion());
            preparedStatement.setInt(5, id);
            preparedStatement.executeUpdate();
+           setStock(connection, id, quantity);
+           connection.commit();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Splits the stock of a product into sub-counters, so concurrent orders for it decrement different
+     * rows instead of all waiting on one. The total stock does not change. A shard count of 1 merges
+     * the stock back into the products row.
+     *
+     * @param productId the product id
+     * @param shards the number of sub-counters, between 1 and {@link #MAX_STOCK_SHARDS}
+     * @return false if the product does not exist
+     * @throws SQLException if the change cannot be committed
+     */
+    public static boolean shardProductStock(int productId, int shards) throws SQLException {
+        try (Connection conn = getConnection("shardProductStock")) {
+            conn.setAutoCommit(false);
+            try {
+                Integer total = totalStock(conn, productId);
+                if (total == null) {
+                    conn.rollback();
+                    return false;
+                }
+                writeShards(conn, productId, shards, total);
+                conn.commit();
+                Log.info("[DatabaseManager] Stock of product " + productId + " split into " + shards + " shards");
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static Integer totalStock(Connection conn, int productId) throws SQLException {
+        try (PreparedStatement preparedStatement = conn.prepareStatement(
+                "SELECT " + TOTAL_STOCK + " FROM products WHERE id = ?")) {
+            preparedStatement.setInt(1, productId);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : null;
+            }
+        }
+    }
+
+    private static int shardCount(Connection conn, int productId) throws SQLException {
+        try (PreparedStatement preparedStatement = conn.prepareStatement(
+                "SELECT COUNT(*) FROM product_stock_shards WHERE product_id = ?")) {
+            preparedStatement.setInt(1, productId);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Replaces the stock of a product with {@code total}, spread evenly over {@code shards} sub-counters
+     * (or kept in the products row when shards is 1).
+     */
+    private static void writeShards(Connection conn, int productId, int shards, int total) throws SQLException {
+        try (PreparedStatement clear = conn.prepareStatement("DELETE FROM product_stock_shards WHERE product_id = ?");
+             PreparedStatement row = conn.prepareStatement("UPDATE products SET quantity = ? WHERE id = ?");
+             PreparedStatement insert = conn.prepareStatement(
+                     "INSERT INTO product_stock_shards (product_id, shard, quantity) VALUES (?, ?, ?)")
+        ) {
+            clear.setInt(1, productId);
+            clear.executeUpdate();
+            row.setInt(1, shards <= 1 ? total : 0);
+            row.setInt(2, productId);
+            row.executeUpdate();
+            for (int shard = 0; shards > 1 && shard < shards; shard++) {
+                insert.setInt(1, productId);
+                insert.setInt(2, shard);
+                insert.setInt(3, total / shards + (shard < total % shards ? 1 : 0));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Sets the total stock of a product, keeping its current number of shards.
+     */
+    private static void setStock(Connection conn, int productId, int total) throws SQLException {
+        writeShards(conn, productId, Math.max(1, shardCount(conn, productId)), total);
+    }
+
+    /**
+     * Takes stock from a product inside the caller's transaction, never letting it go below zero.
+     * A sharded product draws from a random shard and falls back to the others; if no single shard
+     * holds enough, the quantity is taken from several shards as long as the total is enough.
+     *
+     * @return true if the stock was taken, false if the product is missing or has too little stock
+     */
+    private static boolean takeStock(Connection conn, int productId, int qty) throws SQLException {
+        // The products row is written first so the transaction holds the write lock from the start
+        long start = System.nanoTime();
+        try (PreparedStatement decrement = conn.prepareStatement(
+                "UPDATE products SET quantity = quantity - ? WHERE id = ? AND quantity >= ?")) {
+            decrement.setInt(1, qty);
+            decrement.setInt(2, productId);
+            decrement.setInt(3, qty);
+            if (decrement.executeUpdate() == 1) {
+                noteDecrement(productId, System.nanoTime() - start);
+                return true;
+            }
+        }
+        int shards = shardCount(conn, productId);
+        if (shards == 0) {
+            return false;
+        }
+        try (PreparedStatement decrement = conn.prepareStatement(
+                "UPDATE product_stock_shards SET quantity = quantity - ? WHERE product_id = ? AND shard = ? AND quantity >= ?")) {
+            int first = ThreadLocalRandom.current().nextInt(shards);
+            for (int i = 0; i < shards; i++) {
+                decrement.setInt(1, qty);
+                decrement.setInt(2, productId);
+                decrement.setInt(3, (first + i) % shards);
+                decrement.setInt(4, qty);
+                if (decrement.executeUpdate() == 1) {
+                    return true;
+                }
+            }
+        }
+        return takeFromSeveralShards(conn, productId, qty);
+    }
+
+    private static boolean takeFromSeveralShards(Connection conn, int productId, int qty) throws SQLException {
+        Integer total = totalStock(conn, productId);
+        if (total == null || total < qty) {
+            return false;
+        }
+        int remaining = qty;
+        try (PreparedStatement select = conn.prepareStatement(
+                "SELECT shard, quantity FROM product_stock_shards WHERE product_id = ? AND quantity > 0 ORDER BY quantity DESC");
+             PreparedStatement decrement = conn.prepareStatement(
+                     "UPDATE product_stock_shards SET quantity = quantity - ? WHERE product_id = ? AND shard = ?")
+        ) {
+            select.setInt(1, productId);
+            try (ResultSet rs = select.executeQuery()) {
+                while (remaining > 0 && rs.next()) {
+                    int taken = Math.min(remaining, rs.getInt("quantity"));
+                    decrement.setInt(1, taken);
+                    decrement.setInt(2, productId);
+                    decrement.setInt(3, rs.getInt("shard"));
+                    decrement.addBatch();
+                    remaining -= taken;
+                }
+            }
+            decrement.executeBatch();
+        }
+        return true;
+    }
+
+    /**
+     * Gives stock back to a product inside the caller's transaction, to a random shard if it is sharded.
+     */
+    private static void returnStock(Connection conn, int productId, int qty) throws SQLException {
+        int shards = shardCount(conn, productId);
+        if (shards == 0) {
+            try (PreparedStatement increment = conn.prepareStatement(
+                    "UPDATE products SET quantity = quantity + ? WHERE id = ?")) {
+                increment.setInt(1, qty);
+                increment.setInt(2, productId);
+                increment.executeUpdate();
+            }
+            return;
+        }
+        try (PreparedStatement increment = conn.prepareStatement(
+                "UPDATE product_stock_shards SET quantity = quantity + ? WHERE product_id = ? AND shard = ?")) {
+            increment.setInt(1, qty);
+            increment.setInt(2, productId);
+            increment.setInt(3, ThreadLocalRandom.current().nextInt(shards));
+            increment.executeUpdate();
+        }
+    }
+
+    /**
+     * Counts decrements of an unsharded product that had to wait for the write lock, and shards the
+     * product once there have been enough of them.
+     */
+    private static void noteDecrement(int productId, long elapsedNanos) {
+        if (autoShards < 2 || elapsedNanos < slowDecrementNanos) {
+            return;
+        }
+        int slow = slowDecrements.computeIfAbsent(productId, id -> new AtomicInteger()).incrementAndGet();
+        if (slow == slowDecrementsBeforeSharding) {
+            // Runs in its own transaction once the caller's has finished
+            afterOutermostClose(() -> {
+                try {
+                    shardProductStock(productId, autoShards);
+                } catch (SQLException e) {
+                    Log.error("[DatabaseManager] Could not shard product " + productId + ": " + e.getMessage());
+                }
+                slowDecrements.remove(productId);
+            });
+        }
+    }
+
     public static void updateOrderStatus(int orderId, String status){
-        String sql = "UPDATE orders SET status = ? WHERE id = ?";
-        try(Connection conn = getConnection();
+        String sql = "UPDATE orders SET status = ?, version = version + 1 WHERE id = ?";
+        try(Connection conn = getConnection("updateOrderStatus");
             PreparedStatement preparedStatement = conn.prepareStatement(sql);
         ) {
             preparedStatement.setString(1, status);
             preparedStatement.setInt(2, orderId);
             preparedStatement.executeUpdate();
         } catch (SQLException e) {
-            System.err.println("Error updating order status: " + e.getMessage());
+            Log.error("Error updating order status: " + e.getMessage());
         }
     }
 
 
+    /**
+     * Receives the rows of a streamed query one at a time.
+     */
+    public interface RowConsumer<T> {
+        void accept(T row) throws IOException;
+    }
+
+    /**
+     * Reads one page of a user's orders, newest first, and hands each order to the consumer as soon
+     * as it is read, so no list of orders is built. The connection is open while the consumer runs,
+     * so the consumer must not block on anything outside this process, such as writing to a client.
+     *
+     * <p>Pages are found with a keyset condition on the order id instead of OFFSET, so each page costs
+     * the same however deep it is. The index on orders(user_id) also holds the row id, which is the
+     * order id, so the index alone gives the rows in order.</p>
+     *
+     * @param userId the user id
+     * @param beforeId only orders with a smaller id are read; null for the first page
+     * @param limit the most orders to read
+     * @param consumer receives each order
+     * @throws SQLException if the query fails
+     * @throws IOException if the consumer fails
+     */
+    public static void streamUserOrders(int userId, Integer beforeId, int limit, RowConsumer<Order> consumer)
+            throws SQLException, IOException {
+        String sql = "SELECT id, product_id, user_id, quantity, status FROM orders " +
+                "WHERE user_id = ? AND id < ? ORDER BY id DESC LIMIT ?";
+        try (Connection conn = getConnection("streamUserOrders");
+             PreparedStatement preparedStatement = conn.prepareStatement(sql)
+        ) {
+            preparedStatement.setInt(1, userId);
+            preparedStatement.setLong(2, beforeId != null ? beforeId : Long.MAX_VALUE);
+            preparedStatement.setInt(3, limit);
+            preparedStatement.setFetchSize(100);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while (rs.next()) {
+                    consumer.accept(new Order(rs.getInt("id"), rs.getInt("product_id"), rs.getInt("user_id"),
+                            rs.getInt("quantity"), rs.getString("status")));
+                }
+            }
+        }
+    }
+
     public static Map<Integer, Integer> getUserPurchases(int userId){
         Map<Integer, Integer> purchases = new HashMap<>();
         String sql = "SELECT product_id, SUM(quantity) as total_qty " +
                 "FROM orders " +
                 "WHERE user_id = ? AND status = 'Success' " +
                 "GROUP BY product_id";
-        try(Connection connection = getConnection();
+        try(Connection connection = getConnection("getUserPurchases");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ){
             preparedStatement.setInt(1,userId);
@@ -240,77 +731,546 @@ public class DatabaseManager {
     }
 
 
-    public static boolean placeOrder(int prodId, int userId, int qty, int newStock){
-        String updateStockSql = "UPDATE products SET quantity = ? WHERE id = ?";
-        String insertOrderSql = "INSERT INTO orders (product_id, user_id, quantity, status) VALUES (?, ?, ?, 'Success')";
+    /**
+     * Places an order whose user and product were validated through ISCS. The stock is taken with a
+     * guarded decrement, so it cannot go below zero even if it changed since it was looked up.
+     *
+     * @param prodId the product id
+     * @param userId the user id
+     * @param qty the quantity ordered; must be positive
+     * @return SUCCESS, INSUFFICIENT_STOCK if the stock ran out (or the product is gone), or FAILED
+     */
+    public static OrderResult placeOrder(int prodId, int userId, int qty){
+        return placeOrder(prodId, userId, qty, null, null);
+    }
 
+    /**
+     * Places an order like {@link #placeOrder(int, int, int)} and records its response under an
+     * idempotency key in the same transaction.
+     *
+     * @param prodId the product id
+     * @param userId the user id
+     * @param qty the quantity ordered; must be positive
+     * @param idempotencyKey the client's key, or null
+     * @param response the response body to store with the key
+     * @return as placeOrder, or DUPLICATE if the key was already used (nothing is changed then)
+     */
+    public static OrderResult placeOrder(int prodId, int userId, int qty, IdempotencyStore.Key idempotencyKey, String response){
+        String insertOrderSql = "INSERT INTO orders (id, product_id, user_id, quantity, status) VALUES (?, ?, ?, ?, 'Success')";
 
+        // Taken before the transaction starts: leasing a new block writes id_blocks on a connection of
+        // its own, which would wait forever on the write lock this transaction holds
+        int orderId;
+        try {
+            orderId = IdAllocator.orders().next();
+        } catch (SQLException e) {
+            Log.warn("Could not allocate an order id: " + e.getMessage());
+            return OrderResult.FAILED;
+        }
 
-        try(Connection conn = getConnection()) {
+        try(Connection conn = getConnection("placeOrder")) {
             conn.setAutoCommit(false);
 
-            try(PreparedStatement updateStmt = conn.prepareStatement(updateStockSql);
-            PreparedStatement insertStmt = conn.prepareStatement(insertOrderSql)
+            try(PreparedStatement insertStmt = conn.prepareStatement(insertOrderSql)
             ) {
-                updateStmt.setInt(1, newStock);
-                updateStmt.setInt(2, prodId);
-                updateStmt.executeUpdate();
+                if(!claimIdempotencyKey(conn, idempotencyKey, 200, response)){
+                    conn.rollback();
+                    return OrderResult.DUPLICATE;
+                }
+                if(!takeStock(conn, prodId, qty)){
+                    conn.rollback();
+                    return OrderResult.INSUFFICIENT_STOCK;
+                }
 
-                insertStmt.setInt(1,prodId);
-                insertStmt.setInt(2, userId);
-                insertStmt.setInt(3, qty);
+                insertStmt.setInt(1, orderId);
+                insertStmt.setInt(2,prodId);
+                insertStmt.setInt(3, userId);
+                insertStmt.setInt(4, qty);
                 insertStmt.executeUpdate();
                 conn.commit();
-                return  true;
+                publish(OrderJournal.ORDER_PLACED, orderId, prodId, userId, qty);
+                return  OrderResult.SUCCESS;
             }
             catch (SQLException e){
                 try {
                     // 1. Log the specific database error for debugging
-                    System.err.println("Transaction failed, rolling back. Reason: " + e.getMessage());
+                    Log.warn("Transaction failed, rolling back. Reason: " + e.getMessage());
 
                     // 2. Perform the rollback
                     conn.rollback();
                 } catch (SQLException rollbackEx) {
                     // 3. Handle cases where the rollback itself fails
-                    System.err.println("Rollback failed: " + rollbackEx.getMessage());
+                    Log.error("Rollback failed: " + rollbackEx.getMessage());
                 }
-                return false;
+                return OrderResult.FAILED;
             }
 
         } catch (SQLException e) {
-            return false;
+            return OrderResult.FAILED;
         }
     }
 
-    public static boolean cancelOrder(int orderId, int prodId, int restoredStock)  {
-        String updateStockSql = "UPDATE products SET quantity = ? WHERE id = ?";
-        String updateOrderSql = "UPDATE orders SET status = 'Cancelled' WHERE id = ?";
+    /**
+     * The outcome of an order that was validated and committed inside the database.
+     */
+    public enum OrderResult {
+        SUCCESS,
+        USER_NOT_FOUND,
+        PRODUCT_NOT_FOUND,
+        INSUFFICIENT_STOCK,
+        FAILED,
+        /**
+         * The idempotency key was already used by a committed order
+         */
+        DUPLICATE
+    }
+
+    /**
+     * Places an order when the order service shares storage with the user and product services.
+     * The user check, product check, stock check and decrement, and the order insert all run in one
+     * local transaction, so no lookup has to go through ISCS.
+     *
+     * <p>The guarded decrement runs first so the transaction takes the write lock straight away
+     * instead of upgrading a read lock later. Failures are reported in the same order as the remote
+     * path: missing user, then missing product, then not enough stock.</p>
+     *
+     * @param prodId the product id
+     * @param userId the user id
+     * @param qty the quantity ordered; must be positive
+     * @return the outcome of the order
+     */
+    public static OrderResult placeOrderLocal(int prodId, int userId, int qty) {
+        return placeOrderLocal(prodId, userId, qty, null, null);
+    }
 
+    /**
+     * Places an order like {@link #placeOrderLocal(int, int, int)} and records its response under an
+     * idempotency key in the same transaction.
+     *
+     * @param prodId the product id
+     * @param userId the user id
+     * @param qty the quantity ordered; must be positive
+     * @param idempotencyKey the client's key, or null
+     * @param response the response body to store with the key
+     * @return as placeOrderLocal, or DUPLICATE if the key was already used (nothing is changed then)
+     */
+    public static OrderResult placeOrderLocal(int prodId, int userId, int qty, IdempotencyStore.Key idempotencyKey, String response) {
+        String insertOrderSql = "INSERT INTO orders (id, product_id, user_id, quantity, status) VALUES (?, ?, ?, ?, 'Success')";
 
-        try(Connection conn = getConnection();) {
+        // Before the transaction, like placeOrder; an order that fails leaves a gap in the ids
+        int orderId;
+        try {
+            orderId = IdAllocator.orders().next();
+        } catch (SQLException e) {
+            Log.warn("Could not allocate an order id: " + e.getMessage());
+            return OrderResult.FAILED;
+        }
+
+        try (Connection conn = getConnection("placeOrderLocal")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(insertOrderSql)) {
+                if (!claimIdempotencyKey(conn, idempotencyKey, 200, response)) {
+                    conn.rollback();
+                    return OrderResult.DUPLICATE;
+                }
+                boolean stockTaken = takeStock(conn, prodId, qty);
+
+                OrderResult failure = null;
+                if (!rowExists(conn, "SELECT 1 FROM users WHERE id = ?", userId)) {
+                    failure = OrderResult.USER_NOT_FOUND;
+                } else if (!stockTaken) {
+                    failure = rowExists(conn, "SELECT 1 FROM products WHERE id = ?", prodId)
+                            ? OrderResult.INSUFFICIENT_STOCK : OrderResult.PRODUCT_NOT_FOUND;
+                }
+                if (failure != null) {
+                    conn.rollback();
+                    return failure;
+                }
+
+                insert.setInt(1, orderId);
+                insert.setInt(2, prodId);
+                insert.setInt(3, userId);
+                insert.setInt(4, qty);
+                insert.executeUpdate();
+                conn.commit();
+                publish(OrderJournal.ORDER_PLACED, orderId, prodId, userId, qty);
+                return OrderResult.SUCCESS;
+            } catch (SQLException e) {
+                Log.warn("Transaction failed, rolling back. Reason: " + e.getMessage());
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackEx) {
+                    Log.error("Rollback failed: " + rollbackEx.getMessage());
+                }
+                return OrderResult.FAILED;
+            }
+        } catch (SQLException e) {
+            return OrderResult.FAILED;
+        }
+    }
+
+    /**
+     * Leases a block of ids from the durable counter in id_blocks. The counter is moved past the
+     * block in one transaction, so the block is never handed out again, to this or any other process.
+     * A counter that does not exist yet starts after the highest id already in use.
+     *
+     * @param name the counter (For example, "orders")
+     * @param size how many ids to lease; must be positive
+     * @return the first id of the block; the block is {@code [first, first + size)}
+     * @throws SQLException if the lease cannot be committed
+     */
+    public static long leaseIdBlock(String name, int size) throws SQLException {
+        String bumpSql = "UPDATE id_blocks SET next_id = next_id + ? WHERE name = ?";
+        String createSql = "INSERT INTO id_blocks (name, next_id) VALUES (?, ?)";
+        String readSql = "SELECT next_id FROM id_blocks WHERE name = ?";
+
+        try (Connection conn = getConnection("leaseIdBlock")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement bump = conn.prepareStatement(bumpSql);
+                 PreparedStatement create = conn.prepareStatement(createSql);
+                 PreparedStatement read = conn.prepareStatement(readSql)
+            ) {
+                // Written first, so two processes leasing at once queue on the write lock
+                bump.setInt(1, size);
+                bump.setString(2, name);
+                if (bump.executeUpdate() == 0) {
+                    create.setString(1, name);
+                    create.setLong(2, firstFreeId(conn, name) + size);
+                    create.executeUpdate();
+                }
+                long next;
+                read.setString(1, name);
+                try (ResultSet rs = read.executeQuery()) {
+                    rs.next();
+                    next = rs.getLong(1);
+                }
+                conn.commit();
+                return next - size;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static long firstFreeId(Connection conn, String name) throws SQLException {
+        if (!name.equals("orders")) {
+            return 1;
+        }
+        try (Statement statement = conn.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT IFNULL(MAX(id), 0) + 1 FROM orders")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Commits a batch of orders that already carry their ids in one transaction. Each order takes
+     * its stock with a guarded decrement, so the batch never oversells; an order that cannot be placed
+     * is rolled back to its own savepoint without affecting the rest of the batch.
+     *
+     * <p>An order whose id is already in the table was committed before a crash and is reported as
+     * a success again, so replaying a batch is harmless.</p>
+     *
+     * @param orders the orders to commit; every order must have its id set
+     * @param checkUsers true to check inside the transaction that each user exists; false when the
+     *                   users were already validated through ISCS
+     * @return the outcome of each order, in the same order as {@code orders}
+     * @throws SQLException if the transaction fails; nothing of the batch is committed in that case
+     */
+    public static OrderResult[] commitOrderBatch(List<Order> orders, boolean checkUsers) throws SQLException {
+        String insertOrderSql = "INSERT INTO orders (id, product_id, user_id, quantity, status) VALUES (?, ?, ?, ?, 'Success')";
+        OrderResult[] results = new OrderResult[orders.size()];
+        List<Order> inserted = new ArrayList<>();
+
+        try (Connection conn = getConnection("commitOrderBatch")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(insertOrderSql)) {
+                for (int i = 0; i < orders.size(); i++) {
+                    Order order = orders.get(i);
+                    Savepoint savepoint = conn.setSavepoint();
+                    // Write first, like placeOrderLocal, so the transaction never has to upgrade a read lock
+                    boolean stockTaken = takeStock(conn, order.getProduct_id(), order.getQuantity());
+
+                    OrderResult result;
+                    if (rowExists(conn, "SELECT 1 FROM orders WHERE id = ?", order.getId())) {
+                        result = OrderResult.SUCCESS;
+                        conn.rollback(savepoint);
+                    } else if (checkUsers && !rowExists(conn, "SELECT 1 FROM users WHERE id = ?", order.getUser_id())) {
+                        result = OrderResult.USER_NOT_FOUND;
+                        conn.rollback(savepoint);
+                    } else if (!stockTaken) {
+                        result = rowExists(conn, "SELECT 1 FROM products WHERE id = ?", order.getProduct_id())
+                                ? OrderResult.INSUFFICIENT_STOCK : OrderResult.PRODUCT_NOT_FOUND;
+                        conn.rollback(savepoint);
+                    } else {
+                        insert.setInt(1, order.getId());
+                        insert.setInt(2, order.getProduct_id());
+                        insert.setInt(3, order.getUser_id());
+                        insert.setInt(4, order.getQuantity());
+                        insert.executeUpdate();
+                        inserted.add(order);
+                        result = OrderResult.SUCCESS;
+                    }
+                    conn.releaseSavepoint(savepoint);
+                    results[i] = result;
+                }
+                conn.commit();
+                // Orders found already committed were published the first time round
+                for (Order order : inserted) {
+                    publish(OrderJournal.ORDER_PLACED, order.getId(), order.getProduct_id(),
+                            order.getUser_id(), order.getQuantity());
+                }
+                return results;
+            } catch (SQLException e) {
+                Log.warn("Batch failed, rolling back. Reason: " + e.getMessage());
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Places every line of a cart in one transaction: either all lines are ordered or none is.
+     * Each line takes its stock with a guarded decrement; the first line that cannot be placed rolls
+     * the whole cart back.
+     *
+     * @param userId the user id
+     * @param lines the cart lines; each carries a product id and a positive quantity. On success
+     *              the id of the order row created for it is set on each line
+     * @param checkUser true to check inside the transaction that the user exists; false when the
+     *                  user was already validated through ISCS
+     * @param idempotencyKey the client's key, or null
+     * @param responseFor builds the response stored with the key from the placed lines (ids set)
+     * @return SUCCESS, the reason the first failing line could not be placed, FAILED or DUPLICATE
+     */
+    public static OrderResult placeCart(int userId, List<Order> lines, boolean checkUser, IdempotencyStore.Key idempotencyKey,
+                                        Function<List<Order>, String> responseFor) {
+        String insertOrderSql = "INSERT INTO orders (id, product_id, user_id, quantity, status) VALUES (?, ?, ?, ?, 'Success')";
+
+        // Before the transaction, like placeOrder
+        int[] orderIds = new int[lines.size()];
+        try {
+            for (int i = 0; i < orderIds.length; i++) {
+                orderIds[i] = IdAllocator.orders().next();
+            }
+        } catch (SQLException e) {
+            Log.warn("Could not allocate order ids: " + e.getMessage());
+            return OrderResult.FAILED;
+        }
+
+        try (Connection conn = getConnection("placeCart")) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement insert = conn.prepareStatement(insertOrderSql)) {
+                // The response needs the order ids, so the key is claimed now and its response written last
+                if (!claimIdempotencyKey(conn, idempotencyKey, 200, "")) {
+                    conn.rollback();
+                    return OrderResult.DUPLICATE;
+                }
+                if (checkUser && !rowExists(conn, "SELECT 1 FROM users WHERE id = ?", userId)) {
+                    conn.rollback();
+                    return OrderResult.USER_NOT_FOUND;
+                }
+                for (int i = 0; i < lines.size(); i++) {
+                    Order line = lines.get(i);
+                    if (!takeStock(conn, line.getProduct_id(), line.getQuantity())) {
+                        OrderResult failure = rowExists(conn, "SELECT 1 FROM products WHERE id = ?", line.getProduct_id())
+                                ? OrderResult.INSUFFICIENT_STOCK : OrderResult.PRODUCT_NOT_FOUND;
+                        conn.rollback();
+                        return failure;
+                    }
+                    line.setId(orderIds[i]);
+                    insert.setInt(1, line.getId());
+                    insert.setInt(2, line.getProduct_id());
+                    insert.setInt(3, userId);
+                    insert.setInt(4, line.getQuantity());
+                    insert.executeUpdate();
+                }
+                if (idempotencyKey != null) {
+                    try (PreparedStatement response = conn.prepareStatement(
+                            "UPDATE idempotency_keys SET response = ? WHERE idem_key = ?")) {
+                        response.setString(1, responseFor.apply(lines));
+                        response.setString(2, idempotencyKey.getValue());
+                        response.executeUpdate();
+                    }
+                }
+                conn.commit();
+                for (Order line : lines) {
+                    publish(OrderJournal.ORDER_PLACED, line.getId(), line.getProduct_id(), userId, line.getQuantity());
+                }
+                return OrderResult.SUCCESS;
+            } catch (SQLException e) {
+                Log.warn("Transaction failed, rolling back. Reason: " + e.getMessage());
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackEx) {
+                    Log.error("Rollback failed: " + rollbackEx.getMessage());
+                }
+                return OrderResult.FAILED;
+            }
+        } catch (SQLException e) {
+            return OrderResult.FAILED;
+        }
+    }
+
+    /**
+     * Stores the response of an order under its idempotency key inside the order's transaction. Runs
+     * before any stock is touched, so a duplicate is detected (and rolled back) without changing stock.
+     * An expired row the purge has not deleted yet is replaced, so the key counts as unused.
+     *
+     * @return true if the key was new (or there is no key), false if it was already used
+     */
+    private static boolean claimIdempotencyKey(Connection conn, IdempotencyStore.Key key, int status, String response) throws SQLException {
+        if (key == null) {
+            return true;
+        }
+        try (PreparedStatement expired = conn.prepareStatement(
+                "DELETE FROM idempotency_keys WHERE idem_key = ? AND created_at < ?")) {
+            expired.setString(1, key.getValue());
+            expired.setLong(2, key.getNotBefore());
+            expired.executeUpdate();
+        }
+        String sql = "INSERT OR IGNORE INTO idempotency_keys (idem_key, fingerprint, status, response, created_at) VALUES (?, ?, ?, ?, ?)";
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setString(1, key.getValue());
+            preparedStatement.setString(2, key.getFingerprint());
+            preparedStatement.setInt(3, status);
+            preparedStatement.setString(4, response);
+            preparedStatement.setLong(5, System.currentTimeMillis());
+            return preparedStatement.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Stores a response under an idempotency key on its own, for an order that is committed later
+     * (asyncOrders), so the key holds across restarts like the key of a synchronous order.
+     *
+     * @param key the client's key
+     * @param status the status of the response
+     * @param response the response body
+     * @return true if the key was new, false if it was already used
+     * @throws SQLException if the key could not be stored
+     */
+    public static boolean claimIdempotencyKey(IdempotencyStore.Key key, int status, String response) throws SQLException {
+        try (Connection conn = getConnection("claimIdempotencyKey")) {
+            conn.setAutoCommit(false);
+            try {
+                boolean claimed = claimIdempotencyKey(conn, key, status, response);
+                conn.commit();
+                return claimed;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Deletes a key claimed by {@link #claimIdempotencyKey(IdempotencyStore.Key, int, String)} whose
+     * order could not be accepted after all, so a retry is handled again.
+     *
+     * @param key the client's key
+     */
+    public static void releaseIdempotencyKey(String key) {
+        try (Connection conn = getConnection("releaseIdempotencyKey");
+             PreparedStatement preparedStatement = conn.prepareStatement("DELETE FROM idempotency_keys WHERE idem_key = ?")
+        ) {
+            preparedStatement.setString(1, key);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            Log.error("Error releasing idempotency key: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the response stored under an idempotency key.
+     *
+     * @param key the client's key
+     * @param notBefore keys stored before this time (in epoch milliseconds) are treated as expired
+     * @return the stored response, with the fingerprint of the request that produced it, or null if the
+     *         key is unknown or expired
+     */
+    public static IdempotencyStore.Response getIdempotentResponse(String key, long notBefore) {
+        String sql = "SELECT fingerprint, status, response FROM idempotency_keys WHERE idem_key = ? AND created_at >= ?";
+        try (Connection conn = getConnection("getIdempotentResponse");
+             PreparedStatement preparedStatement = conn.prepareStatement(sql)
+        ) {
+            preparedStatement.setString(1, key);
+            preparedStatement.setLong(2, notBefore);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                return new IdempotencyStore.Response(rs.getInt("status"),
+                        rs.getString("response").getBytes(StandardCharsets.UTF_8), rs.getString("fingerprint"));
+            }
+        } catch (SQLException e) {
+            Log.error("Error fetching idempotency key: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the idempotency keys that have expired.
+     *
+     * @param notBefore keys stored before this time (in epoch milliseconds) are deleted
+     */
+    public static void purgeIdempotencyKeys(long notBefore) {
+        String sql = "DELETE FROM idempotency_keys WHERE created_at < ?";
+        try (Connection conn = getConnection("purgeIdempotencyKeys");
+             PreparedStatement preparedStatement = conn.prepareStatement(sql)
+        ) {
+            preparedStatement.setLong(1, notBefore);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            Log.error("Error purging idempotency keys: " + e.getMessage());
+        }
+    }
+
+    private static boolean rowExists(Connection conn, String sql, int id) throws SQLException {
+        try (PreparedStatement preparedStatement = conn.prepareStatement(sql)) {
+            preparedStatement.setInt(1, id);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Cancels an order and gives its quantity back to the product's stock.
+     *
+     * @param orderId the order id
+     * @param prodId the product of the order
+     * @param userId the user of the order
+     * @param qty the quantity of the order
+     * @return true if the cancellation was committed
+     */
+    public static boolean cancelOrder(int orderId, int prodId, int userId, int qty)  {
+        String updateOrderSql = "UPDATE orders SET status = 'Cancelled', version = version + 1 WHERE id = ?";
+
+
+        try(Connection conn = getConnection("cancelOrder");) {
               conn.setAutoCommit(false);
 
-              try(PreparedStatement ps1 = conn.prepareStatement(updateStockSql);
-                  PreparedStatement ps2 = conn.prepareStatement(updateOrderSql)
+              try(PreparedStatement ps2 = conn.prepareStatement(updateOrderSql)
               ) {
-                  ps1.setInt(1, restoredStock);
-                  ps1.setInt(2, prodId);
-                  ps1.executeUpdate();
+                  returnStock(conn, prodId, qty);
 
                   ps2.setInt(1, orderId);
                   ps2.executeUpdate();
                   conn.commit();
+                  publish(OrderJournal.ORDER_CANCELLED, orderId, prodId, userId, qty);
                   return true;
               }catch (SQLException e){
                   try {
                       // 1. Log the specific database error for debugging
-                      System.err.println("Transaction failed, rolling back. Reason: " + e.getMessage());
+                      Log.warn("Transaction failed, rolling back. Reason: " + e.getMessage());
 
                       // 2. Perform the rollback
                       conn.rollback();
                   } catch (SQLException rollbackEx) {
                       // 3. Handle cases where the rollback itself fails
-                      System.err.println("Rollback failed: " + rollbackEx.getMessage());
+                      Log.error("Rollback failed: " + rollbackEx.getMessage());
                   }
                   return false;
               }
@@ -328,7 +1288,7 @@ public class DatabaseManager {
 
     public static String getUserNameById(int userId){
         String sql = "SELECT username FROM users WHERE id = ?";
-        try(Connection connection = getConnection();
+        try(Connection connection = getConnection("getUserNameById");
             PreparedStatement preparedStatement = connection.prepareStatement(sql)
         ) {
             preparedStatement.setInt(1,userId);
@@ -338,25 +1298,27 @@ public class DatabaseManager {
                 }
             }
         }catch (SQLException e){
-            System.err.println("Error fetching user: " + e.getMessage());
+            Log.error("Error fetching user: " + e.getMessage());
         }
         return null;
     }
 
     public static User getUserById(int id) throws SQLException {
         String sql = "SELECT * FROM users WHERE id = ?";
-        try(Connection conn = getConnection();
+        try(Connection conn = getConnection("getUserById");
             PreparedStatement preparedStatement = conn.prepareStatement(sql)
 
         ) {
             preparedStatement.setInt(1, id);
             try (ResultSet rs = preparedStatement.executeQuery()){
                 if(rs.next()){
-                    return new User(rs.getInt("id"),
+                    User user = new User(rs.getInt("id"),
                             rs.getString("username"),
                             rs.getString("email"),
                             rs.getString("password")
                     );
+                    user.setVersion(rs.getLong("version"));
+                    return user;
                 }
             }
         }
@@ -369,7 +1331,8 @@ public class DatabaseManager {
                 "id INTEGER PRIMARY KEY, " +
                 "username TEXT NOT NULL, " +
                 "email TEXT NOT NULL, " +
-                "password TEXT NOT NULL" +
+                "password TEXT NOT NULL, " +
+                "version INTEGER NOT NULL DEFAULT 0" + // changed by every write, for ETags
                 ");";
 
         String productTable = "CREATE TABLE IF NOT EXISTS products (" +
@@ -377,44 +1340,90 @@ public class DatabaseManager {
                 "name TEXT NOT NULL, " +
                 "description TEXT, " +
                 "price REAL NOT NULL, " + // FLOAT -> REAL
-                "quantity INTEGER NOT NULL" +
+                "quantity INTEGER NOT NULL, " +
+                "version INTEGER NOT NULL DEFAULT 0" +
                 ");";
 
         String orderTable = "CREATE TABLE IF NOT EXISTS orders (" +
-                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "id INTEGER PRIMARY KEY, " + // assigned by IdAllocator
                 "product_id INTEGER, " + // Removed NOT NULL
                 "user_id INTEGER, " +    // Removed NOT NULL
                 "quantity INTEGER NOT NULL, " +
                 "status TEXT NOT NULL, " +
+                "version INTEGER NOT NULL DEFAULT 0, " +
                 "FOREIGN KEY (product_id) REFERENCES products(id) ON DELETE SET NULL, " +
                 "FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE SET NULL" +
                 ");";
-        try (Connection conn = getConnection();
+        // Sub-counters of a sharded product's stock; the product's total is its row plus these
+        String stockShardTable = "CREATE TABLE IF NOT EXISTS product_stock_shards (" +
+                "product_id INTEGER NOT NULL, " +
+                "shard INTEGER NOT NULL, " +
+                "quantity INTEGER NOT NULL, " +
+                "PRIMARY KEY (product_id, shard), " +
+                "FOREIGN KEY (product_id) REFERENCES products(id) ON DELETE CASCADE" +
+                ");";
+        // Responses of orders placed with an Idempotency-Key, written in the same transaction as the order
+        String idempotencyTable = "CREATE TABLE IF NOT EXISTS idempotency_keys (" +
+                "idem_key TEXT PRIMARY KEY, " +
+                "fingerprint TEXT, " +
+                "status INTEGER NOT NULL DEFAULT 200, " +
+                "response TEXT NOT NULL, " +
+                "created_at INTEGER NOT NULL" +
+                ");";
+        // Durable counters IdAllocator leases blocks of ids from
+        String idBlockTable = "CREATE TABLE IF NOT EXISTS id_blocks (" +
+                "name TEXT PRIMARY KEY, " +
+                "next_id INTEGER NOT NULL" +
+                ");";
+        try (Connection conn = getConnection("initializeTables");
              Statement statement = conn.createStatement()
         ){
             statement.execute("PRAGMA foreign_keys = ON;");
             statement.execute(userTable);
             statement.execute(productTable);
             statement.execute(orderTable);
+            statement.execute(stockShardTable);
+            statement.execute(idempotencyTable);
+            statement.execute(idBlockTable);
+            // Tables created before rows had versions
+            addColumnIfMissing(statement, "users", "version", "INTEGER NOT NULL DEFAULT 0");
+            addColumnIfMissing(statement, "products", "version", "INTEGER NOT NULL DEFAULT 0");
+            addColumnIfMissing(statement, "orders", "version", "INTEGER NOT NULL DEFAULT 0");
+            // Keys stored before requests were fingerprinted
+            addColumnIfMissing(statement, "idempotency_keys", "fingerprint", "TEXT");
+            addColumnIfMissing(statement, "idempotency_keys", "status", "INTEGER NOT NULL DEFAULT 200");
             // prevent the full table scan
             statement.execute("CREATE INDEX IF NOT EXISTS idx_orders_user ON orders(user_id);");
             statement.execute("CREATE INDEX IF NOT EXISTS idx_orders_product ON orders(product_id);");
-            System.out.println("[DatabaseManager] Tables initialized successfully.");
+            Log.info("[DatabaseManager] Tables initialized successfully.");
 
         } catch (SQLException e){
-            System.err.println("[DatabaseManager] Error initializing tables: " + e.getMessage());
+            Log.error("[DatabaseManager] Error initializing tables: " + e.getMessage());
+        }
+    }
+
+
+    private static void addColumnIfMissing(Statement statement, String table, String column, String definition) throws SQLException {
+        try (ResultSet rs = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equalsIgnoreCase(column)) {
+                    return;
+                }
+            }
         }
+        statement.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
     }
 
 
     public static void saveUserFull(int id, String username, String email, String password){
-        String sql = "INSERT INTO users (id, username, email, password) VALUES (?, ?, ?, ?)";
-        try (Connection conn = getConnection();
+        String sql = "INSERT INTO users (id, username, email, password, version) VALUES (?, ?, ?, ?, ?)";
+        try (Connection conn = getConnection("saveUserFull");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, id);
             pstmt.setString(2, username);
             pstmt.setString(3, email);
             pstmt.setString(4, password);
+            pstmt.setLong(5, ETags.nextVersion());
             pstmt.executeUpdate();
         } catch (SQLException e) {
             throw new RuntimeException(e);
@@ -422,20 +1431,21 @@ public class DatabaseManager {
     }
 
     public static void updateUser(int id, String username, String email, String password) throws SQLException {
-        String sql = "UPDATE users SET username = ?, email = ?, password = ? WHERE id = ?";
-        try (Connection conn = getConnection();
+        String sql = "UPDATE users SET username = ?, email = ?, password = ?, version = ? WHERE id = ?";
+        try (Connection conn = getConnection("updateUser");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, username);
             pstmt.setString(2, email);
             pstmt.setString(3, password);
-            pstmt.setInt(4, id);
+            pstmt.setLong(4, ETags.nextVersion());
+            pstmt.setInt(5, id);
             pstmt.executeUpdate();
         }
     }
 
     public static void deleteUser(int id) throws SQLException {
         String sql = "DELETE FROM users WHERE id = ?";
-        try (Connection conn = getConnection();
+        try (Connection conn = getConnection("deleteUser");
              PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, id);
             pstmt.executeUpdate();
@@ -0,0 +1,92 @@
+package Utils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ETags lets a client revalidate a user, product or order it already has. Each of those rows carries
+ * a version that every write changes, so its ETag can be built from the id and version alone, and a
+ * request whose If-None-Match still matches is answered 304 before the body is serialized.
+ *
+ * <p>User and product ids are reused after a delete or a clear, so a version is not a counter on the
+ * row but a stamp from {@link #nextVersion()}: a recreated row never gets a version its predecessor
+ * had.</p>
+ *
+ * <p>The tags are weak. The same row is sent gzip compressed to one client and uncompressed to another,
+ * and a strong ETag must not be shared by two different byte sequences (RFC 7232 section 2.1). A weak
+ * tag only promises the same content, which is all a GET revalidation needs, since If-None-Match uses
+ * the weak comparison anyway.</p>
+ */
+public class ETags {
+    private static final AtomicLong lastVersion = new AtomicLong();
+
+    /**
+     * Returns a new version for a row being written. Versions are microseconds since the epoch, and
+     * strictly increase within a process.
+     * @return the version
+     */
+    public static long nextVersion() {
+        long now = System.currentTimeMillis() * 1000;
+        return lastVersion.accumulateAndGet(now, (last, time) -> Math.max(last + 1, time));
+    }
+
+    /**
+     * Builds an ETag from a prefix naming the kind of resource and the parts that identify its state.
+     * @param kind For example "u" for a user
+     * @param parts the id, version and anything else the body depends on
+     * @return the weak ETag, for example W/"u12-1718000000000000"
+     */
+    public static String of(String kind, long... parts) {
+        StringBuilder sb = new StringBuilder(32).append("W/\"").append(kind);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append('-');
+            }
+            sb.append(parts[i]);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Checks an If-None-Match header against an ETag, using the weak comparison GET requires.
+     * @param ifNoneMatch the header value, or null
+     * @param etag the current ETag
+     * @return true if the client's copy is current
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        String current = opaque(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || opaque(tag).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Sets the response's ETag, and answers 304 Not Modified if the request's If-None-Match matches it.
+     * @param exchange the exchange
+     * @param etag the current ETag
+     * @return true if the 304 was sent and the handler is done
+     * @throws IOException if the response cannot be written
+     */
+    public static boolean notModified(HttpExchange exchange, String etag) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (!matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            return false;
+        }
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return true;
+    }
+}
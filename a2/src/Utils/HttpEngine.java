@@ -0,0 +1,71 @@
+package Utils;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+/**
+ * HttpEngine is the HTTP server a service runs its handlers on. The handlers are plain
+ * com.sun.net.httpserver HttpHandlers and Filters, so the same UserHandler, ProductHandler,
+ * OrderHandler and ISCSHandler run unchanged on either engine:
+ * 1: "jdk", the JDK's built-in HttpServer (the default)
+ * 2: "nio", {@link NioHttpEngine}, a selector based HTTP/1.1 engine with pooled direct buffers,
+ *    keep-alive and pipelining
+ *
+ * <p>The engine is chosen by the "engine" key of the "Http" section of config.json, and can be
+ * overridden per service inside the service's own section, so the engines can be compared one
+ * service at a time.</p>
+ */
+public interface HttpEngine {
+    /**
+     * Maps a path prefix to a handler. A request goes to the context with the longest matching prefix.
+     * @param path the path prefix (For example, "/user")
+     * @param handler the handler of the requests under the prefix
+     * @return the context, whose filters can be added to
+     */
+    HttpContext createContext(String path, HttpHandler handler);
+
+    /**
+     * Sets the executor that runs the handlers. Must be called before {@link #start()}.
+     * @param executor the executor
+     */
+    void setExecutor(Executor executor);
+
+    /**
+     * Starts accepting connections.
+     */
+    void start();
+
+    /**
+     * Stops accepting connections, waits up to the delay for the exchanges in progress to finish,
+     * then closes every connection.
+     * @param delaySeconds the longest time to wait
+     */
+    void stop(int delaySeconds);
+
+    /**
+     * Creates the engine of a service from config.json, bound to the service's port.
+     * @param configFile The path to the JSON configuration file
+     * @param serviceName The name of the service (For example, "UserService")
+     * @param port the port to listen on
+     * @return the engine, not started yet
+     * @throws IOException If the file cannot be read or the port cannot be bound
+     */
+    static HttpEngine fromConfig(String configFile, String serviceName, int port) throws IOException {
+        String shared = ConfigReader.getString(configFile, "Http", "engine", "jdk");
+        String engine = ConfigReader.getString(configFile, serviceName, "engine", shared);
+        if (engine.equalsIgnoreCase("nio")) {
+            int loops = ConfigReader.getInt(configFile, serviceName, "nioLoops",
+                    ConfigReader.getInt(configFile, "Http", "nioLoops", 2));
+            int idleTimeoutMs = ConfigReader.getInt(configFile, serviceName, "nioIdleTimeoutMs",
+                    ConfigReader.getInt(configFile, "Http", "nioIdleTimeoutMs", 30000));
+            Log.info("[Http] " + serviceName + ": NIO engine with " + loops + " event loops");
+            return new NioHttpEngine(new InetSocketAddress(port), loops, idleTimeoutMs);
+        }
+        return new JdkHttpEngine(HttpServer.create(new InetSocketAddress(port), 0));
+    }
+}
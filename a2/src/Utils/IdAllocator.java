@@ -0,0 +1,93 @@
+package Utils;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IdAllocator hands out order ids without touching the database for each one.
+ *
+ * <p>Ids are leased in blocks (10,000 by default) from a durable counter in the id_blocks table.
+ * Leasing a block is one small transaction that moves the counter past it, so no other process, and
+ * no later run of this one, can ever be given an id from the same block. Inside a block, ids come from
+ * an AtomicLong with no lock at all; only the thread that finds the block used up takes a lock to
+ * lease the next one. Ids left unused in a block when the process stops are simply skipped, so ids
+ * are unique and increasing per instance but not gap-free. Clearing the data keeps the counter, so
+ * ids go on increasing across a clear on every instance.</p>
+ */
+public class IdAllocator {
+    private static final IdAllocator orders = new IdAllocator("orders", 10000);
+
+    private final String name;
+    private volatile int blockSize;
+    /**
+     * The block ids are currently taken from; replaced as a whole when it runs out
+     */
+    private volatile Block block = new Block(0, 0);
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    /**
+     * Creates an allocator for one counter. Nothing is leased until the first id is needed.
+     * @param name the name of the counter in the id_blocks table
+     * @param blockSize how many ids one lease covers
+     */
+    public IdAllocator(String name, int blockSize) {
+        this.name = name;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the allocator of order ids shared by every order insert in this process.
+     * @return the order id allocator
+     */
+    public static IdAllocator orders() {
+        return orders;
+    }
+
+    /**
+     * Reads the block size of the order ids from the "IdAllocator" section of config.json.
+     * @param configFile The path to the JSON configuration file
+     * @throws IOException If the file cannot be read
+     */
+    public static void configure(String configFile) throws IOException {
+        orders.blockSize = Math.max(1, ConfigReader.getInt(configFile, "IdAllocator", "blockSize", 10000));
+    }
+
+    /**
+     * Returns a new id. Call it before opening the transaction the id is used in, since a lease needs the write lock.
+     * @return an id no other call, process or restart will return
+     * @throws SQLException if a new block was needed and could not be leased
+     */
+    public int next() throws SQLException {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) {
+                return Math.toIntExact(id);
+            }
+            lease(current);
+        }
+    }
+
+    /**
+     * Replaces the used up block, unless another thread already did. Opens a connection of its own,
+     * so it must not be called inside a transaction: the lease would wait on the caller's write lock.
+     */
+    private synchronized void lease(Block usedUp) throws SQLException {
+        if (block != usedUp) {
+            return;
+        }
+        int size = blockSize;
+        long start = DatabaseManager.leaseIdBlock(name, size);
+        block = new Block(start, start + size);
+    }
+}
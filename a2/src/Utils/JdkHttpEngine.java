@@ -0,0 +1,42 @@
+package Utils;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.util.concurrent.Executor;
+
+/**
+ * JdkHttpEngine runs the handlers on the JDK's built-in HttpServer.
+ */
+public class JdkHttpEngine implements HttpEngine {
+    private final HttpServer server;
+
+    /**
+     * Wraps a server that is already bound.
+     * @param server the server
+     */
+    public JdkHttpEngine(HttpServer server) {
+        this.server = server;
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        return server.createContext(path, handler);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        server.setExecutor(executor);
+    }
+
+    @Override
+    public void start() {
+        server.start();
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+    }
+}
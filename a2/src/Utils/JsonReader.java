@@ -0,0 +1,502 @@
+package Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonReader parses a request body in one pass over its bytes, replacing the getJsonValue helpers
+ * that searched the whole body again for every key.
+ *
+ * <p>Parsing does not build a String of the body. It records where each value starts and ends in a
+ * table of entries, and the getters read from that table: a key is found by comparing it with the
+ * keys of its object, and a string is only decoded when it is asked for. So the cost of parsing is
+ * linear in the size of the body, and reading a field depends on the number of fields, not on the
+ * size of the body.</p>
+ *
+ * <p>Values are returned the way getJsonValue returned them: a string without its quotes, any other
+ * value as its text (a number as written, or an object or array as raw JSON). JSON null counts as a
+ * missing field. Keys are compared as ASCII, which is all the handlers use.</p>
+ *
+ * <p>A reader is reused by parsing again, which drops the entries of the previous body. It must not
+ * be shared between threads; {@link #forThread()} gives each thread its own.</p>
+ */
+public class JsonReader {
+    /**
+     * The entry of the top-level object
+     */
+    public static final int ROOT = 0;
+    private static final int MAX_DEPTH = 32;
+    private static final byte STRING = 1, NUMBER = 2, LITERAL = 3, OBJECT = 4, ARRAY = 5;
+    private static final ThreadLocal<JsonReader> READERS = ThreadLocal.withInitial(JsonReader::new);
+
+    private byte[] json;
+    private int count;
+    // Per entry: the key (quotes excluded, -1 in an array), the value, its type, and the next entry
+    // of the same object or array
+    private int[] keyStarts = new int[16];
+    private int[] keyEnds = new int[16];
+    private int[] valueStarts = new int[16];
+    private int[] valueEnds = new int[16];
+    private byte[] types = new byte[16];
+    private boolean[] escaped = new boolean[16];
+    private int[] firstChild = new int[16];
+    private int[] nextSibling = new int[16];
+    private final int[] lastChild = new int[MAX_DEPTH + 1];
+    private final int[] open = new int[MAX_DEPTH + 1];
+    private int pos;
+    private int end;
+
+    /**
+     * Returns this thread's reader. Its entries are replaced by the next parse on the same thread.
+     * @return the reader
+     */
+    public static JsonReader forThread() {
+        return READERS.get();
+    }
+
+    /**
+     * Parses a body.
+     * @param body the raw bytes of a JSON object
+     * @return true if the body is a well-formed JSON object
+     */
+    public boolean parse(byte[] body) {
+        return parse(body, 0, body.length);
+    }
+
+    /**
+     * Parses part of a byte array. The array must not change while the reader is in use.
+     * @param body the bytes
+     * @param offset where the JSON object starts
+     * @param length the number of bytes
+     * @return true if the bytes are a well-formed JSON object; if not, the reader holds no fields
+     */
+    public boolean parse(byte[] body, int offset, int length) {
+        json = body;
+        pos = offset;
+        end = offset + length;
+        count = 0;
+        skipWhitespace();
+        if (peek() != '{') {
+            return fail();
+        }
+        int root = addEntry(-1, -1);
+        open[0] = root;
+        lastChild[0] = -1;
+        if (!value(root, 0)) {
+            return fail();
+        }
+        skipWhitespace();
+        return pos == end || fail();
+    }
+
+    /**
+     * Parses a string.
+     * @param body a JSON object
+     * @return true if the string is a well-formed JSON object
+     */
+    public boolean parse(String body) {
+        return parse(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean fail() {
+        count = 0;
+        return false;
+    }
+
+    /**
+     * Reads the value at pos into the given entry. Objects and arrays are walked with the open and
+     * lastChild stacks rather than by recursion, so a deeply nested body cannot overflow the stack.
+     */
+    private boolean value(int entry, int depth) {
+        int base = depth;
+        if (!scalarOrOpen(entry, depth)) {
+            return false;
+        }
+        if (types[entry] != OBJECT && types[entry] != ARRAY) {
+            return true;
+        }
+        while (depth >= base) {
+            int container = open[depth];
+            skipWhitespace();
+            int c = peek();
+            boolean isObject = types[container] == OBJECT;
+            if (c == (isObject ? '}' : ']')) {
+                pos++;
+                valueEnds[container] = pos;
+                depth--;
+                continue;
+            }
+            if (lastChild[depth] != -1) {
+                if (c != ',') {
+                    return false;
+                }
+                pos++;
+                skipWhitespace();
+            }
+            int keyStart = -1, keyEnd = -1;
+            if (isObject) {
+                if (peek() != '"') {
+                    return false;
+                }
+                keyStart = pos + 1;
+                if (!skipString()) {
+                    return false;
+                }
+                keyEnd = pos - 1;
+                skipWhitespace();
+                if (peek() != ':') {
+                    return false;
+                }
+                pos++;
+                skipWhitespace();
+            }
+            int child = addEntry(keyStart, keyEnd);
+            if (lastChild[depth] == -1) {
+                firstChild[container] = child;
+            } else {
+                nextSibling[lastChild[depth]] = child;
+            }
+            lastChild[depth] = child;
+            if (!scalarOrOpen(child, depth + 1)) {
+                return false;
+            }
+            if (types[child] == OBJECT || types[child] == ARRAY) {
+                if (depth + 1 > MAX_DEPTH) {
+                    return false;
+                }
+                depth++;
+                open[depth] = child;
+                lastChild[depth] = -1;
+            }
+        }
+        return true;
+    }
+
+    private boolean scalarOrOpen(int entry, int depth) {
+        int c = peek();
+        valueStarts[entry] = pos;
+        switch (c) {
+            case '{':
+                types[entry] = OBJECT;
+                pos++;
+                return depth <= MAX_DEPTH;
+            case '[':
+                types[entry] = ARRAY;
+                pos++;
+                return depth <= MAX_DEPTH;
+            case '"':
+                types[entry] = STRING;
+                valueStarts[entry] = pos + 1;
+                boolean ok = skipString();
+                valueEnds[entry] = pos - 1;
+                escaped[entry] = ok && hasEscape(valueStarts[entry], valueEnds[entry]);
+                return ok;
+            case 't':
+                return literal(entry, "true");
+            case 'f':
+                return literal(entry, "false");
+            case 'n':
+                return literal(entry, "null");
+            default:
+                if (c != '-' && (c < '0' || c > '9')) {
+                    return false;
+                }
+                types[entry] = NUMBER;
+                pos++;
+                while (pos < end && isNumberByte(json[pos])) {
+                    pos++;
+                }
+                valueEnds[entry] = pos;
+                return true;
+        }
+    }
+
+    private static boolean isNumberByte(byte c) {
+        return (c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-';
+    }
+
+    private boolean literal(int entry, String word) {
+        if (end - pos < word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (json[pos + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        types[entry] = LITERAL;
+        pos += word.length();
+        valueEnds[entry] = pos;
+        return true;
+    }
+
+    /**
+     * Moves pos from an opening quote to just past the closing one.
+     */
+    private boolean skipString() {
+        pos++;
+        while (pos < end) {
+            byte c = json[pos++];
+            if (c == '"') {
+                return true;
+            }
+            if (c == '\\') {
+                pos++;
+            } else if (c >= 0 && c < 0x20) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the byte at pos, or -1 at the end of the body.
+     */
+    private int peek() {
+        return pos < end ? json[pos] : -1;
+    }
+
+    private boolean hasEscape(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (json[i] == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte c = json[pos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private int addEntry(int keyStart, int keyEnd) {
+        if (count == types.length) {
+            int size = count * 2;
+            keyStarts = Arrays.copyOf(keyStarts, size);
+            keyEnds = Arrays.copyOf(keyEnds, size);
+            valueStarts = Arrays.copyOf(valueStarts, size);
+            valueEnds = Arrays.copyOf(valueEnds, size);
+            types = Arrays.copyOf(types, size);
+            escaped = Arrays.copyOf(escaped, size);
+            firstChild = Arrays.copyOf(firstChild, size);
+            nextSibling = Arrays.copyOf(nextSibling, size);
+        }
+        int entry = count++;
+        keyStarts[entry] = keyStart;
+        keyEnds[entry] = keyEnd;
+        firstChild[entry] = -1;
+        nextSibling[entry] = -1;
+        escaped[entry] = false;
+        return entry;
+    }
+
+    /**
+     * Finds a field of an object.
+     * @param object the entry of the object, For example {@link #ROOT}
+     * @param key the key
+     * @return the entry of the field, or -1 if the object has no such field (or is not an object)
+     */
+    public int find(int object, String key) {
+        if (object < 0 || object >= count || types[object] != OBJECT) {
+            return -1;
+        }
+        int length = key.length();
+        for (int child = firstChild[object]; child != -1; child = nextSibling[child]) {
+            int start = keyStarts[child];
+            if (keyEnds[child] - start != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && json[start + i] == key.charAt(i)) {
+                i++;
+            }
+            if (i == length) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a field of the top-level object, like the getJsonValue helpers did.
+     * @param key the key
+     * @return the value, or null if the field is missing or null
+     */
+    public String getString(String key) {
+        return getString(ROOT, key);
+    }
+
+    /**
+     * Returns a field of an object.
+     * @param object the entry of the object
+     * @param key the key
+     * @return the value, or null if the field is missing or null
+     */
+    public String getString(int object, String key) {
+        return stringValue(find(object, key));
+    }
+
+    /**
+     * Returns a field of the top-level object as an int. A number in quotes is accepted too, as
+     * Integer.parseInt(getJsonValue(..)) accepted it.
+     * @param key the key
+     * @return the value
+     * @throws NumberFormatException if the field is missing or not an int
+     */
+    public int getInt(String key) {
+        return getInt(ROOT, key);
+    }
+
+    /**
+     * Returns a field of an object as an int.
+     * @param object the entry of the object
+     * @param key the key
+     * @return the value
+     * @throws NumberFormatException if the field is missing or not an int
+     */
+    public int getInt(int object, String key) {
+        return intValue(find(object, key));
+    }
+
+    /**
+     * Checks whether a string field of the top-level object equals a value, without decoding it.
+     * @param key the key
+     * @param value an ASCII value
+     * @return true if the field is a string equal to the value
+     */
+    public boolean isString(String key, String value) {
+        int entry = find(ROOT, key);
+        if (entry == -1 || types[entry] != STRING) {
+            return false;
+        }
+        if (escaped[entry]) {
+            return value.equals(stringValue(entry));
+        }
+        int start = valueStarts[entry];
+        if (valueEnds[entry] - start != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (json[start + i] != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first element of an array.
+     * @param array the entry of the array, For example find(ROOT, "items")
+     * @return the entry of the first element, or -1 if the array is empty (or is not an array)
+     */
+    public int firstElement(int array) {
+        if (array < 0 || array >= count || types[array] != ARRAY) {
+            return -1;
+        }
+        return firstChild[array];
+    }
+
+    /**
+     * Returns the next element of the array (or field of the object) an entry belongs to.
+     * @param entry an entry
+     * @return the next entry, or -1 if it was the last
+     */
+    public int next(int entry) {
+        return nextSibling[entry];
+    }
+
+    /**
+     * Returns the value of an entry.
+     * @param entry an entry, or -1
+     * @return the value as getString returns it, or null for -1 and JSON null
+     */
+    public String stringValue(int entry) {
+        if (entry < 0 || entry >= count) {
+            return null;
+        }
+        int start = valueStarts[entry];
+        int length = valueEnds[entry] - start;
+        if (types[entry] == LITERAL && json[start] == 'n') {
+            return null;
+        }
+        if (types[entry] == STRING && escaped[entry]) {
+            return unescape(start, valueEnds[entry]);
+        }
+        return new String(json, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of an entry as an int, parsed from the bytes of the body.
+     * @param entry an entry, or -1
+     * @return the value
+     * @throws NumberFormatException if the entry is -1 or not an int
+     */
+    public int intValue(int entry) {
+        if (entry < 0 || entry >= count || (types[entry] != NUMBER && types[entry] != STRING)) {
+            throw new NumberFormatException(entry < 0 ? "Missing field" : stringValue(entry));
+        }
+        int pos = valueStarts[entry];
+        int end = valueEnds[entry];
+        boolean negative = pos < end && json[pos] == '-';
+        if (negative || (pos < end && json[pos] == '+')) {
+            pos++;
+        }
+        if (pos == end) {
+            throw new NumberFormatException(stringValue(entry));
+        }
+        // Accumulated as a negative number, so Integer.MIN_VALUE parses too
+        int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+        int multiplyMin = limit / 10;
+        int value = 0;
+        for (; pos < end; pos++) {
+            int digit = json[pos] - '0';
+            if (digit < 0 || digit > 9 || value < multiplyMin || value * 10 < limit + digit) {
+                throw new NumberFormatException(stringValue(entry));
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    private String unescape(int start, int end) {
+        String raw = new String(json, start, end - start, StandardCharsets.UTF_8);
+        StringBuilder out = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 == raw.length()) {
+                out.append(c);
+                continue;
+            }
+            char e = raw.charAt(++i);
+            switch (e) {
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        try {
+                            out.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                            i += 4;
+                            break;
+                        } catch (NumberFormatException ignored) {
+                            // Kept as written
+                        }
+                    }
+                    out.append('\\').append(e);
+                    break;
+                default:
+                    // \" \\ \/
+                    out.append(e);
+            }
+        }
+        return out.toString();
+    }
+}
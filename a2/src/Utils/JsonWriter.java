@@ -0,0 +1,258 @@
+package Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * JsonWriter builds a response body straight into a reusable byte buffer, replacing the
+ * String.format templates. Numbers are written digit by digit, strings are escaped and encoded as
+ * UTF-8 in the same pass, and the finished buffer is written to the response without first being
+ * turned into a String.
+ *
+ * <p>The caller writes the punctuation itself with {@link #raw(String)}, so a body keeps exactly the
+ * layout its template had:</p>
+ * <pre>
+ *     json.raw("{\"id\": ").value(id).raw(", \"name\": ").string(name).raw("}");
+ * </pre>
+ *
+ * <p>A writer must not be shared between threads; {@link #forThread()} gives each thread its own,
+ * emptied for the next response.</p>
+ */
+public class JsonWriter {
+    private static final int INITIAL_SIZE = 1024;
+    // A thread that once sent a very large body does not keep a buffer that large
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+
+    private byte[] buffer;
+    private int size;
+
+    /**
+     * Creates an empty writer.
+     */
+    public JsonWriter() {
+        buffer = new byte[INITIAL_SIZE];
+    }
+
+    /**
+     * Returns this thread's writer, emptied. Whatever the thread wrote into it before is dropped.
+     * @return the writer
+     */
+    public static JsonWriter forThread() {
+        return WRITERS.get().reset();
+    }
+
+    /**
+     * Empties the writer.
+     * @return this writer
+     */
+    public JsonWriter reset() {
+        if (buffer.length > MAX_RETAINED_SIZE) {
+            buffer = new byte[INITIAL_SIZE];
+        }
+        size = 0;
+        return this;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * Appends text as it is, For example punctuation, whitespace and keys.
+     * @param text the text
+     * @return this writer
+     */
+    public JsonWriter raw(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else {
+                i = encode(text, i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends a string value in quotes, escaping what JSON requires.
+     * @param text the string, or null for a JSON null
+     * @return this writer
+     */
+    public JsonWriter string(String text) {
+        if (text == null) {
+            return raw("null");
+        }
+        ensure(text.length() + 2);
+        buffer[size++] = '"';
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                i = encode(text, i);
+                continue;
+            }
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                ensure(1);
+                buffer[size++] = (byte) c;
+                continue;
+            }
+            ensure(6);
+            buffer[size++] = '\\';
+            switch (c) {
+                case '"': buffer[size++] = '"'; break;
+                case '\\': buffer[size++] = '\\'; break;
+                case '\n': buffer[size++] = 'n'; break;
+                case '\r': buffer[size++] = 'r'; break;
+                case '\t': buffer[size++] = 't'; break;
+                case '\b': buffer[size++] = 'b'; break;
+                case '\f': buffer[size++] = 'f'; break;
+                default:
+                    buffer[size++] = 'u';
+                    buffer[size++] = '0';
+                    buffer[size++] = '0';
+                    buffer[size++] = HEX[c >> 4];
+                    buffer[size++] = HEX[c & 0xF];
+            }
+        }
+        ensure(1);
+        buffer[size++] = '"';
+        return this;
+    }
+
+    /**
+     * Encodes the non-ASCII char at index i as UTF-8.
+     * @return the index of the last char used (i + 1 for a surrogate pair)
+     */
+    private int encode(String text, int i) {
+        ensure(4);
+        char c = text.charAt(i);
+        if (c < 0x800) {
+            buffer[size++] = (byte) (0xC0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3F));
+            return i;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, text.charAt(i + 1));
+            buffer[size++] = (byte) (0xF0 | (cp >> 18));
+            buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buffer[size++] = (byte) (0x80 | (cp & 0x3F));
+            return i + 1;
+        }
+        if (Character.isSurrogate(c)) {
+            // An unpaired surrogate, written as String.getBytes would
+            buffer[size++] = '?';
+            return i;
+        }
+        buffer[size++] = (byte) (0xE0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buffer[size++] = (byte) (0x80 | (c & 0x3F));
+        return i;
+    }
+
+    /**
+     * Appends an int.
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(int value) {
+        return value((long) value);
+    }
+
+    /**
+     * Appends a long.
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(long value) {
+        if (value == Long.MIN_VALUE) {
+            return raw(Long.toString(value));
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    /**
+     * Appends a number with two decimals, as "%.2f" formats it (rounding half up).
+     * @param value the value, For example a price
+     * @return this writer
+     */
+    public JsonWriter price(double value) {
+        double scaled = value * 100;
+        double fraction = scaled - Math.floor(scaled);
+        // Near a half cent the last digit depends on the decimal digits of the value, which the
+        // scaled double may have lost, so that case (and anything unusual) goes through Formatter
+        if (!(value >= 0) || scaled >= 1e15 || Math.abs(fraction - 0.5) < 1e-6) {
+            return raw(String.format(Locale.ROOT, "%.2f", value));
+        }
+        long cents = Math.round(scaled);
+        value(cents / 100);
+        ensure(3);
+        buffer[size++] = '.';
+        buffer[size++] = (byte) ('0' + (cents % 100) / 10);
+        buffer[size++] = (byte) ('0' + cents % 10);
+        return this;
+    }
+
+    /**
+     * Returns the number of bytes written
+     * @return the size of the body
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the buffer the body is written in; the body is its first size() bytes.
+     */
+    byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Writes the body to a stream, For example a response body.
+     * @param out the stream
+     * @throws IOException if the stream fails
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Copies the body out of the buffer.
+     * @return the bytes written
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Returns the body as a string.
+     * @return the text written
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,238 @@
+package Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log replaces System.out.println in the handlers and DatabaseManager. println takes the stream's
+ * lock and writes to the terminal while the request waits, so with many requests in flight every one
+ * of them queues on stdout.
+ *
+ * <p>A message below the configured level costs one volatile read; callers that build the message
+ * from several parts check {@link #debugEnabled()} first so nothing is concatenated. A message that
+ * passes is put into a lock-free ring buffer, and a background thread writes the buffer out in
+ * batches: WARN and ERROR to stderr, the rest to stdout. When the ring is full the message is dropped
+ * and counted, rather than making the request wait.</p>
+ *
+ * <p>Per-request messages are DEBUG, so with the default level of INFO they are off. Settings come
+ * from the "Logging" section of config.json (level, bufferSize, flushMs); a service section can
+ * override the level as "logLevel".</p>
+ */
+public class Log {
+    /**
+     * The levels, least severe first
+     */
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int DEFAULT_BUFFER = 8192;
+    private static final byte[] NEWLINE = {'\n'};
+
+    private static volatile int threshold = Level.INFO.ordinal();
+    private static volatile long flushNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private static volatile Ring ring = new Ring(DEFAULT_BUFFER);
+    private static final LongAdder dropped = new LongAdder();
+    private static final Object flushLock = new Object();
+    private static final OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 64 * 1024);
+    private static final OutputStream err = new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 16 * 1024);
+
+    static {
+        Thread flusher = new Thread(Log::run, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        // What is still in the ring when the process exits is written, not lost
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-final-flush"));
+    }
+
+    /**
+     * A fixed ring of messages. Any thread can offer; only the flusher takes.
+     */
+    private static final class Ring {
+        private final AtomicReferenceArray<String> lines;
+        private final byte[] levels;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+            this.lines = new AtomicReferenceArray<>(size);
+            this.levels = new byte[size];
+            this.mask = size - 1;
+        }
+
+        boolean offer(Level level, String line) {
+            long slot;
+            do {
+                slot = tail.get();
+                if (slot - head > mask) {
+                    return false;
+                }
+            } while (!tail.compareAndSet(slot, slot + 1));
+            int index = (int) slot & mask;
+            levels[index] = (byte) level.ordinal();
+            // The volatile write publishes the level written before it
+            lines.set(index, line);
+            return true;
+        }
+
+        /**
+         * Writes out every message whose slot is filled, in order. A slot that was claimed but is
+         * not filled yet ends the batch; the message goes out with the next one.
+         */
+        int drainTo(OutputStream out, OutputStream err) throws IOException {
+            int count = 0;
+            long position = head;
+            while (true) {
+                int index = (int) position & mask;
+                String line = lines.get(index);
+                if (line == null) {
+                    break;
+                }
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                OutputStream target = levels[index] >= Level.WARN.ordinal() ? err : out;
+                target.write(bytes);
+                target.write(NEWLINE);
+                lines.set(index, null);
+                head = ++position;
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Reads the logging settings.
+     * @param configFile The path to the JSON configuration file
+     * @param serviceName The name of the service (For example, "UserService")
+     * @throws IOException If the file cannot be read
+     */
+    public static void configure(String configFile, String serviceName) throws IOException {
+        String shared = ConfigReader.getString(configFile, "Logging", "level", "info");
+        String level = ConfigReader.getString(configFile, serviceName, "logLevel", shared);
+        threshold = parseLevel(level).ordinal();
+        flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ConfigReader.getInt(configFile, "Logging", "flushMs", 10)));
+        int bufferSize = ConfigReader.getInt(configFile, "Logging", "bufferSize", DEFAULT_BUFFER);
+        if (bufferSize != ring.mask + 1) {
+            synchronized (flushLock) {
+                Ring old = ring;
+                ring = new Ring(bufferSize);
+                // Messages offered to the old ring while it was swapped out
+                try {
+                    old.drainTo(out, err);
+                } catch (IOException e) {
+                    // Nowhere left to report it
+                }
+            }
+            flush();
+        }
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    /**
+     * Returns whether messages of a level are written
+     * @param level the level
+     * @return true if the level is at or above the configured one
+     */
+    public static boolean enabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Returns whether DEBUG messages, the per-request ones, are written
+     * @return true if DEBUG is enabled
+     */
+    public static boolean debugEnabled() {
+        return Level.DEBUG.ordinal() >= threshold;
+    }
+
+    /**
+     * Logs a per-request message
+     * @param message the message
+     */
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs an event worth seeing in normal operation, For example a service starting
+     * @param message the message
+     */
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs something that went wrong but was handled
+     * @param message the message
+     */
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    /**
+     * Logs a failure
+     * @param message the message
+     */
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Logs a message at a level
+     * @param level the level
+     * @param message the message
+     */
+    public static void log(Level level, String message) {
+        if (level.ordinal() < threshold || level == Level.OFF) {
+            return;
+        }
+        if (!ring.offer(level, message == null ? "null" : message)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes out everything logged so far. The background thread does this on its own; it is only
+     * needed before the process exits.
+     */
+    public static void flush() {
+        synchronized (flushLock) {
+            try {
+                long lost = dropped.sumThenReset();
+                if (ring.drainTo(out, err) > 0 | lost > 0) {
+                    if (lost > 0) {
+                        err.write(("[Log] " + lost + " messages dropped, the buffer was full").getBytes(StandardCharsets.UTF_8));
+                        err.write(NEWLINE);
+                    }
+                    out.flush();
+                    err.flush();
+                }
+            } catch (IOException e) {
+                // Nowhere left to report it
+            }
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            flush();
+            LockSupport.parkNanos(flushNanos);
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package Utils;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics keeps counters, gauges and latency histograms for a service and serves them at
+ * GET /metrics in the Prometheus text exposition format.
+ *
+ * <p>Counters and histogram buckets are LongAdders, so recording from many request threads does not
+ * contend; the histograms have fixed buckets, so recording is a few comparisons and one add. What is
+ * recorded:</p>
+ * <ul>
+ *   <li>http_requests_total and http_request_duration_seconds, by method, route and status, from the
+ *   filter {@link #instrument(HttpContext)} adds to each context. Numeric path segments become
+ *   {id}, so /user/5 and /user/6 share the route /user/{id}</li>
+ *   <li>db_operation_duration_seconds and db_connection_wait_seconds, recorded by DatabaseManager</li>
+ *   <li>http_client_requests_total and http_client_request_duration_seconds, by target service,
+ *   recorded around every outbound HttpClient call</li>
+ *   <li>the admission controller's queue depth, requests in flight and shed requests</li>
+ * </ul>
+ */
+public class Metrics {
+    /**
+     * Upper bounds of the latency buckets, in seconds, as they appear in the le label
+     */
+    private static final String[] LATENCY_BUCKETS = {
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+    private static final long[] LATENCY_BUCKET_NANOS = new long[LATENCY_BUCKETS.length];
+    /**
+     * Paths that are not routes (For example, random 404s) must not grow the metrics without bound
+     */
+    private static final int MAX_ROUTES = 256;
+    private static final String OTHER_ROUTE = "other";
+    /**
+     * The label of a request method the services do not serve; clients choose the method, so it is not
+     * used as a label unchecked
+     */
+    private static final String OTHER_METHOD = "other";
+
+    private static final Map<String, Family<?>> families = new ConcurrentSkipListMap<>();
+    private static final Set<String> routes = ConcurrentHashMap.newKeySet();
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            LATENCY_BUCKET_NANOS[i] = (long) (Double.parseDouble(LATENCY_BUCKETS[i]) * 1e9);
+        }
+    }
+
+    private static final Counter httpRequests = counter("http_requests_total",
+            "Requests handled, by method, route and status", "method", "route", "status");
+    private static final Histogram httpDuration = histogram("http_request_duration_seconds",
+            "Time from the request reaching the handlers to the response being sent", "method", "route");
+    private static final Counter clientRequests = counter("http_client_requests_total",
+            "Requests sent to other services, by target and status (0 when no response came back)", "target", "status");
+    private static final Histogram clientDuration = histogram("http_client_request_duration_seconds",
+            "Time waiting for other services, by target", "target");
+
+    /**
+     * A metric name with its help text, type and one child per combination of label values.
+     *
+     * @param <C> the child type
+     */
+    private abstract static class Family<C> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String[] labelNames;
+        private final Map<String, C> children = new ConcurrentHashMap<>();
+        private final Map<String, String> labelText = new ConcurrentHashMap<>();
+        private final Function<String, C> create = key -> newChild();
+
+        Family(String name, String help, String type, String[] labelNames) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.labelNames = labelNames;
+        }
+
+        abstract C newChild();
+
+        abstract void write(StringBuilder out, String labels, C child);
+
+        /**
+         * Returns the child for a combination of label values, creating it the first time.
+         * @param values one value per label name, in order
+         * @return the child
+         */
+        public C labels(String... values) {
+            if (values.length != labelNames.length) {
+                throw new IllegalArgumentException(name + " takes " + labelNames.length + " labels");
+            }
+            String key = values.length == 1 ? values[0] : String.join("\u0001", values);
+            C child = children.get(key);
+            if (child == null) {
+                child = children.computeIfAbsent(key, create);
+                labelText.putIfAbsent(key, formatLabels(values));
+            }
+            return child;
+        }
+
+        private String formatLabels(String[] values) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < values.length; i++) {
+                sb.append(i == 0 ? "" : ",").append(labelNames[i]).append("=\"");
+                escape(sb, values[i]);
+                sb.append('"');
+            }
+            return sb.toString();
+        }
+
+        void write(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (Map.Entry<String, C> child : children.entrySet()) {
+                String labels = labelText.get(child.getKey());
+                if (labels != null) {
+                    write(out, labels, child.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * A counter family; each child only goes up.
+     */
+    public static final class Counter extends Family<LongAdder> {
+        Counter(String name, String help, String[] labelNames) {
+            super(name, help, "counter", labelNames);
+        }
+
+        @Override
+        LongAdder newChild() {
+            return new LongAdder();
+        }
+
+        @Override
+        void write(StringBuilder out, String labels, LongAdder child) {
+            sample(out, super.name, labels, null, child.sum());
+        }
+    }
+
+    /**
+     * A latency histogram family with fixed buckets.
+     */
+    public static final class Histogram extends Family<Histogram.Child> {
+        Histogram(String name, String help, String[] labelNames) {
+            super(name, help, "histogram", labelNames);
+        }
+
+        /**
+         * The latencies recorded for one combination of label values
+         */
+        public static final class Child {
+            private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length + 1];
+            private final LongAdder sumNanos = new LongAdder();
+
+            Child() {
+                for (int i = 0; i < buckets.length; i++) {
+                    buckets[i] = new LongAdder();
+                }
+            }
+
+            /**
+             * Records a latency
+             * @param nanos the latency in nanoseconds
+             */
+            public void observe(long nanos) {
+                int i = 0;
+                while (i < LATENCY_BUCKET_NANOS.length && nanos > LATENCY_BUCKET_NANOS[i]) {
+                    i++;
+                }
+                buckets[i].increment();
+                sumNanos.add(nanos);
+            }
+
+            /**
+             * Records the time since a System.nanoTime() reading
+             * @param startNanos the reading taken when the timed work began
+             */
+            public void observeSince(long startNanos) {
+                observe(System.nanoTime() - startNanos);
+            }
+        }
+
+        @Override
+        Child newChild() {
+            return new Child();
+        }
+
+        @Override
+        void write(StringBuilder out, String labels, Child child) {
+            String name = super.name;
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                cumulative += child.buckets[i].sum();
+                sample(out, name + "_bucket", prefix + "le=\"" + LATENCY_BUCKETS[i] + "\"", null, cumulative);
+            }
+            cumulative += child.buckets[LATENCY_BUCKETS.length].sum();
+            sample(out, name + "_bucket", prefix + "le=\"+Inf\"", null, cumulative);
+            sample(out, name + "_sum", labels, child.sumNanos.sum() / 1e9, 0);
+            sample(out, name + "_count", labels, null, cumulative);
+        }
+    }
+
+    /**
+     * A value kept elsewhere (For example, by the admission controller) and read when the metrics are
+     * scraped.
+     */
+    private static final class Observed extends Family<LongSupplier> {
+        private final LongSupplier value;
+
+        Observed(String name, String help, String type, LongSupplier value) {
+            super(name, help, type, new String[0]);
+            this.value = value;
+            labels();
+        }
+
+        @Override
+        LongSupplier newChild() {
+            return value;
+        }
+
+        @Override
+        void write(StringBuilder out, String labels, LongSupplier child) {
+            sample(out, super.name, labels, null, child.getAsLong());
+        }
+    }
+
+    /**
+     * Registers a counter family, or returns the one already registered under the name.
+     * @param name the metric name
+     * @param help what it counts
+     * @param labelNames the names of its labels
+     * @return the family
+     */
+    public static Counter counter(String name, String help, String... labelNames) {
+        return (Counter) families.computeIfAbsent(name, n -> new Counter(n, help, labelNames));
+    }
+
+    /**
+     * Registers a latency histogram family, or returns the one already registered under the name.
+     * @param name the metric name, ending in _seconds
+     * @param help what it times
+     * @param labelNames the names of its labels
+     * @return the family
+     */
+    public static Histogram histogram(String name, String help, String... labelNames) {
+        return (Histogram) families.computeIfAbsent(name, n -> new Histogram(n, help, labelNames));
+    }
+
+    /**
+     * Registers a gauge that is read at every scrape. A later registration under the same name
+     * replaces it.
+     * @param name the metric name
+     * @param help what it measures
+     * @param value reads the current value
+     */
+    public static void gauge(String name, String help, LongSupplier value) {
+        families.put(name, new Observed(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a counter kept elsewhere, read at every scrape. A later registration under the same
+     * name replaces it.
+     * @param name the metric name, ending in _total
+     * @param help what it counts
+     * @param value reads the current count
+     */
+    public static void observedCounter(String name, String help, LongSupplier value) {
+        families.put(name, new Observed(name, help, "counter", value));
+    }
+
+    /**
+     * Records an outbound HttpClient call.
+     * @param target the service called (For example, "ISCS")
+     * @param status the response status, or 0 if the call failed without one
+     * @param startNanos the System.nanoTime() reading taken before the call
+     */
+    public static void recordClientCall(String target, int status, long startNanos) {
+        clientDuration.labels(target).observeSince(startNanos);
+        clientRequests.labels(target, statusText(status)).increment();
+    }
+
+    /**
+     * Sends a request with an HttpClient and records the call under its target.
+     * @param client the client
+     * @param target the service called (For example, "ISCS")
+     * @param request the request
+     * @param handler the body handler
+     * @param <T> the body type
+     * @return the response
+     * @throws IOException if the call fails
+     * @throws InterruptedException if interrupted while waiting for the response
+     */
+    public static <T> HttpResponse<T> send(HttpClient client, String target, HttpRequest request,
+                                           HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        int status = 0;
+        try {
+            HttpResponse<T> response = client.send(request, handler);
+            status = response.statusCode();
+            return response;
+        } finally {
+            recordClientCall(target, status, start);
+        }
+    }
+
+    /**
+     * Sends a request asynchronously with an HttpClient and records the call under its target when
+     * it completes.
+     * @param client the client
+     * @param target the service called (For example, "ISCS")
+     * @param request the request
+     * @param handler the body handler
+     * @param <T> the body type
+     * @return the pending response; the client's own future, so cancelling it aborts the exchange
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpClient client, String target, HttpRequest request,
+                                                                   HttpResponse.BodyHandler<T> handler) {
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<T>> call = client.sendAsync(request, handler);
+        call.whenComplete((response, e) -> recordClientCall(target, response == null ? 0 : response.statusCode(), start));
+        return call;
+    }
+
+    /**
+     * Adds the filter that records http_requests_total and http_request_duration_seconds to a
+     * context. It should come before the admission filter, so shed requests are counted too.
+     * @param context the context
+     * @return the context
+     */
+    public static HttpContext instrument(HttpContext context) {
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    String method = methodOf(exchange.getRequestMethod());
+                    String route = routeOf(exchange.getRequestURI().getPath());
+                    httpDuration.labels(method, route).observeSince(start);
+                    httpRequests.labels(method, route, statusText(exchange.getResponseCode())).increment();
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Records request counts and latencies";
+            }
+        });
+        return context;
+    }
+
+    /**
+     * Returns the handler that serves the metrics. It is meant for its own "/metrics" context,
+     * without the admission filter, so the metrics can still be read while the service sheds load.
+     * @return the handler
+     */
+    public static HttpHandler handler() {
+        return exchange -> {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            ResponseCompression.send(exchange, 200, scrape().getBytes(StandardCharsets.UTF_8));
+        };
+    }
+
+    /**
+     * Renders every metric in the text exposition format.
+     * @return the text
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder(8 * 1024);
+        for (Family<?> family : families.values()) {
+            family.write(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Turns a path into a route label: numeric segments become {id}. Once MAX_ROUTES routes are
+     * known, new ones are reported as "other".
+     */
+    static String routeOf(String path) {
+        StringBuilder sb = null;
+        int length = path.length();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i < length && path.charAt(i) != '/') {
+                continue;
+            }
+            if (i > start && isNumber(path, start, i)) {
+                if (sb == null) {
+                    sb = new StringBuilder(length).append(path, 0, start);
+                }
+                sb.append("{id}");
+            } else if (sb != null) {
+                sb.append(path, start, i);
+            }
+            if (sb != null && i < length) {
+                sb.append('/');
+            }
+            start = i + 1;
+        }
+        String route = sb == null ? path : sb.toString();
+        if (routes.contains(route)) {
+            return route;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            return OTHER_ROUTE;
+        }
+        routes.add(route);
+        return route;
+    }
+
+    private static boolean isNumber(String path, int from, int to) {
+        if (path.charAt(from) == '-' && to - from > 1) {
+            from++;
+        }
+        for (int i = from; i < to; i++) {
+            char c = path.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the method label of a request: the method itself for GET, POST, PUT, DELETE and HEAD,
+     * otherwise "other".
+     */
+    static String methodOf(String method) {
+        switch (method) {
+            case "GET":
+            case "POST":
+            case "PUT":
+            case "DELETE":
+            case "HEAD":
+                return method;
+            default:
+                return OTHER_METHOD;
+        }
+    }
+
+    private static String statusText(int status) {
+        return status <= 0 ? "0" : Integer.toString(status);
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, Double doubleValue, long longValue) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (doubleValue != null) {
+            out.append(doubleValue);
+        } else {
+            out.append(longValue);
+        }
+        out.append('\n');
+    }
+
+    private static void escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,882 @@
+package Utils;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NioHttpEngine is a small HTTP/1.1 server built directly on NIO selectors.
+ *
+ * <p>Every event loop also accepts: the non-blocking server socket is registered with each loop's
+ * selector, so there is no single acceptor thread to fall behind under a burst of new connections.
+ * A loop that wins an accept hands the connection on round-robin, so connections stay spread evenly
+ * whichever loop accepted them. Each loop owns a selector and its connections: it reads requests,
+ * parses them and writes responses, and never blocks. A complete request is handed to the executor
+ * (the service's AdmissionController), which runs the context's filters and handler on a
+ * {@link NioHttpExchange}.</p>
+ *
+ * <p>Connections are kept alive unless the client asks otherwise, and pipelined requests are answered
+ * in order: the next request on a connection is parsed only once the previous response is complete.
+ * Response bodies are written into pooled direct buffers and sent with gathering writes, so a small
+ * response is one system call and no per-exchange buffers are allocated.</p>
+ *
+ * <p>A connection that has neither sent nor taken a byte for the idle timeout is closed by its loop,
+ * whether it sits idle between keep-alive requests, stalls halfway through a request, or stops
+ * reading a response. A connection whose request is still being handled is left alone.</p>
+ */
+public class NioHttpEngine implements HttpEngine {
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    private static final int MAX_BODY_BYTES = 8 * 1024 * 1024;
+    /**
+     * Response bytes queued on one connection before the handler writing them has to wait
+     */
+    static final long MAX_PENDING_BYTES = 1024 * 1024;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * How often each loop looks for idle connections
+     */
+    private static final long IDLE_CHECK_MS = 1000;
+    /**
+     * The most connections one loop accepts per wakeup, so accepting never starves reads
+     */
+    private static final int MAX_ACCEPTS_PER_WAKEUP = 64;
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final long idleTimeoutNanos;
+    private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+    final DirectBufferPool buffers = new DirectBufferPool(16 * 1024, 256);
+    /**
+     * Exchanges handed to the executor and not finished yet
+     */
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile Executor executor;
+    private volatile boolean running;
+
+    /**
+     * Binds the server socket. Nothing is accepted until {@link #start()}.
+     * @param address the address to listen on
+     * @param loopCount the number of event loops
+     * @param idleTimeoutMs how long a connection may go without sending or taking a byte before it is closed
+     * @throws IOException if the address cannot be bound
+     */
+    public NioHttpEngine(InetSocketAddress address, int loopCount, long idleTimeoutMs) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        serverChannel.configureBlocking(false);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioContext context = new NioContext(path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void start() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(10);
+        }
+        running = true;
+        for (EventLoop loop : loops) {
+            loop.listen();
+            loop.thread.start();
+        }
+    }
+
+    @Override
+    public void stop(int delaySeconds) {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.error("[NioHttpEngine] Closing the server socket failed: " + e.getMessage());
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delaySeconds);
+        try {
+            while (active.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    /**
+     * Accepts the connections waiting on the server socket. Runs on whichever loop the selector woke;
+     * the others find nothing left to accept.
+     */
+    private void acceptPending(EventLoop acceptor) {
+        for (int i = 0; i < MAX_ACCEPTS_PER_WAKEUP && running; i++) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("[NioHttpEngine] Accept failed: " + e.getMessage());
+                return;
+            }
+            EventLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            if (target == acceptor) {
+                acceptor.add(channel);
+            } else {
+                target.register(channel);
+            }
+        }
+    }
+
+    /**
+     * Returns the context with the longest path that prefixes the request path, like HttpServer.
+     */
+    private NioContext findContext(String path) {
+        NioContext best = null;
+        for (NioContext context : contexts) {
+            if (path.startsWith(context.getPath())
+                    && (best == null || context.getPath().length() > best.getPath().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * One selector thread and the connections registered with it.
+     */
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * Every read on this loop goes through this buffer; the bytes are then copied to the connection
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+        private final ByteBuffer[] writeBatch = new ByteBuffer[16];
+        private volatile boolean stopped;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-http-loop-" + index);
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers the server socket with this loop, so this loop accepts too. Called before the loop starts.
+         */
+        void listen() {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                Log.error("[NioHttpEngine] Server socket closed before the loops started");
+            }
+        }
+
+        /**
+         * Hands a connection to this loop from another thread.
+         */
+        void register(SocketChannel channel) {
+            execute(() -> add(channel));
+        }
+
+        /**
+         * Adds a connection to this loop; runs on the loop's thread.
+         */
+        private void add(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                Log.error("[NioHttpEngine] Register failed: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Closes the connections that have been idle for longer than the idle timeout.
+         */
+        private void closeIdle(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    if (connection.idleSince(now) > idleTimeoutNanos) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        void stop() {
+            execute(() -> stopped = true);
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MS);
+            try {
+                while (!stopped) {
+                    selector.select(IDLE_CHECK_MS);
+                    long now = System.nanoTime();
+                    if (now - nextIdleCheck >= 0) {
+                        closeIdle(now);
+                        nextIdleCheck = now + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MS);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            Log.error("[NioHttpEngine] Loop task failed: " + e);
+                        }
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        if (key.channel() == serverChannel) {
+                            if (key.isValid() && key.isAcceptable()) {
+                                acceptPending(this);
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (CancelledKeyException e) {
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("[NioHttpEngine] Event loop failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection. Reading, parsing and socket writes happen on the loop's thread only;
+     * handler threads add response buffers to the outbound queue and ask the loop to flush.
+     */
+    final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        /**
+         * Bytes read and not yet parsed, between inStart and inEnd
+         */
+        private byte[] in = new byte[4096];
+        private int inStart;
+        private int inEnd;
+        /**
+         * How many bytes after inStart were already searched for the end of the headers, so each read
+         * only searches the bytes it added
+         */
+        private int headerScanned;
+        /**
+         * When a byte was last read from or written to the socket (System.nanoTime)
+         */
+        private long lastActivity = System.nanoTime();
+        /**
+         * True while a request of this connection is being handled
+         */
+        private boolean busy;
+        private boolean continueSent;
+        /**
+         * True once a response asked for the connection to close (Connection: close or a rejected request)
+         */
+        private boolean closeWhenWritten;
+        /**
+         * True once the client half-closed; the complete requests it already sent are still answered
+         */
+        private boolean peerClosed;
+        /**
+         * True while parseRequests is working through the buffer, so an inline answer does not close a
+         * half-closed connection before the requests behind it are parsed
+         */
+        private boolean parsing;
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean closed;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        SocketChannel channel() {
+            return channel;
+        }
+
+        DirectBufferPool buffers() {
+            return buffers;
+        }
+
+        /**
+         * @return how long the connection has gone without traffic, or 0 while a handler is working on
+         *         its request and has nothing waiting to be written
+         */
+        private long idleSince(long now) {
+            return busy && out.isEmpty() ? 0 : now - lastActivity;
+        }
+
+        private void onReadable() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            if (read < 0) {
+                // The client is done sending; answer the complete requests already received, then close
+                peerClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                parseRequests();
+                return;
+            }
+            buffer.flip();
+            ensureCapacity(read);
+            buffer.get(in, inEnd, read);
+            inEnd += read;
+            if (!busy) {
+                parseRequests();
+            } else if (inEnd - inStart > MAX_HEADER_BYTES + MAX_BODY_BYTES) {
+                // Pipelined requests pile up faster than they are answered; wait for the current one
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void ensureCapacity(int more) {
+            if (inEnd + more <= in.length) {
+                return;
+            }
+            int buffered = inEnd - inStart;
+            byte[] target = buffered + more <= in.length ? in : new byte[Math.max(in.length * 2, buffered + more)];
+            System.arraycopy(in, inStart, target, 0, buffered);
+            in = target;
+            inStart = 0;
+            inEnd = buffered;
+        }
+
+        /**
+         * Parses and dispatches the buffered requests until one is handed to the executor or the
+         * buffer holds no complete request.
+         */
+        private void parseRequests() {
+            parsing = true;
+            try {
+                while (!busy && !closed && !closeWhenWritten && parseOne()) {
+                    // Answered inline (for example 404); go on with the next pipelined request
+                }
+            } finally {
+                parsing = false;
+            }
+            closeIfDone();
+        }
+
+        /**
+         * Closes the connection once nothing is left to answer or write: after a response that asked
+         * for the close, or after a half-close once the buffer holds no complete request.
+         */
+        private void closeIfDone() {
+            if (!closed && !busy && out.isEmpty() && (closeWhenWritten || peerClosed && !parsing)) {
+                close();
+            }
+        }
+
+        /**
+         * @return true if a request was answered inline and the next one can be parsed straight away
+         */
+        private boolean parseOne() {
+            while (inEnd - inStart >= 2 && in[inStart] == '\r' && in[inStart + 1] == '\n') {
+                inStart += 2;
+                headerScanned = 0;
+            }
+            int headerEnd = indexOfHeaderEnd();
+            if (headerEnd < 0) {
+                if (inEnd - inStart > MAX_HEADER_BYTES) {
+                    reject(431, "Request Header Fields Too Large");
+                }
+                return false;
+            }
+
+            String[] lines = new String(in, inStart, headerEnd - inStart, StandardCharsets.ISO_8859_1).split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                reject(400, "Bad Request");
+                return false;
+            }
+            Headers headers = new Headers();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    reject(400, "Bad Request");
+                    return false;
+                }
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+
+            int bodyStart = headerEnd + 4;
+            byte[] body;
+            int requestEnd;
+            String transferEncoding = headers.getFirst("Transfer-Encoding");
+            if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+                int[] end = new int[1];
+                body = decodeChunked(bodyStart, end);
+                if (end[0] == -2) {
+                    reject(400, "Bad Request");
+                    return false;
+                }
+                if (body == null) {
+                    sendContinue(headers);
+                    return false;
+                }
+                requestEnd = end[0];
+            } else {
+                long length;
+                try {
+                    String declared = headers.getFirst("Content-Length");
+                    length = declared == null ? 0 : Long.parseLong(declared);
+                } catch (NumberFormatException e) {
+                    reject(400, "Bad Request");
+                    return false;
+                }
+                if (length < 0 || length > MAX_BODY_BYTES) {
+                    reject(413, "Payload Too Large");
+                    return false;
+                }
+                if (inEnd - bodyStart < length) {
+                    sendContinue(headers);
+                    return false;
+                }
+                body = Arrays.copyOfRange(in, bodyStart, bodyStart + (int) length);
+                requestEnd = bodyStart + (int) length;
+            }
+
+            URI uri;
+            try {
+                uri = URI.create(requestLine[1]);
+            } catch (IllegalArgumentException e) {
+                reject(400, "Bad Request");
+                return false;
+            }
+            inStart = requestEnd;
+            headerScanned = 0;
+            if (inStart == inEnd) {
+                inStart = 0;
+                inEnd = 0;
+            }
+            continueSent = false;
+
+            String version = requestLine[2];
+            String connectionHeader = headers.getFirst("Connection");
+            boolean keepAlive = version.equals("HTTP/1.1")
+                    ? !"close".equalsIgnoreCase(connectionHeader)
+                    : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+            NioContext context = uri.getPath() == null ? null : findContext(uri.getPath());
+            if (context == null) {
+                answer(404, "No context found for request", keepAlive);
+                return true;
+            }
+            busy = true;
+            NioHttpExchange exchange = new NioHttpExchange(this, context, requestLine[0], uri, version, headers, body, keepAlive);
+            active.incrementAndGet();
+            try {
+                executor.execute(exchange::handle);
+            } catch (RejectedExecutionException e) {
+                active.decrementAndGet();
+                close();
+            }
+            return false;
+        }
+
+        private int indexOfHeaderEnd() {
+            // The last three bytes searched may be the start of the terminator
+            for (int i = inStart + Math.max(0, headerScanned - 3); i + 3 < inEnd; i++) {
+                if (in[i] == '\r' && in[i + 1] == '\n' && in[i + 2] == '\r' && in[i + 3] == '\n') {
+                    headerScanned = i - inStart;
+                    return i;
+                }
+            }
+            headerScanned = inEnd - inStart;
+            return -1;
+        }
+
+        /**
+         * Decodes a chunked request body.
+         * @param end set to the index after the body, or to -2 if the body is malformed
+         * @return the body, or null if it is not complete (or malformed)
+         */
+        private byte[] decodeChunked(int position, int[] end) {
+            byte[] body = new byte[0];
+            int length = 0;
+            while (true) {
+                int lineEnd = -1;
+                for (int i = position; i + 1 < inEnd; i++) {
+                    if (in[i] == '\r' && in[i + 1] == '\n') {
+                        lineEnd = i;
+                        break;
+                    }
+                }
+                if (lineEnd < 0) {
+                    return null;
+                }
+                String sizeLine = new String(in, position, lineEnd - position, StandardCharsets.ISO_8859_1);
+                int semicolon = sizeLine.indexOf(';');
+                int size;
+                try {
+                    size = Integer.parseInt((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    end[0] = -2;
+                    return null;
+                }
+                if (size < 0 || length + size > MAX_BODY_BYTES) {
+                    end[0] = -2;
+                    return null;
+                }
+                int dataStart = lineEnd + 2;
+                if (size == 0) {
+                    // No trailers are expected; the body ends with an empty line
+                    if (inEnd - dataStart < 2) {
+                        return null;
+                    }
+                    end[0] = dataStart + 2;
+                    return length == body.length ? body : Arrays.copyOf(body, length);
+                }
+                if (inEnd - dataStart < size + 2) {
+                    return null;
+                }
+                if (length + size > body.length) {
+                    body = Arrays.copyOf(body, Math.max(body.length * 2, length + size));
+                }
+                System.arraycopy(in, dataStart, body, length, size);
+                length += size;
+                position = dataStart + size + 2;
+            }
+        }
+
+        private void sendContinue(Headers headers) {
+            if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                continueSent = true;
+                queue(ByteBuffer.wrap(CONTINUE));
+                flush();
+            }
+        }
+
+        /**
+         * Answers a request that cannot be parsed and closes the connection once the answer is out.
+         */
+        private void reject(int status, String message) {
+            answer(status, message, false);
+        }
+
+        private void answer(int status, String message, boolean keepAlive) {
+            byte[] body = ("{\"status\": \"" + message + "\"}\n").getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 " + status + " " + message + "\r\n"
+                    + "Date: " + NioHttpExchange.date() + "\r\n"
+                    + "Content-Type: application/json\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + (keepAlive ? "" : "Connection: close\r\n") + "\r\n";
+            if (!keepAlive) {
+                closeWhenWritten = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            queue(ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1)));
+            queue(ByteBuffer.wrap(body));
+            flush();
+        }
+
+        private void queue(ByteBuffer buffer) {
+            pending.addAndGet(buffer.remaining());
+            out.add(buffer);
+        }
+
+        /**
+         * Queues response bytes from a handler thread. Waits while too much is already queued, so a
+         * slow client slows down the handler instead of filling the heap.
+         */
+        void send(ByteBuffer... buffers) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            for (ByteBuffer buffer : buffers) {
+                queue(buffer);
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(() -> {
+                    flushScheduled.set(false);
+                    flush();
+                });
+            }
+            if (pending.get() > MAX_PENDING_BYTES && Thread.currentThread() != loop.thread) {
+                synchronized (this) {
+                    while (pending.get() > MAX_PENDING_BYTES / 2 && !closed) {
+                        try {
+                            wait(100);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while waiting for the client");
+                        }
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+            }
+        }
+
+        /**
+         * Writes as much of the outbound queue as the socket takes, several buffers per system call.
+         */
+        private void flush() {
+            if (closed) {
+                return;
+            }
+            ByteBuffer[] batch = loop.writeBatch;
+            try {
+                while (true) {
+                    int count = 0;
+                    for (ByteBuffer buffer : out) {
+                        if (count == batch.length) {
+                            break;
+                        }
+                        batch[count++] = buffer;
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    long written = channel.write(batch, 0, count);
+                    pending.addAndGet(-written);
+                    if (written > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                    boolean socketFull = false;
+                    for (int i = 0; i < count; i++) {
+                        if (batch[i].hasRemaining()) {
+                            socketFull = true;
+                            break;
+                        }
+                        out.poll();
+                        if (batch[i].isDirect()) {
+                            buffers.release(batch[i]);
+                        }
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    if (socketFull) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException | CancelledKeyException e) {
+                close();
+                return;
+            } finally {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        /**
+         * Called by the exchange once its whole response is queued.
+         */
+        void finished(boolean keepAlive) {
+            loop.execute(() -> {
+                active.decrementAndGet();
+                busy = false;
+                if (closed) {
+                    return;
+                }
+                if (!keepAlive) {
+                    closeWhenWritten = true;
+                }
+                if (closeWhenWritten) {
+                    closeIfDone();
+                    return;
+                }
+                // The idle time between keep-alive requests counts from the end of the response
+                lastActivity = System.nanoTime();
+                if (!peerClosed) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+                parseRequests();
+            });
+        }
+
+        /**
+         * Called by the exchange when its response cannot be completed; the client sees the connection close.
+         */
+        void abort() {
+            loop.execute(() -> {
+                active.decrementAndGet();
+                busy = false;
+                close();
+            });
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            ByteBuffer buffer;
+            while ((buffer = out.poll()) != null) {
+                if (buffer.isDirect()) {
+                    buffers.release(buffer);
+                }
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The context of a path prefix. Filters and attributes work as on HttpServer; there is no
+     * HttpServer behind it, so getServer returns null.
+     */
+    static final class NioContext extends HttpContext {
+        private final String path;
+        private volatile HttpHandler handler;
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private volatile Authenticator authenticator;
+
+        NioContext(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return null;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
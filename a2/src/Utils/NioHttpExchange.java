@@ -0,0 +1,384 @@
+package Utils;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NioHttpExchange is one request and response on a {@link NioHttpEngine} connection. It behaves like
+ * the JDK's exchange as far as the handlers can tell: sendResponseHeaders with a length of 0 sends a
+ * chunked body, -1 sends none, and closing the response body (or the exchange) completes the response.
+ *
+ * <p>The request body is already fully read when the handler runs. The response body is written into
+ * pooled direct buffers that are queued on the connection as they fill up, so a streamed response
+ * goes out while the handler is still producing it.</p>
+ */
+class NioHttpExchange extends HttpExchange {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static volatile long dateSecond;
+    private static volatile String dateValue;
+
+    private final NioHttpEngine.Connection connection;
+    private final NioHttpEngine.NioContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final boolean keepAlive;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private InputStream requestBody;
+    private final ResponseStream responseStream = new ResponseStream();
+    private OutputStream responseBody = responseStream;
+    private volatile int responseCode = -1;
+
+    NioHttpExchange(NioHttpEngine.Connection connection, NioHttpEngine.NioContext context, String method, URI uri,
+                    String protocol, Headers requestHeaders, byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Runs the context's filters and handler. A handler that fails or returns before completing the
+     * response (including one that swallowed the error of a failed write) leaves the client a closed
+     * connection, as on HttpServer, and always releases the connection's in-flight count.
+     */
+    void handle() {
+        try {
+            new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(this);
+        } catch (Exception e) {
+            if (!responseStream.finished) {
+                Log.error("[NioHttpEngine] Handler failed for " + method + " " + uri + ": " + e);
+            }
+        } finally {
+            if (!responseStream.finished) {
+                responseStream.abort();
+            }
+        }
+    }
+
+    /**
+     * Returns the Date header value, formatted at most once a second.
+     */
+    static String date() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != dateSecond) {
+            dateValue = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            dateSecond = second;
+        }
+        return dateValue;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            requestBody.close();
+            responseBody.close();
+        } catch (IOException e) {
+            responseStream.abort();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        boolean noBody = rCode == 204 || rCode == 304 || rCode < 200 || method.equalsIgnoreCase("HEAD");
+        StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n")
+                .append("Date: ").append(date()).append("\r\n");
+        responseHeaders.remove("Content-Length");
+        responseHeaders.remove("Transfer-Encoding");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        if (noBody) {
+            responseStream.remaining = 0;
+        } else if (responseLength > 0) {
+            head.append("Content-Length: ").append(responseLength).append("\r\n");
+            responseStream.remaining = responseLength;
+        } else if (responseLength == 0) {
+            head.append("Transfer-Encoding: chunked\r\n");
+            responseStream.chunked = true;
+        } else {
+            head.append("Content-Length: 0\r\n");
+            responseStream.remaining = 0;
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        // Held back until the first body bytes, so a small response goes out in one write
+        responseStream.head = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        responseCode = rCode;
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "Status";
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        try {
+            return (InetSocketAddress) connection.channel().getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        try {
+            return (InetSocketAddress) connection.channel().getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Writes the response body into pooled direct buffers and hands each full buffer to the connection.
+     */
+    private final class ResponseStream extends OutputStream {
+        private ByteBuffer head;
+        private ByteBuffer current;
+        private boolean chunked;
+        private long remaining;
+        private volatile boolean finished;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Response already complete");
+            }
+            if (responseCode == -1) {
+                throw new IOException("sendResponseHeaders has not been called");
+            }
+            if (!chunked) {
+                if (len > remaining) {
+                    throw new IOException("Response body longer than the declared Content-Length");
+                }
+                remaining -= len;
+            }
+            while (len > 0) {
+                if (current == null) {
+                    current = connection.buffers().acquire();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(bytes, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    emit();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!finished && current != null && current.position() > 0) {
+                emit();
+            }
+        }
+
+        /**
+         * Queues the filled buffer, framed as a chunk when the body is chunked, behind the headers if
+         * they have not gone out yet.
+         */
+        private void emit() throws IOException {
+            ByteBuffer data = current;
+            current = null;
+            data.flip();
+            ByteBuffer first = takeHead();
+            if (chunked) {
+                ByteBuffer size = ByteBuffer.wrap((Integer.toHexString(data.remaining()) + "\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                if (first != null) {
+                    connection.send(first, size, data, ByteBuffer.wrap(CRLF));
+                } else {
+                    connection.send(size, data, ByteBuffer.wrap(CRLF));
+                }
+            } else if (first != null) {
+                connection.send(first, data);
+            } else {
+                connection.send(data);
+            }
+        }
+
+        private ByteBuffer takeHead() {
+            ByteBuffer first = head;
+            head = null;
+            return first;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            if (responseCode == -1) {
+                // Nothing was sent; like HttpServer, the client only sees the connection close
+                abort();
+                return;
+            }
+            if (!chunked && remaining > 0) {
+                abort();
+                throw new IOException("Response body shorter than the declared Content-Length");
+            }
+            if (current != null && current.position() > 0) {
+                emit();
+            } else if (current != null) {
+                connection.buffers().release(current);
+                current = null;
+            }
+            ByteBuffer first = takeHead();
+            if (chunked) {
+                if (first != null) {
+                    connection.send(first, ByteBuffer.wrap(LAST_CHUNK));
+                } else {
+                    connection.send(ByteBuffer.wrap(LAST_CHUNK));
+                }
+            } else if (first != null) {
+                connection.send(first);
+            }
+            finished = true;
+            connection.finished(keepAlive);
+        }
+
+        void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (current != null) {
+                connection.buffers().release(current);
+                current = null;
+            }
+            connection.abort();
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package Utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * OrderJournal is an append-only log of order events (OrderPlaced, OrderCancelled), so consumers can
+ * follow what happens to orders without polling the orders table.
+ *
+ * <p>The journal is a directory of segment files. Each segment is preallocated and memory-mapped;
+ * a record is written straight into the mapping, and a new segment is started when the current one
+ * is full. A segment's file name is the journal offset of its first byte, so an offset names one
+ * position in the whole journal. The mappings are forced to disk once a second and on shutdown.</p>
+ *
+ * <p>Every record has the same layout:
+ * {@code [int length][byte type][long timestamp][int orderId][int productId][int userId][int quantity]}.
+ * The length is written last, so a length of 0 means "nothing written here yet", and a length of -1
+ * marks the end of a full segment.</p>
+ *
+ * <p>Events are appended after the database transaction commits. A crash between the two loses the
+ * event, but the journal never holds an event for an order that was rolled back.</p>
+ */
+public class OrderJournal implements Closeable {
+    public static final byte ORDER_PLACED = 1;
+    public static final byte ORDER_CANCELLED = 2;
+
+    static final int RECORD_SIZE = 4 + 1 + 8 + 4 * 4;
+    private static final int END_OF_SEGMENT = -1;
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ScheduledExecutorService flusher;
+
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentBase;
+    /**
+     * Offset just past the last complete record. Written after the record, so a reader in this
+     * process that stays below it always sees complete records.
+     */
+    private volatile long endOffset;
+
+    /**
+     * Opens the journal in a directory, continuing after the last record already written.
+     *
+     * @param directory the directory holding the segments; created if needed
+     * @param segmentSize the size of each segment file in bytes
+     * @throws IOException if the directory or a segment cannot be opened
+     */
+    public OrderJournal(String directory, int segmentSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = Math.max(segmentSize, RECORD_SIZE + 4);
+        Files.createDirectories(this.directory);
+
+        List<Long> bases = segmentBases(this.directory);
+        if (bases.isEmpty()) {
+            openSegment(0);
+        } else {
+            openSegment(bases.get(bases.size() - 1));
+            // Find the end of what was written before the last shutdown (or crash)
+            while (segment.remaining() >= 4) {
+                int length = segment.getInt(segment.position());
+                if (length == 0) {
+                    break;
+                }
+                if (length == END_OF_SEGMENT) {
+                    openSegment(segmentBase + segment.capacity());
+                    break;
+                }
+                segment.position(segment.position() + 4 + length);
+            }
+        }
+        endOffset = segmentBase + segment.position();
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "order-journal-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleAtFixedRate(this::flush, 1, 1, TimeUnit.SECONDS);
+        Log.info("[OrderJournal] Appending to " + this.directory + " at offset " + endOffset);
+    }
+
+    /**
+     * Builds the journal from the "Journal" section of config.json.
+     *
+     * @param configFile The path to the JSON configuration file
+     * @return the journal, or null if it is not enabled
+     * @throws IOException If the file cannot be read or the journal cannot be opened
+     */
+    public static OrderJournal fromConfig(String configFile) throws IOException {
+        if (!ConfigReader.getBoolean(configFile, "Journal", "enabled", false)) {
+            return null;
+        }
+        return new OrderJournal(ConfigReader.getString(configFile, "Journal", "directory", "order-journal"),
+                ConfigReader.getInt(configFile, "Journal", "segmentMB", 64) * 1024 * 1024);
+    }
+
+    private static Path segmentPath(Path directory, long base) {
+        return directory.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    private static List<Long> segmentBases(Path directory) throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .forEach(name -> bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()))));
+        }
+        bases.sort(null);
+        return bases;
+    }
+
+    private void openSegment(long base) throws IOException {
+        if (channel != null) {
+            segment.force();
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(directory, base),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), segmentSize);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segmentBase = base;
+    }
+
+    /**
+     * Appends one event.
+     *
+     * @param type ORDER_PLACED or ORDER_CANCELLED
+     * @param orderId the order id
+     * @param productId the product id
+     * @param userId the user id
+     * @param quantity the quantity of the order
+     * @throws IOException if a new segment was needed and could not be created
+     */
+    public synchronized void append(byte type, int orderId, int productId, int userId, int quantity) throws IOException {
+        if (segment.remaining() < RECORD_SIZE + 4) {
+            // Keeps room for the end marker, so a reader always learns that the segment is finished
+            segment.putInt(segment.position(), END_OF_SEGMENT);
+            openSegment(segmentBase + segment.capacity());
+        }
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.put(type)
+                .putLong(System.currentTimeMillis())
+                .putInt(orderId)
+                .putInt(productId)
+                .putInt(userId)
+                .putInt(quantity);
+        segment.putInt(start, RECORD_SIZE - 4);
+        endOffset = segmentBase + segment.position();
+    }
+
+    /**
+     * Appends an event and logs instead of failing; used after the order is already committed,
+     * as a {@link DatabaseManager.OrderListener}.
+     */
+    public void appendQuietly(byte type, int orderId, int productId, int userId, int quantity) {
+        try {
+            append(type, orderId, productId, userId, quantity);
+        } catch (IOException e) {
+            Log.error("[OrderJournal] Could not append event for order " + orderId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the offset just past the last event
+     * @return the journal end offset
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Forces the current segment to disk.
+     */
+    public synchronized void flush() {
+        segment.force();
+    }
+
+    /**
+     * Flushes and closes the current segment.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        segment.force();
+        channel.close();
+    }
+
+    /**
+     * Opens a reader over this journal, starting at the given offset.
+     *
+     * @param fromOffset the offset to start at: 0 for the beginning, {@link #getEndOffset()} for new events only
+     * @return the reader
+     * @throws IOException if the segment holding the offset cannot be opened
+     */
+    public Reader reader(long fromOffset) throws IOException {
+        return new Reader(directory, fromOffset, this::getEndOffset);
+    }
+
+    /**
+     * Opens a reader over a journal written by another process. Records are recognised by their
+     * length field alone.
+     *
+     * @param directory the journal directory
+     * @param fromOffset the offset to start at
+     * @return the reader
+     * @throws IOException if the segment holding the offset cannot be opened
+     */
+    public static Reader tail(String directory, long fromOffset) throws IOException {
+        return new Reader(Paths.get(directory), fromOffset, () -> Long.MAX_VALUE);
+    }
+
+    /**
+     * Receives the events read by {@link Reader#poll(EventHandler, int)}.
+     */
+    public interface EventHandler {
+        void onEvent(Event event) throws IOException;
+    }
+
+    /**
+     * One event, read in place from the mapped segment. The same instance is reused for every event,
+     * so a handler that needs the values later must copy them.
+     */
+    public static class Event {
+        private MappedByteBuffer buffer;
+        private int position;
+        private long offset;
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte getType() {
+            return buffer.get(position + 4);
+        }
+
+        public long getTimestamp() {
+            return buffer.getLong(position + 5);
+        }
+
+        public int getOrderId() {
+            return buffer.getInt(position + 13);
+        }
+
+        public int getProductId() {
+            return buffer.getInt(position + 17);
+        }
+
+        public int getUserId() {
+            return buffer.getInt(position + 21);
+        }
+
+        public int getQuantity() {
+            return buffer.getInt(position + 25);
+        }
+    }
+
+    /**
+     * Follows the journal from an offset. Reading is sequential through read-only mappings of the
+     * segments, and the handler sees each event in place without any copy. Call poll again to pick
+     * up events appended since the last call.
+     */
+    public static class Reader implements Closeable {
+        private final Path directory;
+        private final LongSupplier limit;
+        private final Event event = new Event();
+        private FileChannel channel;
+        private MappedByteBuffer segment;
+        private long segmentBase;
+
+        private Reader(Path directory, long fromOffset, LongSupplier limit) throws IOException {
+            this.directory = directory;
+            this.limit = limit;
+            long base = 0;
+            for (long candidate : segmentBases(directory)) {
+                if (candidate <= fromOffset) {
+                    base = candidate;
+                }
+            }
+            open(base);
+            segment.position((int) Math.min(fromOffset - base, segment.capacity()));
+        }
+
+        private void open(long base) throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            channel = FileChannel.open(segmentPath(directory, base), StandardOpenOption.READ);
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            segmentBase = base;
+        }
+
+        /**
+         * Hands the events written since the last call to the handler.
+         *
+         * @param handler receives each event
+         * @param max the most events to read in this call
+         * @return the number of events read; 0 if there is nothing new yet
+         * @throws IOException if the handler fails or the next segment cannot be opened
+         */
+        public int poll(EventHandler handler, int max) throws IOException {
+            int read = 0;
+            long end = limit.getAsLong();
+            while (read < max && segment.remaining() >= 4 && segmentBase + segment.position() < end) {
+                int start = segment.position();
+                int length = segment.getInt(start);
+                if (length == 0) {
+                    break;
+                }
+                if (length == END_OF_SEGMENT) {
+                    Path next = segmentPath(directory, segmentBase + segment.capacity());
+                    if (!Files.exists(next)) {
+                        break;
+                    }
+                    open(segmentBase + segment.capacity());
+                    continue;
+                }
+                event.buffer = segment;
+                event.position = start;
+                event.offset = segmentBase + start;
+                handler.onEvent(event);
+                segment.position(start + 4 + length);
+                read++;
+            }
+            return read;
+        }
+
+        /**
+         * Returns the offset of the next event to be read; a consumer stores it to resume later.
+         * @return the reader's position in the journal
+         */
+        public long position() {
+            return segmentBase + segment.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package Utils;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ResponseCompression sends response bodies gzip or deflate encoded when the client asks for it in
+ * Accept-Encoding and the body is at least minBytes long. Smaller bodies, and clients that do not
+ * ask, get the body as it is.
+ *
+ * <p>A Deflater holds native memory and is slow to create, so they are pooled and reset between
+ * responses. A buffered body is compressed into a per-thread buffer first, so the response keeps a
+ * Content-Length; if compression does not make it smaller, it is sent uncompressed.</p>
+ *
+ * <p>Settings come from the "Compression" section of config.json (enabled, minBytes, level,
+ * poolSize). A service section can override enabled as "compression" and minBytes as
+ * "compressMinBytes".</p>
+ */
+public class ResponseCompression {
+    /**
+     * The gzip content coding
+     */
+    public static final String GZIP = "gzip";
+    /**
+     * The deflate (zlib) content coding
+     */
+    public static final String DEFLATE = "deflate";
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+
+    private static volatile boolean enabled = true;
+    private static volatile int minBytes = 1024;
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private static volatile int poolSize = 32;
+    private static final Queue<Deflater> gzipPool = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> deflatePool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final ThreadLocal<byte[][]> buffers = ThreadLocal.withInitial(() -> new byte[][]{new byte[INITIAL_BUFFER]});
+    private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
+    /**
+     * Reads the compression settings.
+     * @param configFile The path to the JSON configuration file
+     * @param serviceName The name of the service (For example, "UserService")
+     * @throws IOException If the file cannot be read
+     */
+    public static void configure(String configFile, String serviceName) throws IOException {
+        enabled = ConfigReader.getBoolean(configFile, serviceName, "compression",
+                ConfigReader.getBoolean(configFile, "Compression", "enabled", true));
+        minBytes = ConfigReader.getInt(configFile, serviceName, "compressMinBytes",
+                ConfigReader.getInt(configFile, "Compression", "minBytes", 1024));
+        level = ConfigReader.getInt(configFile, "Compression", "level", Deflater.DEFAULT_COMPRESSION);
+        poolSize = ConfigReader.getInt(configFile, "Compression", "poolSize", 32);
+    }
+
+    /**
+     * Picks the content coding for a response from the request's Accept-Encoding. gzip is preferred
+     * over deflate; a coding with q=0 is refused.
+     * @param exchange the exchange
+     * @return GZIP, DEFLATE, or null to send the body as it is
+     */
+    public static String negotiate(HttpExchange exchange) {
+        if (!enabled) {
+            return null;
+        }
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String part : accept.split(",")) {
+            int semicolon = part.indexOf(';');
+            String coding = (semicolon == -1 ? part : part.substring(0, semicolon)).trim();
+            if (semicolon != -1 && refused(part.substring(semicolon + 1))) {
+                continue;
+            }
+            if (coding.equalsIgnoreCase(GZIP) || coding.equals("*")) {
+                return GZIP;
+            }
+            if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = true;
+            }
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    private static boolean refused(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            String p = parameter.trim();
+            if (p.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(p.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a response, compressed if the client accepts it and the body is large enough.
+     * @param exchange the exchange; its other response headers must already be set
+     * @param statusCode the HTTP status code
+     * @param body the response body
+     * @throws IOException if the response cannot be written
+     */
+    public static void send(HttpExchange exchange, int statusCode, byte[] body) throws IOException {
+        send(exchange, statusCode, body, 0, body.length);
+    }
+
+    /**
+     * Sends the body held by a JsonWriter, compressed if the client accepts it and it is large enough.
+     * @param exchange the exchange; its other response headers must already be set
+     * @param statusCode the HTTP status code
+     * @param json the writer holding the body
+     * @throws IOException if the response cannot be written
+     */
+    public static void send(HttpExchange exchange, int statusCode, JsonWriter json) throws IOException {
+        send(exchange, statusCode, json.array(), 0, json.size());
+    }
+
+    /**
+     * Sends part of an array as the response body.
+     * @param exchange the exchange; its other response headers must already be set
+     * @param statusCode the HTTP status code
+     * @param body the array
+     * @param offset where the body starts
+     * @param length the length of the body
+     * @throws IOException if the response cannot be written
+     */
+    public static void send(HttpExchange exchange, int statusCode, byte[] body, int offset, int length) throws IOException {
+        String coding = null;
+        if (enabled && length >= minBytes) {
+            // Whether this response is compressed depends on the request
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            coding = negotiate(exchange);
+        }
+        if (coding != null) {
+            byte[][] holder = buffers.get();
+            int compressed = compress(coding, body, offset, length, holder);
+            byte[] out = holder[0];
+            if (out.length > MAX_RETAINED_BUFFER) {
+                holder[0] = new byte[INITIAL_BUFFER];
+            }
+            if (compressed < length) {
+                exchange.getResponseHeaders().set("Content-Encoding", coding);
+                write(exchange, statusCode, out, 0, compressed);
+                return;
+            }
+        }
+        write(exchange, statusCode, body, offset, length);
+    }
+
+    /**
+     * Sends a body that is already encoded, For example one relayed from another service, without
+     * decoding it.
+     * @param exchange the exchange; its other response headers must already be set
+     * @param statusCode the HTTP status code
+     * @param body the response body
+     * @param contentEncoding the body's content coding, or null if it is not encoded
+     * @throws IOException if the response cannot be written
+     */
+    public static void sendEncoded(HttpExchange exchange, int statusCode, byte[] body, String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) {
+            send(exchange, statusCode, body);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        write(exchange, statusCode, body, 0, body.length);
+    }
+
+    /**
+     * Starts a response whose length is not known in advance; the body is sent chunked. It is
+     * compressed whenever the client accepts it, since its size cannot be checked against minBytes.
+     * @param exchange the exchange; its other response headers must already be set
+     * @param statusCode the HTTP status code
+     * @return the stream to write the body to; closing it completes the response
+     * @throws IOException if the headers cannot be sent
+     */
+    public static OutputStream stream(HttpExchange exchange, int statusCode) throws IOException {
+        String coding = negotiate(exchange);
+        if (coding == null) {
+            exchange.sendResponseHeaders(statusCode, 0);
+            return exchange.getResponseBody();
+        }
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        exchange.getResponseHeaders().set("Content-Encoding", coding);
+        exchange.sendResponseHeaders(statusCode, 0);
+        return new PooledDeflaterStream(exchange.getResponseBody(), coding);
+    }
+
+    private static void write(HttpExchange exchange, int statusCode, byte[] body, int offset, int length) throws IOException {
+        if (statusCode == 304) {
+            // Not Modified never has a body, For example one relayed from a revalidation
+            exchange.sendResponseHeaders(statusCode, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(statusCode, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body, offset, length);
+        }
+    }
+
+    /**
+     * Compresses a body into holder[0], growing it as needed.
+     * @return the compressed length
+     */
+    private static int compress(String coding, byte[] body, int offset, int length, byte[][] holder) {
+        boolean gzip = coding.equals(GZIP);
+        Deflater deflater = borrow(gzip);
+        try {
+            byte[] out = holder[0];
+            int size = 0;
+            if (gzip) {
+                System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+                size = GZIP_HEADER.length;
+            }
+            deflater.setInput(body, offset, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                    holder[0] = out;
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            if (gzip) {
+                if (out.length - size < 8) {
+                    out = Arrays.copyOf(out, size + 8);
+                    holder[0] = out;
+                }
+                CRC32 crc = checksums.get();
+                crc.reset();
+                crc.update(body, offset, length);
+                writeIntLE(out, size, (int) crc.getValue());
+                writeIntLE(out, size + 4, length);
+                size += 8;
+            }
+            return size;
+        } finally {
+            release(deflater, gzip);
+        }
+    }
+
+    private static void writeIntLE(byte[] out, int at, int value) {
+        out[at] = (byte) value;
+        out[at + 1] = (byte) (value >> 8);
+        out[at + 2] = (byte) (value >> 16);
+        out[at + 3] = (byte) (value >> 24);
+    }
+
+    private static Deflater borrow(boolean gzip) {
+        Deflater deflater = (gzip ? gzipPool : deflatePool).poll();
+        if (deflater == null) {
+            // gzip frames raw deflate data itself; deflate is the zlib format
+            return new Deflater(level, gzip);
+        }
+        pooled.decrementAndGet();
+        return deflater;
+    }
+
+    private static void release(Deflater deflater, boolean gzip) {
+        deflater.reset();
+        if (pooled.incrementAndGet() <= poolSize) {
+            (gzip ? gzipPool : deflatePool).offer(deflater);
+        } else {
+            pooled.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compresses a streamed body with a pooled Deflater and gives it back when the stream is closed.
+     */
+    private static final class PooledDeflaterStream extends DeflaterOutputStream {
+        private final boolean gzip;
+        private final CRC32 crc;
+        private long length;
+        private boolean closed;
+
+        PooledDeflaterStream(OutputStream out, String coding) throws IOException {
+            this(out, coding.equals(GZIP));
+        }
+
+        private PooledDeflaterStream(OutputStream out, boolean gzip) throws IOException {
+            super(out, borrow(gzip), 8192);
+            this.gzip = gzip;
+            this.crc = gzip ? new CRC32() : null;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (gzip) {
+                crc.update(b, off, len);
+                length += len;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+                if (gzip) {
+                    byte[] trailer = new byte[8];
+                    writeIntLE(trailer, 0, (int) crc.getValue());
+                    writeIntLE(trailer, 4, (int) length);
+                    out.write(trailer);
+                }
+                out.close();
+            } finally {
+                release(def, gzip);
+            }
+        }
+    }
+}
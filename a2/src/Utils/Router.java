@@ -0,0 +1,257 @@
+package Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Router maps a request method and path to a route, replacing chains of startsWith, contains and
+ * split("/") in the handlers.
+ *
+ * <p>Routes are written like {@code /user/{id}}, {@code /user/purchased/{id}} or
+ * {@code /product/internal/{*}}: a literal segment must match exactly, {@code {name}} matches any one
+ * segment, and a final {@code {*}} matches the rest of the path. They are compiled once into a trie
+ * per method, so matching walks the path once, compares segments in place and allocates nothing.
+ * Literal segments win over {@code {name}}, which wins over {@code {*}}. Empty segments (repeated or
+ * trailing slashes) are skipped, as split("/") used to do.</p>
+ *
+ * <p>The result of a match is a per-thread {@link Match} that is reused by the next match on the same
+ * thread, so it must be read before the handler matches again.</p>
+ *
+ * @param <T> what a route leads to (for example, an enum of the handler's operations)
+ */
+public class Router<T> {
+    /**
+     * Method that matches any request method
+     */
+    public static final String ANY = "*";
+    private static final int MAX_PARAMS = 4;
+
+    private final boolean ignoreCase;
+    private final Map<String, Node<T>> roots = new HashMap<>();
+    private final ThreadLocal<Match<T>> matches = ThreadLocal.withInitial(Match::new);
+
+    private static final class Node<T> {
+        private final String segment;
+        private final List<Node<T>> literals = new ArrayList<>();
+        private Node<T> param;
+        private Node<T> rest;
+        private T target;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * The route a path matched and the segments captured by its parameters.
+     *
+     * @param <T> what the route leads to
+     */
+    public static final class Match<T> {
+        private T target;
+        private String path;
+        private int count;
+        private final int[] starts = new int[MAX_PARAMS];
+        private final int[] ends = new int[MAX_PARAMS];
+
+        /**
+         * Returns what the matched route leads to
+         * @return the target given to {@link Router#add(String, String, Object)}
+         */
+        public T target() {
+            return target;
+        }
+
+        /**
+         * Returns the number of parameters captured
+         * @return the parameter count, including a final {*}
+         */
+        public int paramCount() {
+            return count;
+        }
+
+        /**
+         * Parses a parameter as an int, straight from the characters of the path.
+         * @param index the position of the parameter in the route, from 0
+         * @return the value
+         * @throws NumberFormatException if the segment is not a decimal int
+         */
+        public int intParam(int index) {
+            if (index >= count) {
+                throw new NumberFormatException("No parameter " + index);
+            }
+            int pos = starts[index];
+            int end = ends[index];
+            boolean negative = pos < end && path.charAt(pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            if (pos == end) {
+                throw new NumberFormatException(path.substring(starts[index], end));
+            }
+            // Accumulated as a negative number, so Integer.MIN_VALUE parses too
+            int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+            int multiplyMin = limit / 10;
+            int value = 0;
+            for (; pos < end; pos++) {
+                int digit = path.charAt(pos) - '0';
+                if (digit < 0 || digit > 9 || value < multiplyMin || value * 10 < limit + digit) {
+                    throw new NumberFormatException(path.substring(starts[index], end));
+                }
+                value = value * 10 - digit;
+            }
+            return negative ? value : -value;
+        }
+
+        /**
+         * Returns a parameter as a string. Unlike {@link #intParam(int)}, this allocates.
+         * @param index the position of the parameter in the route, from 0
+         * @return the segment (or, for {*}, the rest of the path)
+         */
+        public String param(int index) {
+            if (index >= count) {
+                throw new IndexOutOfBoundsException("No parameter " + index);
+            }
+            return path.substring(starts[index], ends[index]);
+        }
+    }
+
+    /**
+     * Creates a router whose literal segments match case-sensitively.
+     */
+    public Router() {
+        this(false);
+    }
+
+    /**
+     * Creates a router.
+     * @param ignoreCase true to match literal segments regardless of case
+     */
+    public Router(boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+    }
+
+    /**
+     * Adds a route.
+     * @param method the request method (For example, "GET"), or {@link #ANY}
+     * @param pattern the path pattern, For example {@code /user/{id}/orders}
+     * @param target what the route leads to
+     * @return this router
+     */
+    public Router<T> add(String method, String pattern, T target) {
+        Node<T> node = roots.computeIfAbsent(method, m -> new Node<>(""));
+        int params = 0;
+        String[] segments = pattern.split("/");
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.equals("{*}")) {
+                if (i != segments.length - 1) {
+                    throw new IllegalArgumentException("{*} must be the last segment: " + pattern);
+                }
+                if (node.rest == null) {
+                    node.rest = new Node<>(segment);
+                }
+                node = node.rest;
+                params++;
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                if (node.param == null) {
+                    node.param = new Node<>(segment);
+                }
+                node = node.param;
+                params++;
+            } else {
+                Node<T> child = null;
+                for (Node<T> literal : node.literals) {
+                    if (ignoreCase ? literal.segment.equalsIgnoreCase(segment) : literal.segment.equals(segment)) {
+                        child = literal;
+                    }
+                }
+                if (child == null) {
+                    child = new Node<>(segment);
+                    node.literals.add(child);
+                }
+                node = child;
+            }
+        }
+        if (params > MAX_PARAMS) {
+            throw new IllegalArgumentException("At most " + MAX_PARAMS + " parameters: " + pattern);
+        }
+        node.target = target;
+        return this;
+    }
+
+    /**
+     * Finds the route of a request. Routes of the exact method are tried before {@link #ANY} routes.
+     * @param method the request method
+     * @param path the request path, without the query
+     * @return this thread's match, or null if no route matches
+     */
+    public Match<T> match(String method, String path) {
+        Match<T> match = matches.get();
+        match.path = path;
+        Node<T> root = roots.get(method);
+        if (root != null && walk(root, path, 0, match, 0)) {
+            return match;
+        }
+        root = roots.get(ANY);
+        if (root != null && walk(root, path, 0, match, 0)) {
+            return match;
+        }
+        match.path = null;
+        return null;
+    }
+
+    private boolean walk(Node<T> node, String path, int pos, Match<T> match, int depth) {
+        int length = path.length();
+        while (pos < length && path.charAt(pos) == '/') {
+            pos++;
+        }
+        if (pos == length) {
+            if (node.target != null) {
+                return found(match, node.target, depth);
+            }
+            if (node.rest != null && node.rest.target != null) {
+                match.starts[depth] = pos;
+                match.ends[depth] = pos;
+                return found(match, node.rest.target, depth + 1);
+            }
+            return false;
+        }
+        int end = path.indexOf('/', pos);
+        if (end < 0) {
+            end = length;
+        }
+        int segmentLength = end - pos;
+        for (Node<T> literal : node.literals) {
+            if (literal.segment.length() == segmentLength
+                    && path.regionMatches(ignoreCase, pos, literal.segment, 0, segmentLength)
+                    && walk(literal, path, end, match, depth)) {
+                return true;
+            }
+        }
+        if (node.param != null) {
+            match.starts[depth] = pos;
+            match.ends[depth] = end;
+            if (walk(node.param, path, end, match, depth + 1)) {
+                return true;
+            }
+        }
+        if (node.rest != null && node.rest.target != null) {
+            match.starts[depth] = pos;
+            match.ends[depth] = length;
+            return found(match, node.rest.target, depth + 1);
+        }
+        return false;
+    }
+
+    private static <T> boolean found(Match<T> match, T target, int count) {
+        match.target = target;
+        match.count = count;
+        return true;
+    }
+}
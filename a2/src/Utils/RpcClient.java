@@ -0,0 +1,140 @@
+package Utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The client side of the internal binary transport.
+ *
+ * <p>Every call goes over one persistent connection. Calls are tagged with a request id and
+ * a reader thread completes the matching future when the reply arrives, so any number of threads
+ * can have calls in flight at once. If the connection breaks, every outstanding call fails and
+ * the next call opens a new connection.</p>
+ */
+public class RpcClient {
+    private final InetSocketAddress address;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<RpcFrame>> pending = new ConcurrentHashMap<>();
+    /**
+     * Serializes writers so frames from different threads never interleave on the socket
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private SocketChannel channel;
+
+    /**
+     * Creates a client for one server. No connection is made until the first call.
+     *
+     * @param host the server ip
+     * @param port the server's RPC port
+     */
+    public RpcClient(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Sends a request frame.
+     *
+     * @param op the operation code
+     * @param payload the encoded request body
+     * @return a future completed with the reply frame, or exceptionally if the connection fails
+     */
+    public CompletableFuture<RpcFrame> call(byte op, byte[] payload) {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<RpcFrame> future = new CompletableFuture<>();
+        pending.put(id, future);
+        // Also covers callers that cancel or time out, so a late reply is simply dropped
+        future.whenComplete((reply, error) -> pending.remove(id));
+
+        ByteBuffer frame = new RpcFrame(id, op, RpcFrame.STATUS_OK, payload).encode();
+        writeLock.lock();
+        try {
+            SocketChannel ch = connection();
+            while (frame.hasRemaining()) {
+                ch.write(frame);
+            }
+        } catch (IOException e) {
+            disconnect(e);
+        } finally {
+            writeLock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Returns the open connection, connecting and starting the reader thread if needed.
+     * Must be called while holding the write lock.
+     */
+    private SocketChannel connection() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            SocketChannel ch = SocketChannel.open(address);
+            ch.socket().setTcpNoDelay(true);
+            channel = ch;
+            Thread reader = new Thread(() -> readLoop(ch), "rpc-reader-" + address.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+        return channel;
+    }
+
+    private void readLoop(SocketChannel ch) {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        try {
+            while (true) {
+                lengthBuffer.clear();
+                readFully(ch, lengthBuffer);
+                int length = lengthBuffer.flip().getInt();
+                if (length < RpcFrame.HEADER_SIZE || length > RpcFrame.MAX_FRAME_SIZE) {
+                    throw new IOException("Corrupt frame length " + length);
+                }
+                ByteBuffer frameBuffer = ByteBuffer.allocate(length);
+                readFully(ch, frameBuffer);
+                RpcFrame reply = RpcFrame.decode(frameBuffer.flip());
+                CompletableFuture<RpcFrame> future = pending.get(reply.getRequestId());
+                if (future != null) {
+                    future.complete(reply);
+                }
+            }
+        } catch (IOException e) {
+            writeLock.lock();
+            try {
+                if (channel == ch) {
+                    disconnect(e);
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private static void readFully(SocketChannel ch, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (ch.read(buffer) == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    /**
+     * Closes the connection and fails every outstanding call. Must be called while holding the write lock.
+     */
+    private void disconnect(IOException cause) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+        for (CompletableFuture<RpcFrame> future : pending.values()) {
+            future.completeExceptionally(cause);
+        }
+    }
+}
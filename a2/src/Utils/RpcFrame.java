@@ -0,0 +1,125 @@
+package Utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One message of the internal binary transport.
+ *
+ * <p>On the wire a frame is: {@code [int length][long requestId][byte op][byte status][payload]},
+ * where length counts every byte after itself. The request id lets many calls share one connection:
+ * the reply carries the id of the request it answers, and replies may come back in any order.</p>
+ */
+public class RpcFrame {
+    /** Look up a user by id; payload is the id as an int */
+    public static final byte OP_GET_USER = 1;
+    /** Look up a product by id; payload is the id as an int */
+    public static final byte OP_GET_PRODUCT = 2;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_BAD_REQUEST = 2;
+    public static final byte STATUS_ERROR = 3;
+
+    /**
+     * Bytes in the header after the length prefix: id, op and status
+     */
+    static final int HEADER_SIZE = 8 + 1 + 1;
+    /**
+     * Frames larger than this are treated as a broken stream
+     */
+    static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long requestId;
+    private final byte op;
+    private final byte status;
+    private final byte[] payload;
+
+    /**
+     * Initializes a new frame.
+     *
+     * @param requestId the id that pairs a request with its reply
+     * @param op the operation code
+     * @param status the status; always STATUS_OK on a request
+     * @param payload the encoded body; may be null for an empty body
+     */
+    public RpcFrame(long requestId, byte op, byte status, byte[] payload) {
+        this.requestId = requestId;
+        this.op = op;
+        this.status = status;
+        this.payload = payload == null ? EMPTY : payload;
+    }
+
+    /**
+     * Builds the reply to this frame.
+     *
+     * @param status the reply status
+     * @param payload the reply body; may be null
+     * @return a frame with the same request id and op
+     */
+    public RpcFrame reply(byte status, byte[] payload) {
+        return new RpcFrame(requestId, op, status, payload);
+    }
+
+    public long getRequestId() {
+        return requestId;
+    }
+
+    public byte getOp() {
+        return op;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Maps the frame status onto the HTTP status code the JSON API would have used.
+     *
+     * @return 200, 404, 400 or 500
+     */
+    public int httpStatus() {
+        switch (status) {
+            case STATUS_OK: return 200;
+            case STATUS_NOT_FOUND: return 404;
+            case STATUS_BAD_REQUEST: return 400;
+            default: return 500;
+        }
+    }
+
+    /**
+     * Writes the frame, length prefix included, into a buffer ready to be written to a channel.
+     *
+     * @return a flipped buffer holding the whole frame
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_SIZE + payload.length);
+        buffer.putInt(HEADER_SIZE + payload.length);
+        buffer.putLong(requestId);
+        buffer.put(op);
+        buffer.put(status);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a frame whose length prefix has already been consumed.
+     *
+     * @param frame a buffer positioned at the request id, with exactly the frame's bytes remaining
+     * @return the decoded frame
+     */
+    public static RpcFrame decode(ByteBuffer frame) {
+        long requestId = frame.getLong();
+        byte op = frame.get();
+        byte status = frame.get();
+        byte[] payload = new byte[frame.remaining()];
+        frame.get(payload);
+        return new RpcFrame(requestId, op, status, payload);
+    }
+}
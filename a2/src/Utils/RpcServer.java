@@ -0,0 +1,217 @@
+package Utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The server side of the internal binary transport.
+ *
+ * <p>A single selector thread accepts connections, reads length-prefixed frames and writes replies.
+ * Each complete request frame is handed to a worker pool, because handlers block on JDBC or on a
+ * downstream call. Connections are persistent and a client may have many requests outstanding on
+ * one connection at the same time.</p>
+ */
+public class RpcServer implements Runnable {
+
+    /**
+     * Answers one request frame. Implementations build the reply with {@link RpcFrame#reply}.
+     */
+    public interface Handler {
+        RpcFrame handle(RpcFrame request) throws Exception;
+    }
+
+    private final String name;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Handler handler;
+    private final ExecutorService workers;
+    /**
+     * Connections that have replies waiting; the selector thread turns on OP_WRITE for them
+     */
+    private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private RpcServer(String name, int port, Handler handler, int workerThreads) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Binds the port and starts the selector thread.
+     *
+     * @param name the service name, used for the thread name and log lines
+     * @param port the port to listen on
+     * @param handler the handler that answers request frames
+     * @param workerThreads the number of threads that run the handler
+     * @return the running server
+     * @throws IOException if the port cannot be bound
+     */
+    public static RpcServer start(String name, int port, Handler handler, int workerThreads) throws IOException {
+        RpcServer server = new RpcServer(name, port, handler, workerThreads);
+        Thread thread = new Thread(server, name + "-rpc-selector");
+        thread.setDaemon(true);
+        thread.start();
+        Log.info(name + " internal RPC listening on port " + port);
+        return server;
+    }
+
+    @Override
+    public void run() {
+        while (serverChannel.isOpen()) {
+            try {
+                selector.select();
+                Connection ready;
+                while ((ready = pendingWrites.poll()) != null) {
+                    if (ready.key.isValid()) {
+                        ready.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.error("[" + name + " RPC] Selector error: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the selector.
+     */
+    public void close() {
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ignored) {
+        }
+        workers.shutdown();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    /**
+     * The state of one client connection: a growing input buffer and a queue of encoded replies.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() {
+            try {
+                if (channel.read(in) == -1) {
+                    close();
+                    return;
+                }
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < RpcFrame.HEADER_SIZE || length > RpcFrame.MAX_FRAME_SIZE) {
+                        close();
+                        return;
+                    }
+                    if (in.remaining() < 4 + length) {
+                        if (in.capacity() < 4 + length) {
+                            ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                            bigger.put(in);
+                            in = bigger;
+                            return;
+                        }
+                        break;
+                    }
+                    in.getInt();
+                    byte[] frame = new byte[length];
+                    in.get(frame);
+                    workers.execute(() -> dispatch(frame));
+                }
+                in.compact();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void dispatch(byte[] bytes) {
+            RpcFrame request = RpcFrame.decode(ByteBuffer.wrap(bytes));
+            RpcFrame reply;
+            try {
+                reply = handler.handle(request);
+            } catch (Exception e) {
+                reply = request.reply(RpcFrame.STATUS_ERROR, null);
+            }
+            out.add(reply.encode());
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        void flush() {
+            try {
+                ByteBuffer head;
+                while ((head = out.peek()) != null) {
+                    channel.write(head);
+                    if (head.hasRemaining()) {
+                        return;
+                    }
+                    out.poll();
+                }
+                // A worker that queues a reply after this point also re-arms OP_WRITE through pendingWrites
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package Utils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ServiceLifecycle replaces the old "sleep, then System.exit" shutdown in every handler.
+ * Each service registers its server at startup. On shutdown the server stops accepting
+ * connections, requests already in flight are allowed to finish, the flush hooks run
+ * (for example to close files), and only then does the process exit.
+ */
+public class ServiceLifecycle {
+    private static volatile HttpEngine server;
+    private static volatile AdmissionController admission;
+    private static volatile int drainSeconds = 5;
+    private static final List<Runnable> flushHooks = new CopyOnWriteArrayList<>();
+    private static final AtomicBoolean stopping = new AtomicBoolean(false);
+
+    /**
+     * Registers the server of this process.
+     * @param configFile The path to the JSON configuration file; ControlPlane.drainTimeoutSeconds is read from it
+     * @param httpServer the service's HTTP server
+     * @param admissionController the executor of the server; may be null
+     * @throws IOException If the file cannot be read
+     */
+    public static void register(String configFile, HttpEngine httpServer, AdmissionController admissionController) throws IOException {
+        server = httpServer;
+        admission = admissionController;
+        drainSeconds = ConfigReader.getInt(configFile, "ControlPlane", "drainTimeoutSeconds", 5);
+    }
+
+    /**
+     * Adds a hook that runs after in-flight requests have drained and before the process exits.
+     * @param hook the hook
+     */
+    public static void addFlushHook(Runnable hook) {
+        flushHooks.add(hook);
+    }
+
+    /**
+     * Starts the graceful shutdown on a separate thread, so the caller can return from its handler.
+     * Calling it more than once has no extra effect.
+     */
+    public static void shutdownAsync() {
+        if (!stopping.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread(() -> {
+            long start = System.currentTimeMillis();
+            drain();
+            Log.info("[Lifecycle] Drained and flushed in " + (System.currentTimeMillis() - start) + " ms. Exiting.");
+            System.exit(0);
+        }, "service-shutdown").start();
+    }
+
+    private static void drain() {
+        // HttpServer.stop(delay) only notices idleness when an exchange ends after it was called,
+        // so it often sleeps the whole delay. The admission controller knows what is in flight.
+        if (admission != null && !admission.drain(drainSeconds)) {
+            Log.warn("[Lifecycle] Requests still running after " + drainSeconds + "s; stopping anyway.");
+        }
+        if (server != null) {
+            server.stop(admission != null ? 0 : drainSeconds);
+        }
+        for (Runnable hook : flushHooks) {
+            try {
+                hook.run();
+            } catch (Exception e) {
+                Log.error("[Lifecycle] Flush hook failed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package Utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TraceView stitches the span files written by {@link Tracing} into a waterfall per request.
+ *
+ * <p>Usage:</p>
+ * <pre>
+ *     java -cp compiled Utils.TraceView [dir] [trace id]
+ * </pre>
+ * <p>With a trace id, that request is printed. Without one, the slowest requests are listed and the
+ * slowest is printed. dir defaults to "traces"; the rotated files in it are read too, so every
+ * service's spans are found no matter which file they ended up in.</p>
+ */
+public class TraceView {
+    private static final int BAR_WIDTH = 40;
+    private static final int SLOWEST = 10;
+
+    private static final class Span {
+        String traceId;
+        String spanId;
+        String parentId;
+        String service;
+        String name;
+        long start;
+        long duration;
+        int status;
+        final List<Span> children = new ArrayList<>();
+    }
+
+    /**
+     * Prints the waterfall of one request, or of the slowest one.
+     * @param args the span directory, then optionally a trace id
+     * @throws IOException If the span files cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "traces");
+        String traceId = args.length > 1 ? args[1] : null;
+        Map<String, List<Span>> traces = read(dir);
+        if (traces.isEmpty()) {
+            System.out.println("No spans in " + dir.toAbsolutePath());
+            return;
+        }
+        if (traceId != null) {
+            List<Span> spans = traces.get(traceId);
+            if (spans == null) {
+                System.out.println("No spans for trace " + traceId);
+                return;
+            }
+            print(traceId, spans);
+            return;
+        }
+        List<Map.Entry<String, List<Span>>> slowest = new ArrayList<>(traces.entrySet());
+        slowest.sort(Comparator.comparingLong((Map.Entry<String, List<Span>> e) -> extent(e.getValue())).reversed());
+        System.out.println("Slowest of " + traces.size() + " requests:");
+        for (Map.Entry<String, List<Span>> trace : slowest.subList(0, Math.min(SLOWEST, slowest.size()))) {
+            Span root = roots(trace.getValue()).get(0);
+            System.out.printf("  %s  %9.3f ms  %s %s%n", trace.getKey(), extent(trace.getValue()) / 1000.0,
+                    root.service, root.name);
+        }
+        System.out.println();
+        print(slowest.get(0).getKey(), slowest.get(0).getValue());
+    }
+
+    private static Map<String, List<Span>> read(Path dir) throws IOException {
+        Map<String, List<Span>> traces = new HashMap<>();
+        if (!Files.isDirectory(dir)) {
+            return traces;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.spans*")) {
+            for (Path file : files) {
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        Span span = parse(line);
+                        if (span != null) {
+                            traces.computeIfAbsent(span.traceId, id -> new ArrayList<>()).add(span);
+                        }
+                    }
+                }
+            }
+        }
+        return traces;
+    }
+
+    private static Span parse(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 8) {
+            return null;
+        }
+        try {
+            Span span = new Span();
+            span.traceId = fields[0];
+            span.spanId = fields[1];
+            span.parentId = fields[2].equals("-") ? null : fields[2];
+            span.service = fields[3];
+            span.name = fields[4];
+            span.start = Long.parseLong(fields[5]);
+            span.duration = Long.parseLong(fields[6]);
+            span.status = Integer.parseInt(fields[7]);
+            return span;
+        } catch (NumberFormatException e) {
+            // A line cut short when a service was killed
+            return null;
+        }
+    }
+
+    /**
+     * Links each span to its parent and returns the spans whose parent was not recorded, earliest first.
+     */
+    private static List<Span> roots(List<Span> spans) {
+        Map<String, Span> byId = new HashMap<>();
+        for (Span span : spans) {
+            span.children.clear();
+            byId.put(span.spanId, span);
+        }
+        List<Span> roots = new ArrayList<>();
+        for (Span span : spans) {
+            Span parent = span.parentId == null ? null : byId.get(span.parentId);
+            if (parent == null) {
+                roots.add(span);
+            } else {
+                parent.children.add(span);
+            }
+        }
+        Comparator<Span> byStart = Comparator.comparingLong(s -> s.start);
+        for (Span span : spans) {
+            span.children.sort(byStart);
+        }
+        roots.sort(byStart);
+        return roots;
+    }
+
+    private static long extent(List<Span> spans) {
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (Span span : spans) {
+            start = Math.min(start, span.start);
+            end = Math.max(end, span.start + span.duration);
+        }
+        return end - start;
+    }
+
+    private static void print(String traceId, List<Span> spans) {
+        long start = Long.MAX_VALUE;
+        for (Span span : spans) {
+            start = Math.min(start, span.start);
+        }
+        long total = Math.max(extent(spans), 1);
+        System.out.printf("Trace %s, %d spans, %.3f ms%n", traceId, spans.size(), total / 1000.0);
+        System.out.printf("%10s %10s  %-" + BAR_WIDTH + "s  %-16s %s%n", "start ms", "took ms", "", "service", "span");
+        for (Span root : roots(spans)) {
+            print(root, 0, start, total);
+        }
+    }
+
+    private static void print(Span span, int depth, long traceStart, long total) {
+        int from = (int) ((span.start - traceStart) * BAR_WIDTH / total);
+        int width = Math.max(1, (int) (span.duration * BAR_WIDTH / total));
+        StringBuilder bar = new StringBuilder(BAR_WIDTH);
+        for (int i = 0; i < BAR_WIDTH; i++) {
+            bar.append(i >= from && i < from + width ? '=' : ' ');
+        }
+        String status = span.status > 0 ? " [" + span.status + "]" : "";
+        System.out.printf("%10.3f %10.3f |%s| %-16s %s%s%s%n", (span.start - traceStart) / 1000.0, span.duration / 1000.0,
+                bar, span.service, "  ".repeat(depth), span.name, status);
+        for (Span child : span.children) {
+            print(child, depth + 1, traceStart, total);
+        }
+    }
+}
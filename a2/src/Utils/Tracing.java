@@ -0,0 +1,444 @@
+package Utils;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracing follows one request through OrderService, ISCS and the backends, so the time of a slow
+ * order can be split into the user check, the forward, the product lookup and the commit.
+ *
+ * <p>The ids travel in the W3C traceparent header ({@code 00-<trace id>-<span id>-<flags>}). The
+ * filter {@link #instrument(HttpContext)} adds to each context continues the trace of an incoming
+ * request, or starts one when the request has none (at the edge), and records a span for the request.
+ * While the handler runs, that span is the thread's current span: {@link #send} and {@link #sendAsync}
+ * record a child span for each outbound call and pass it on in the header, and DatabaseManager records
+ * one for each operation.</p>
+ *
+ * <p>Finished spans are queued and written by a background thread to {@code <dir>/<service>.spans},
+ * one tab separated line per span:</p>
+ * <pre>
+ *     trace id, span id, parent span id (- for a root), service, name, start (epoch us), duration (us), status
+ * </pre>
+ * <p>The file is rotated at maxFileBytes, keeping maxFiles old ones. {@link TraceView} reads the files
+ * of all services and prints a waterfall per request.</p>
+ *
+ * <p>Settings come from the "Tracing" section of config.json (enabled, sampleRate, dir,
+ * maxFileBytes, maxFiles). A request that is not sampled still carries its ids, so the services
+ * behind the edge agree on not recording it.</p>
+ */
+public class Tracing {
+    /**
+     * The header the ids travel in
+     */
+    public static final String HEADER = "traceparent";
+    /**
+     * The response header that tells a client the trace id of its request
+     */
+    public static final String TRACE_ID_HEADER = "X-Trace-Id";
+
+    private static final int QUEUE_SIZE = 64 * 1024;
+    // Wall clock at microsecond resolution: the epoch time once, then the monotonic clock
+    private static final long EPOCH_MICROS_AT_START = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+    private static volatile boolean enabled = false;
+    private static volatile double sampleRate = 1.0;
+    private static volatile String serviceName = "unknown";
+    private static final ThreadLocal<Span> current = new ThreadLocal<>();
+    private static final BlockingQueue<String> finished = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private static final Metrics.Counter dropped = Metrics.counter("tracing_spans_dropped_total",
+            "Spans not written because the writer fell behind");
+
+    /**
+     * One timed step of a request.
+     */
+    public static final class Span {
+        private final String traceId;
+        private final String spanId;
+        private final String parentId;
+        private final boolean sampled;
+        private final long startNanos;
+        private String name;
+        private boolean ended;
+
+        private Span(String traceId, String parentId, boolean sampled, String name, long startNanos) {
+            this.traceId = traceId;
+            this.spanId = hex(ThreadLocalRandom.current().nextLong());
+            this.parentId = parentId;
+            this.sampled = sampled;
+            this.name = name;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * Returns the id of the request's trace
+         * @return 32 hex digits
+         */
+        public String getTraceId() {
+            return traceId;
+        }
+
+        /**
+         * Starts a span for a step of this one, For example a call it makes
+         * @param name what the step does
+         * @return the child span
+         */
+        public Span child(String name) {
+            return new Span(traceId, spanId, sampled, name, System.nanoTime());
+        }
+
+        /**
+         * Renames the span; the name is only written when the span ends
+         * @param name the new name
+         */
+        public void rename(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Returns the value of the traceparent header for calls made as part of this span
+         * @return the header value
+         */
+        public String traceparent() {
+            return "00-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+        }
+
+        /**
+         * Ends the span and queues it to be written. Only the first call has an effect.
+         * @param status the HTTP status of the step, or 0 if it has none or failed
+         */
+        public void end(int status) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            if (!sampled) {
+                return;
+            }
+            long end = System.nanoTime();
+            StringBuilder line = new StringBuilder(128)
+                    .append(traceId).append('\t')
+                    .append(spanId).append('\t')
+                    .append(parentId == null ? "-" : parentId).append('\t')
+                    .append(serviceName).append('\t')
+                    .append(name.replace('\t', ' ')).append('\t')
+                    .append(EPOCH_MICROS_AT_START + startNanos / 1000).append('\t')
+                    .append((end - startNanos) / 1000).append('\t')
+                    .append(status);
+            if (!finished.offer(line.toString())) {
+                dropped.labels().increment();
+            }
+        }
+    }
+
+    /**
+     * Reads the tracing settings and starts the span writer.
+     * @param configFile The path to the JSON configuration file
+     * @param service The name of the service (For example, "UserService")
+     * @throws IOException If the file cannot be read
+     */
+    public static synchronized void configure(String configFile, String service) throws IOException {
+        boolean wasEnabled = enabled;
+        serviceName = service;
+        enabled = ConfigReader.getBoolean(configFile, "Tracing", "enabled", false);
+        sampleRate = Double.parseDouble(ConfigReader.getString(configFile, "Tracing", "sampleRate", "1.0").trim());
+        if (!enabled || wasEnabled) {
+            return;
+        }
+        Path dir = Paths.get(ConfigReader.getString(configFile, "Tracing", "dir", "traces").trim());
+        long maxFileBytes = ConfigReader.getInt(configFile, "Tracing", "maxFileBytes", 8 * 1024 * 1024);
+        int maxFiles = ConfigReader.getInt(configFile, "Tracing", "maxFiles", 3);
+        Files.createDirectories(dir);
+        SpanWriter writer = new SpanWriter(dir.resolve(service + ".spans"), maxFileBytes, maxFiles);
+        Thread thread = new Thread(writer, service + "-span-writer");
+        thread.setDaemon(true);
+        thread.start();
+        ServiceLifecycle.addFlushHook(writer::flush);
+    }
+
+    /**
+     * Returns the span of the work this thread is doing
+     * @return the span, or null if the thread is not handling a traced request
+     */
+    public static Span current() {
+        return current.get();
+    }
+
+    /**
+     * Starts a span for a step of the current request, For example a database operation.
+     * @param name what the step does
+     * @return the span, or null if the thread is not handling a traced request
+     */
+    public static Span startChild(String name) {
+        Span parent = current.get();
+        return parent == null ? null : parent.child(name);
+    }
+
+    /**
+     * Adds the filter that continues or starts the trace of each request to a context. The filters run
+     * only once the executor takes the request off its queue, so when the executor is an
+     * AdmissionController the span is started back at the time the request was queued, and the wait
+     * is recorded as its "admission queue" child. It should come before the admission filter, so shed
+     * requests get a span too.
+     * @param context the context
+     * @return the context
+     */
+    public static HttpContext instrument(HttpContext context) {
+        context.getFilters().add(new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (!enabled) {
+                    chain.doFilter(exchange);
+                    return;
+                }
+                long now = System.nanoTime();
+                long enqueued = AdmissionController.enqueuedAt(now);
+                Span span = accept(exchange.getRequestHeaders().getFirst(HEADER),
+                        exchange.getRequestMethod() + " " + Metrics.routeOf(exchange.getRequestURI().getPath()), enqueued);
+                if (enqueued != now) {
+                    new Span(span.traceId, span.spanId, span.sampled, "admission queue", enqueued).end(0);
+                }
+                exchange.getResponseHeaders().set(TRACE_ID_HEADER, span.getTraceId());
+                Span outer = current.get();
+                current.set(span);
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    current.set(outer);
+                    span.end(Math.max(exchange.getResponseCode(), 0));
+                }
+            }
+
+            @Override
+            public String description() {
+                return "Records a span for each request";
+            }
+        });
+        return context;
+    }
+
+    /**
+     * Continues the trace in a traceparent header, or starts a new one.
+     */
+    private static Span accept(String traceparent, String name, long startNanos) {
+        // 00-<32 hex>-<16 hex>-<2 hex>
+        if (traceparent != null && traceparent.length() >= 55 && traceparent.charAt(2) == '-'
+                && traceparent.charAt(35) == '-' && traceparent.charAt(52) == '-') {
+            String traceId = traceparent.substring(3, 35);
+            String parentId = traceparent.substring(36, 52);
+            boolean sampled = (Character.digit(traceparent.charAt(54), 16) & 1) == 1;
+            if (isHex(traceId) && isHex(parentId)) {
+                return new Span(traceId, parentId, sampled, name, startNanos);
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String traceId = hex(random.nextLong()) + hex(random.nextLong());
+        return new Span(traceId, null, random.nextDouble() < sampleRate, name, startNanos);
+    }
+
+    /**
+     * Sends a request as a step of the current request: the call gets its own span, and its id is
+     * passed on in the traceparent header. The call is also recorded in the metrics.
+     * @param client the client
+     * @param target the service called (For example, "ISCS")
+     * @param builder the request, not built yet
+     * @param handler the body handler
+     * @param <T> the body type
+     * @return the response
+     * @throws IOException if the call fails
+     * @throws InterruptedException if interrupted while waiting for the response
+     */
+    public static <T> HttpResponse<T> send(HttpClient client, String target, HttpRequest.Builder builder,
+                                           HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+        Span span = startChild(target);
+        HttpRequest request = build(builder, span, target);
+        int status = 0;
+        try {
+            HttpResponse<T> response = Metrics.send(client, target, request, handler);
+            status = response.statusCode();
+            return response;
+        } finally {
+            if (span != null) {
+                span.end(status);
+            }
+        }
+    }
+
+    /**
+     * Sends a request asynchronously as a step of the current request. Must be called on the thread
+     * handling the request; the span ends when the response arrives.
+     * @param client the client
+     * @param target the service called (For example, "ISCS")
+     * @param builder the request, not built yet
+     * @param handler the body handler
+     * @param <T> the body type
+     * @return the pending response; the client's own future, so cancelling it aborts the exchange
+     */
+    public static <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpClient client, String target, HttpRequest.Builder builder,
+                                                                   HttpResponse.BodyHandler<T> handler) {
+        Span span = startChild(target);
+        CompletableFuture<HttpResponse<T>> call = Metrics.sendAsync(client, target, build(builder, span, target), handler);
+        if (span != null) {
+            call.whenComplete((response, e) -> span.end(response == null ? 0 : response.statusCode()));
+        }
+        return call;
+    }
+
+    private static HttpRequest build(HttpRequest.Builder builder, Span span, String target) {
+        if (span == null) {
+            return builder.build();
+        }
+        builder.header(HEADER, span.traceparent());
+        HttpRequest request = builder.build();
+        span.rename(request.method() + " " + target + " " + Metrics.routeOf(request.uri().getPath()));
+        return request;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+
+    /**
+     * Writes queued spans to the service's file in batches and rotates it.
+     */
+    private static final class SpanWriter implements Runnable {
+        private final Path file;
+        private final long maxFileBytes;
+        private final int maxFiles;
+        private final List<String> batch = new ArrayList<>();
+        private Writer out;
+        private long written;
+
+        SpanWriter(Path file, long maxFileBytes, int maxFiles) throws IOException {
+            this.file = file;
+            this.maxFileBytes = maxFileBytes;
+            this.maxFiles = maxFiles;
+            open();
+        }
+
+        private void open() throws IOException {
+            out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND), 64 * 1024);
+            written = Files.size(file);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    String first = finished.poll(100, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        synchronized (this) {
+                            write(first);
+                            drain();
+                            out.flush();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    Log.error("[Tracing] Could not write spans: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Writes whatever is queued; run at shutdown so the last requests are not lost.
+         */
+        synchronized void flush() {
+            try {
+                drain();
+                out.flush();
+            } catch (IOException e) {
+                Log.error("[Tracing] Could not write spans: " + e.getMessage());
+            }
+        }
+
+        private void drain() throws IOException {
+            batch.clear();
+            finished.drainTo(batch);
+            for (String line : batch) {
+                write(line);
+            }
+        }
+
+        private void write(String line) throws IOException {
+            if (written >= maxFileBytes) {
+                rotate();
+            }
+            out.write(line);
+            out.write('\n');
+            written += utf8Length(line) + 1;
+        }
+
+        /**
+         * The number of bytes the line takes in the file; route names and services need not be ASCII.
+         */
+        private static int utf8Length(String line) {
+            int bytes = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c < 0x80) {
+                    bytes++;
+                } else if (c < 0x800) {
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += 3;
+                }
+            }
+            return bytes;
+        }
+
+        /**
+         * Shifts <file>.1 to <file>.2 and so on, dropping the oldest, and starts a new file.
+         */
+        private void rotate() throws IOException {
+            out.close();
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = file.resolveSibling(file.getFileName() + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+            open();
+        }
+    }
+}